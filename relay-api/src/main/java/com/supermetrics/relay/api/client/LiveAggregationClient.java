@@ -0,0 +1,90 @@
+package com.supermetrics.relay.api.client;
+
+import com.supermetrics.relay.api.config.ApiProperties;
+import com.supermetrics.relay.api.service.RollupProgress;
+import com.supermetrics.relay.common.domain.DeviceType;
+import com.supermetrics.relay.common.domain.LiveAggregation;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClient;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestClientResponseException;
+
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * Reads in-progress windows from the processor's interactive-query endpoint. Disabled unless
+ * {@code relay.api.live.base-url} is set.
+ */
+@Component
+public class LiveAggregationClient {
+
+    private final RestClient restClient;
+    private final ApiProperties.Live properties;
+    private final RollupProgress progress;
+
+    public LiveAggregationClient(ApiProperties properties, RestClient.Builder restClientBuilder,
+                                 RollupProgress progress) {
+        this.properties = properties.getLive();
+        this.progress = progress;
+        String baseUrl = this.properties.getBaseUrl();
+        if (baseUrl == null || baseUrl.isBlank()) {
+            this.restClient = null;
+            return;
+        }
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(this.properties.getTimeout());
+        requestFactory.setReadTimeout(this.properties.getTimeout());
+        this.restClient = restClientBuilder
+            .baseUrl(baseUrl)
+            .requestFactory(requestFactory)
+            .build();
+    }
+
+    /**
+     * Start of the earliest hour {@link RollupProgress} does not report closed: hours before it
+     * have their final HOURLY row in Postgres and are read from there, the rest from the
+     * processor, whose stores keep every window its stream time has not closed. Empty when live
+     * reads are disabled or before the processor's progress is first read, in which case open
+     * hours are read from Postgres as far as they have been written.
+     */
+    public Optional<Instant> liveFrom() {
+        if (restClient == null) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(progress.closedUntil());
+    }
+
+    /**
+     * Returns the device's partial aggregate for {@code [from, to)}, or empty when the processor
+     * has no open windows for it. {@code zone} and {@code deviceType} may be null; the
+     * processor then resolves them from the device's latest key.
+     *
+     * @throws RestClientException when the processor cannot answer
+     */
+    public Optional<LiveAggregation> findDeviceAggregation(String deviceId, String zone, DeviceType deviceType,
+                                                           Instant from, Instant to) {
+        if (restClient == null) {
+            return Optional.empty();
+        }
+        return restClient.get()
+            .uri(uriBuilder -> uriBuilder
+                .path("/internal/live/devices/{deviceId}")
+                .queryParam("from", from)
+                .queryParam("to", to)
+                .queryParamIfPresent("zone", Optional.ofNullable(zone))
+                .queryParamIfPresent("deviceType", Optional.ofNullable(deviceType))
+                .build(deviceId))
+            .exchange((request, response) -> {
+                if (response.getStatusCode().value() == 404) {
+                    return Optional.<LiveAggregation>empty();
+                }
+                if (!response.getStatusCode().is2xxSuccessful()) {
+                    throw new RestClientResponseException("Live aggregation query failed",
+                        response.getStatusCode(), response.getStatusText(), null, null, null);
+                }
+                return Optional.ofNullable(response.bodyTo(LiveAggregation.class));
+            });
+    }
+}
@@ -0,0 +1,471 @@
+package com.supermetrics.relay.api.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+@ConfigurationProperties(prefix = "relay.api")
+public class ApiProperties {
+
+    private final Live live = new Live();
+    private final Rollups rollups = new Rollups();
+    private final Cache cache = new Cache();
+    private final Batch batch = new Batch();
+    private final Subscriptions subscriptions = new Subscriptions();
+    private final Concurrency concurrency = new Concurrency();
+    private final Ranking ranking = new Ranking();
+    private final HttpCache httpCache = new HttpCache();
+    private final KnownKeys knownKeys = new KnownKeys();
+    private final Admission admission = new Admission();
+    private final Replicas replicas = new Replicas();
+
+    public Live getLive() {
+        return live;
+    }
+
+    public Rollups getRollups() {
+        return rollups;
+    }
+
+    public Cache getCache() {
+        return cache;
+    }
+
+    public Batch getBatch() {
+        return batch;
+    }
+
+    public Subscriptions getSubscriptions() {
+        return subscriptions;
+    }
+
+    public Concurrency getConcurrency() {
+        return concurrency;
+    }
+
+    public Ranking getRanking() {
+        return ranking;
+    }
+
+    public HttpCache getHttpCache() {
+        return httpCache;
+    }
+
+    public KnownKeys getKnownKeys() {
+        return knownKeys;
+    }
+
+    public Admission getAdmission() {
+        return admission;
+    }
+
+    public Replicas getReplicas() {
+        return replicas;
+    }
+
+    public static class Live {
+        private String baseUrl;
+        private Duration timeout = Duration.ofMillis(500);
+
+        public String getBaseUrl() {
+            return baseUrl;
+        }
+
+        public void setBaseUrl(String baseUrl) {
+            this.baseUrl = baseUrl;
+        }
+
+        public Duration getTimeout() {
+            return timeout;
+        }
+
+        public void setTimeout(Duration timeout) {
+            this.timeout = timeout;
+        }
+    }
+
+    public static class Rollups {
+        private Instant since;
+        private Duration grace = Duration.ofMinutes(5);
+        private Duration margin = Duration.ofMinutes(1);
+        private Duration progressInterval = Duration.ofSeconds(15);
+
+        public Instant getSince() {
+            return since;
+        }
+
+        public void setSince(Instant since) {
+            this.since = since;
+        }
+
+        public Duration getGrace() {
+            return grace;
+        }
+
+        public void setGrace(Duration grace) {
+            this.grace = grace;
+        }
+
+        public Duration getMargin() {
+            return margin;
+        }
+
+        public void setMargin(Duration margin) {
+            this.margin = margin;
+        }
+
+        public Duration getProgressInterval() {
+            return progressInterval;
+        }
+
+        public void setProgressInterval(Duration progressInterval) {
+            this.progressInterval = progressInterval;
+        }
+    }
+
+    public static class Cache {
+        private boolean enabled = true;
+        private DataSize maximumSize = DataSize.ofMegabytes(64);
+        private DataSize devicesMaximumSize = DataSize.ofMegabytes(32);
+        private Duration openHourTtl = Duration.ofSeconds(30);
+        private Duration maxRange = Duration.ofDays(31);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public DataSize getMaximumSize() {
+            return maximumSize;
+        }
+
+        public void setMaximumSize(DataSize maximumSize) {
+            this.maximumSize = maximumSize;
+        }
+
+        public DataSize getDevicesMaximumSize() {
+            return devicesMaximumSize;
+        }
+
+        public void setDevicesMaximumSize(DataSize devicesMaximumSize) {
+            this.devicesMaximumSize = devicesMaximumSize;
+        }
+
+        public Duration getOpenHourTtl() {
+            return openHourTtl;
+        }
+
+        public void setOpenHourTtl(Duration openHourTtl) {
+            this.openHourTtl = openHourTtl;
+        }
+
+        public Duration getMaxRange() {
+            return maxRange;
+        }
+
+        public void setMaxRange(Duration maxRange) {
+            this.maxRange = maxRange;
+        }
+    }
+
+    public static class Batch {
+        private int maxTargets = 1000;
+        private Duration maxRange = Duration.ofDays(31);
+
+        public int getMaxTargets() {
+            return maxTargets;
+        }
+
+        public void setMaxTargets(int maxTargets) {
+            this.maxTargets = maxTargets;
+        }
+
+        public Duration getMaxRange() {
+            return maxRange;
+        }
+
+        public void setMaxRange(Duration maxRange) {
+            this.maxRange = maxRange;
+        }
+    }
+
+    public static class Subscriptions {
+        private boolean enabled = true;
+        private Duration timeout = Duration.ofMinutes(30);
+        private Duration pollInterval = Duration.ofMillis(500);
+        private Duration retryInterval = Duration.ofSeconds(5);
+        private int queueSize = 64;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public Duration getTimeout() {
+            return timeout;
+        }
+
+        public void setTimeout(Duration timeout) {
+            this.timeout = timeout;
+        }
+
+        public Duration getPollInterval() {
+            return pollInterval;
+        }
+
+        public void setPollInterval(Duration pollInterval) {
+            this.pollInterval = pollInterval;
+        }
+
+        public Duration getRetryInterval() {
+            return retryInterval;
+        }
+
+        public void setRetryInterval(Duration retryInterval) {
+            this.retryInterval = retryInterval;
+        }
+
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        public void setQueueSize(int queueSize) {
+            this.queueSize = queueSize;
+        }
+    }
+
+    public static class Concurrency {
+        private int maxQueries = 16;
+        private int maxStreamingQueries = 2;
+        private Duration acquireTimeout = Duration.ofSeconds(2);
+
+        public int getMaxQueries() {
+            return maxQueries;
+        }
+
+        public void setMaxQueries(int maxQueries) {
+            this.maxQueries = maxQueries;
+        }
+
+        public int getMaxStreamingQueries() {
+            return maxStreamingQueries;
+        }
+
+        public void setMaxStreamingQueries(int maxStreamingQueries) {
+            this.maxStreamingQueries = maxStreamingQueries;
+        }
+
+        public Duration getAcquireTimeout() {
+            return acquireTimeout;
+        }
+
+        public void setAcquireTimeout(Duration acquireTimeout) {
+            this.acquireTimeout = acquireTimeout;
+        }
+    }
+
+    public static class Ranking {
+        private int maxLimit = 100;
+
+        public int getMaxLimit() {
+            return maxLimit;
+        }
+
+        public void setMaxLimit(int maxLimit) {
+            this.maxLimit = maxLimit;
+        }
+    }
+
+    public static class HttpCache {
+        private boolean enabled = true;
+        private Duration maxAge = Duration.ofHours(1);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public Duration getMaxAge() {
+            return maxAge;
+        }
+
+        public void setMaxAge(Duration maxAge) {
+            this.maxAge = maxAge;
+        }
+    }
+
+    public static class KnownKeys {
+        private boolean enabled = true;
+        private Duration refreshInterval = Duration.ofMinutes(1);
+        private Duration reloadInterval = Duration.ofHours(1);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public Duration getRefreshInterval() {
+            return refreshInterval;
+        }
+
+        public void setRefreshInterval(Duration refreshInterval) {
+            this.refreshInterval = refreshInterval;
+        }
+
+        public Duration getReloadInterval() {
+            return reloadInterval;
+        }
+
+        public void setReloadInterval(Duration reloadInterval) {
+            this.reloadInterval = reloadInterval;
+        }
+    }
+
+    public static class Admission {
+        private boolean enabled = true;
+        private double requestsPerSecond = 20.0;
+        private int burst = 40;
+        private long heavyRows = 100_000;
+        private int maxHeavyQueries = 2;
+        private Duration heavyQueueTimeout = Duration.ofMillis(500);
+        private int maxTokens = 10_000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public double getRequestsPerSecond() {
+            return requestsPerSecond;
+        }
+
+        public void setRequestsPerSecond(double requestsPerSecond) {
+            this.requestsPerSecond = requestsPerSecond;
+        }
+
+        public int getBurst() {
+            return burst;
+        }
+
+        public void setBurst(int burst) {
+            this.burst = burst;
+        }
+
+        public long getHeavyRows() {
+            return heavyRows;
+        }
+
+        public void setHeavyRows(long heavyRows) {
+            this.heavyRows = heavyRows;
+        }
+
+        public int getMaxHeavyQueries() {
+            return maxHeavyQueries;
+        }
+
+        public void setMaxHeavyQueries(int maxHeavyQueries) {
+            this.maxHeavyQueries = maxHeavyQueries;
+        }
+
+        public Duration getHeavyQueueTimeout() {
+            return heavyQueueTimeout;
+        }
+
+        public void setHeavyQueueTimeout(Duration heavyQueueTimeout) {
+            this.heavyQueueTimeout = heavyQueueTimeout;
+        }
+
+        public int getMaxTokens() {
+            return maxTokens;
+        }
+
+        public void setMaxTokens(int maxTokens) {
+            this.maxTokens = maxTokens;
+        }
+    }
+
+    public static class Replicas {
+        private List<String> urls = new ArrayList<>();
+        private String username;
+        private String password;
+        private int poolSize = 10;
+        private Duration maxLag = Duration.ofSeconds(30);
+        private Duration primaryWindow = Duration.ofMinutes(5);
+        private Duration probeInterval = Duration.ofSeconds(5);
+
+        public List<String> getUrls() {
+            return urls;
+        }
+
+        public void setUrls(List<String> urls) {
+            this.urls = urls;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public void setUsername(String username) {
+            this.username = username;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+
+        public void setPassword(String password) {
+            this.password = password;
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        public void setPoolSize(int poolSize) {
+            this.poolSize = poolSize;
+        }
+
+        public Duration getMaxLag() {
+            return maxLag;
+        }
+
+        public void setMaxLag(Duration maxLag) {
+            this.maxLag = maxLag;
+        }
+
+        public Duration getPrimaryWindow() {
+            return primaryWindow;
+        }
+
+        public void setPrimaryWindow(Duration primaryWindow) {
+            this.primaryWindow = primaryWindow;
+        }
+
+        public Duration getProbeInterval() {
+            return probeInterval;
+        }
+
+        public void setProbeInterval(Duration probeInterval) {
+            this.probeInterval = probeInterval;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.supermetrics.relay.api.config;
+
+import com.supermetrics.relay.api.repository.ReplicaRouter;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.util.StringUtils;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The application's {@link DataSource} is the primary from {@code spring.datasource} behind a
+ * {@link ReplicaRouter}, with one pool per {@code relay.api.replicas.urls} entry. Connections are
+ * fetched lazily, on the first statement, so the target chosen inside a repository read applies
+ * even when a read-only transaction was opened by the service before it.
+ */
+@Configuration
+public class DataSourceConfig {
+
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource primaryDataSource(DataSourceProperties dataSourceProperties) {
+        return dataSourceProperties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+    }
+
+    @Bean
+    public ReplicaRouter replicaRouter(HikariDataSource primaryDataSource, DataSourceProperties dataSourceProperties,
+                                       ApiProperties properties, MeterRegistry meterRegistry) {
+        ApiProperties.Replicas replicas = properties.getReplicas();
+        Map<String, DataSource> pools = new LinkedHashMap<>();
+        List<String> urls = replicas.getUrls();
+        for (int i = 0; i < urls.size(); i++) {
+            String name = "replica-" + (i + 1);
+            HikariDataSource pool = new HikariDataSource();
+            pool.setPoolName("relay-" + name);
+            pool.setJdbcUrl(urls.get(i));
+            pool.setDriverClassName(dataSourceProperties.determineDriverClassName());
+            pool.setUsername(StringUtils.hasText(replicas.getUsername()) ? replicas.getUsername()
+                : dataSourceProperties.determineUsername());
+            pool.setPassword(StringUtils.hasText(replicas.getPassword()) ? replicas.getPassword()
+                : dataSourceProperties.determinePassword());
+            pool.setMaximumPoolSize(replicas.getPoolSize());
+            pool.setConnectionTimeout(primaryDataSource.getConnectionTimeout());
+            pool.setReadOnly(true);
+            pools.put(name, pool);
+        }
+        return new ReplicaRouter(primaryDataSource, pools, properties, meterRegistry);
+    }
+
+    @Bean
+    @Primary
+    public DataSource dataSource(ReplicaRouter replicaRouter) {
+        LazyConnectionDataSourceProxy dataSource = new LazyConnectionDataSourceProxy(replicaRouter.dataSource());
+        // Postgres defaults; set up front so startup does not need a connection to read them
+        dataSource.setDefaultAutoCommit(true);
+        dataSource.setDefaultTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        return dataSource;
+    }
+}
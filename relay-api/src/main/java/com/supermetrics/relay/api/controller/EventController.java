@@ -1,75 +1,410 @@
 package com.supermetrics.relay.api.controller;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.supermetrics.relay.common.domain.DeviceType;
+import com.supermetrics.relay.api.repository.Dimension;
+import com.supermetrics.relay.api.repository.QueryRejectedException;
+import com.supermetrics.relay.api.repository.RankingMetric;
 import com.supermetrics.relay.api.service.AggregationService;
 import com.supermetrics.relay.api.service.AggregationService.AggregationResult;
+import com.supermetrics.relay.api.service.AggregationService.BatchResult;
+import com.supermetrics.relay.api.service.AggregationUpdateBroadcaster;
+import com.supermetrics.relay.api.service.SeriesBucket;
 import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 @RestController
 @RequestMapping("/api/events")
 public class EventController {
     
+    private static final int EXPORT_FLUSH_ROWS = 1000;
+    
     private final AggregationService aggregationService;
+    private final AggregationUpdateBroadcaster updateBroadcaster;
+    private final ObjectMapper objectMapper;
     
-    public EventController(AggregationService aggregationService) {
+    public EventController(AggregationService aggregationService, AggregationUpdateBroadcaster updateBroadcaster,
+                           ObjectMapper objectMapper) {
         this.aggregationService = aggregationService;
+        this.updateBroadcaster = updateBroadcaster;
+        this.objectMapper = objectMapper;
     }
     
     @GetMapping("/device/{deviceId}")
     public ResponseEntity<AggregationResponse> getAggregationsByDevice(
             @PathVariable String deviceId,
+            @RequestParam(value = "percentiles", required = false) String percentiles,
             @RequestParam("startTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant startTime,
             @RequestParam("endTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant endTime) {
         
-        AggregationResult result = aggregationService.getAggregationsByDevice(deviceId, startTime, endTime);
-        if (result.count() == 0) {
-            return ResponseEntity.notFound().build();
+        Optional<List<Double>> requested = parsePercentiles(percentiles);
+        if (requested.isEmpty()) {
+            return ResponseEntity.badRequest().build();
         }
-        return ResponseEntity.ok(toResponse(result));
+        AggregationResult result = aggregationService.getAggregationsByDevice(deviceId, startTime, endTime);
+        return respond(result, requested.get(), deviceId, null, null, startTime, endTime);
     }
     
     @GetMapping("/zone/{zone}")
     public ResponseEntity<AggregationResponse> getAggregationsByZone(
             @PathVariable String zone,
+            @RequestParam(value = "percentiles", required = false) String percentiles,
             @RequestParam("startTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant startTime,
             @RequestParam("endTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant endTime) {
         
-        AggregationResult result = aggregationService.getAggregationsByZone(zone, startTime, endTime);
-        if (result.count() == 0) {
-            return ResponseEntity.notFound().build();
+        Optional<List<Double>> requested = parsePercentiles(percentiles);
+        if (requested.isEmpty()) {
+            return ResponseEntity.badRequest().build();
         }
-        return ResponseEntity.ok(toResponse(result));
+        AggregationResult result = aggregationService.getAggregationsByZone(zone, startTime, endTime);
+        return respond(result, requested.get(), null, zone, null, startTime, endTime);
     }
     
     @GetMapping("/type/{deviceType}")
     public ResponseEntity<AggregationResponse> getAggregationsByDeviceType(
             @PathVariable DeviceType deviceType,
+            @RequestParam(value = "percentiles", required = false) String percentiles,
             @RequestParam("startTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant startTime,
             @RequestParam("endTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant endTime) {
         
-        AggregationResult result = aggregationService.getAggregationsByDeviceType(deviceType, startTime, endTime);
-        if (result.count() == 0) {
-            return ResponseEntity.notFound().build();
+        Optional<List<Double>> requested = parsePercentiles(percentiles);
+        if (requested.isEmpty()) {
+            return ResponseEntity.badRequest().build();
         }
-        return ResponseEntity.ok(toResponse(result));
+        AggregationResult result = aggregationService.getAggregationsByDeviceType(deviceType, startTime, endTime);
+        return respond(result, requested.get(), null, null, deviceType, startTime, endTime);
     }
     
     @GetMapping("/zone/{zone}/type/{deviceType}")
     public ResponseEntity<AggregationResponse> getAggregationsByZoneAndType(
             @PathVariable String zone,
             @PathVariable DeviceType deviceType,
+            @RequestParam(value = "percentiles", required = false) String percentiles,
             @RequestParam("startTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant startTime,
             @RequestParam("endTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant endTime) {
         
+        Optional<List<Double>> requested = parsePercentiles(percentiles);
+        if (requested.isEmpty()) {
+            return ResponseEntity.badRequest().build();
+        }
         AggregationResult result = aggregationService.getAggregationsByZoneAndType(zone, deviceType, startTime, endTime);
+        return respond(result, requested.get(), null, zone, deviceType, startTime, endTime);
+    }
+    
+    private ResponseEntity<AggregationResponse> respond(AggregationResult result, List<Double> percentiles,
+                                                        String deviceId, String zone, DeviceType deviceType,
+                                                        Instant startTime, Instant endTime) {
         if (result.count() == 0) {
             return ResponseEntity.notFound().build();
         }
-        return ResponseEntity.ok(toResponse(result));
+        AggregationResponse response = toResponse(result);
+        if (percentiles.isEmpty()) {
+            return ResponseEntity.ok(response);
+        }
+        AggregationService.Percentiles computed =
+            aggregationService.getPercentiles(deviceId, zone, deviceType, percentiles, startTime, endTime);
+        Map<String, Double> values = new LinkedHashMap<>();
+        computed.values().forEach((percentile, value) ->
+            values.put(BigDecimal.valueOf(percentile).stripTrailingZeros().toPlainString(), value));
+        // The digest is merged anyway, so the median agrees with ?percentiles=50 whenever the
+        // digest holds every reading; otherwise the weighted median of the rows stands
+        Double medianValue = computed.median() != null && computed.count() == result.count()
+            ? computed.median() : response.medianValue();
+        return ResponseEntity.ok(response.withPercentiles(values, medianValue));
+    }
+    
+    /**
+     * Parses a comma-separated {@code percentiles} parameter such as {@code 50,90,99.9}: an empty
+     * list when it is absent, {@link Optional#empty()} when any value is not in (0, 100].
+     */
+    static Optional<List<Double>> parsePercentiles(String parameter) {
+        if (parameter == null) {
+            return Optional.of(List.of());
+        }
+        List<Double> percentiles = new ArrayList<>();
+        for (String token : parameter.split(",")) {
+            double percentile;
+            try {
+                percentile = Double.parseDouble(token.trim());
+            } catch (NumberFormatException e) {
+                return Optional.empty();
+            }
+            if (!(percentile > 0.0 && percentile <= 100.0)) {
+                return Optional.empty();
+            }
+            percentiles.add(percentile);
+        }
+        return Optional.of(percentiles);
+    }
+    
+    @PostMapping("/batch")
+    public ResponseEntity<BatchResponse> getBatchAggregations(@RequestBody BatchRequest request) {
+        if (request.startTime() == null || request.endTime() == null
+                || !request.startTime().isBefore(request.endTime())) {
+            return ResponseEntity.badRequest().build();
+        }
+        BatchResult result;
+        try {
+            result = aggregationService.getBatchAggregations(
+                request.deviceIds() != null ? request.deviceIds() : List.of(),
+                request.zones() != null ? request.zones() : List.of(),
+                request.deviceTypes() != null ? request.deviceTypes() : List.of(),
+                request.startTime(), request.endTime());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+        Map<String, AggregationResponse> devices = new LinkedHashMap<>();
+        result.devices().forEach((deviceId, aggregation) -> devices.put(deviceId, toResponse(aggregation)));
+        Map<String, AggregationResponse> zones = new LinkedHashMap<>();
+        result.zones().forEach((zone, aggregation) -> zones.put(zone, toResponse(aggregation)));
+        Map<DeviceType, AggregationResponse> deviceTypes = new LinkedHashMap<>();
+        result.deviceTypes().forEach((deviceType, aggregation) -> deviceTypes.put(deviceType, toResponse(aggregation)));
+        return ResponseEntity.ok(new BatchResponse(devices, zones, deviceTypes));
+    }
+    
+    @GetMapping("/zone/{zone}/top")
+    public ResponseEntity<List<AggregationResponse>> getTopDevicesByZone(
+            @PathVariable String zone,
+            @RequestParam(value = "metric", defaultValue = "avg") String metric,
+            @RequestParam(value = "order", defaultValue = "desc") String order,
+            @RequestParam(value = "limit", defaultValue = "10") int limit,
+            @RequestParam("startTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant startTime,
+            @RequestParam("endTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant endTime) {
+        
+        return topDevices(zone, null, metric, order, limit, startTime, endTime);
+    }
+    
+    @GetMapping("/type/{deviceType}/top")
+    public ResponseEntity<List<AggregationResponse>> getTopDevicesByDeviceType(
+            @PathVariable DeviceType deviceType,
+            @RequestParam(value = "metric", defaultValue = "avg") String metric,
+            @RequestParam(value = "order", defaultValue = "desc") String order,
+            @RequestParam(value = "limit", defaultValue = "10") int limit,
+            @RequestParam("startTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant startTime,
+            @RequestParam("endTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant endTime) {
+        
+        return topDevices(null, deviceType, metric, order, limit, startTime, endTime);
+    }
+    
+    @GetMapping("/zone/{zone}/type/{deviceType}/top")
+    public ResponseEntity<List<AggregationResponse>> getTopDevicesByZoneAndType(
+            @PathVariable String zone,
+            @PathVariable DeviceType deviceType,
+            @RequestParam(value = "metric", defaultValue = "avg") String metric,
+            @RequestParam(value = "order", defaultValue = "desc") String order,
+            @RequestParam(value = "limit", defaultValue = "10") int limit,
+            @RequestParam("startTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant startTime,
+            @RequestParam("endTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant endTime) {
+        
+        return topDevices(zone, deviceType, metric, order, limit, startTime, endTime);
+    }
+    
+    private ResponseEntity<List<AggregationResponse>> topDevices(String zone, DeviceType deviceType, String metric,
+                                                                 String order, int limit,
+                                                                 Instant startTime, Instant endTime) {
+        Optional<RankingMetric> rankingMetric = RankingMetric.fromParameter(metric);
+        if (rankingMetric.isEmpty() || !(order.equals("asc") || order.equals("desc"))
+                || !startTime.isBefore(endTime)) {
+            return ResponseEntity.badRequest().build();
+        }
+        List<AggregationResult> results;
+        try {
+            results = aggregationService.getTopDevices(zone, deviceType, rankingMetric.get(), order.equals("asc"),
+                limit, startTime, endTime);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(results.stream().map(this::toResponse).toList());
+    }
+    
+    @GetMapping("/device/{deviceId}/series")
+    public ResponseEntity<StreamingResponseBody> getSeriesByDevice(
+            @PathVariable String deviceId,
+            @RequestParam("bucket") String bucket,
+            @RequestParam("startTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant startTime,
+            @RequestParam("endTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant endTime) {
+        
+        return series(deviceId, null, null, bucket, startTime, endTime);
+    }
+    
+    @GetMapping("/zone/{zone}/series")
+    public ResponseEntity<StreamingResponseBody> getSeriesByZone(
+            @PathVariable String zone,
+            @RequestParam("bucket") String bucket,
+            @RequestParam("startTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant startTime,
+            @RequestParam("endTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant endTime) {
+        
+        return series(null, zone, null, bucket, startTime, endTime);
+    }
+    
+    @GetMapping("/type/{deviceType}/series")
+    public ResponseEntity<StreamingResponseBody> getSeriesByDeviceType(
+            @PathVariable DeviceType deviceType,
+            @RequestParam("bucket") String bucket,
+            @RequestParam("startTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant startTime,
+            @RequestParam("endTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant endTime) {
+        
+        return series(null, null, deviceType, bucket, startTime, endTime);
+    }
+    
+    @GetMapping("/zone/{zone}/type/{deviceType}/series")
+    public ResponseEntity<StreamingResponseBody> getSeriesByZoneAndType(
+            @PathVariable String zone,
+            @PathVariable DeviceType deviceType,
+            @RequestParam("bucket") String bucket,
+            @RequestParam("startTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant startTime,
+            @RequestParam("endTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant endTime) {
+        
+        return series(null, zone, deviceType, bucket, startTime, endTime);
+    }
+    
+    /**
+     * Writes the buckets as a JSON array while the database cursor is read, so a long series is
+     * never held in memory. The generator does not auto-close: if the query fails, the opening
+     * bracket is still in its buffer and is dropped, so the error is answered as a 503 or 500
+     * instead of an empty array. A failure after rows were sent aborts the response mid-array.
+     */
+    private ResponseEntity<StreamingResponseBody> series(String deviceId, String zone, DeviceType deviceType,
+                                                         String bucket, Instant startTime, Instant endTime) {
+        Optional<SeriesBucket> seriesBucket = SeriesBucket.fromParameter(bucket);
+        if (seriesBucket.isEmpty() || !startTime.isBefore(endTime)) {
+            return ResponseEntity.badRequest().build();
+        }
+        StreamingResponseBody body = out -> {
+            JsonGenerator generator = objectMapper.createGenerator(out)
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+            generator.writeStartArray();
+            aggregationService.streamSeries(deviceId, zone, deviceType, seriesBucket.get(), startTime, endTime,
+                result -> {
+                    try {
+                        generator.writeObject(toResponse(result));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            generator.writeEndArray();
+            generator.close();
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+    
+    @GetMapping(value = "/device/{deviceId}/subscribe", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter subscribeToDevice(@PathVariable String deviceId) {
+        return updateBroadcaster.subscribe(new AggregationUpdateBroadcaster.Topic(Dimension.DEVICE_ID, deviceId));
+    }
+    
+    @GetMapping(value = "/zone/{zone}/subscribe", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter subscribeToZone(@PathVariable String zone) {
+        return updateBroadcaster.subscribe(new AggregationUpdateBroadcaster.Topic(Dimension.ZONE, zone));
+    }
+    
+    @GetMapping(value = "/type/{deviceType}/subscribe", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter subscribeToDeviceType(@PathVariable DeviceType deviceType) {
+        return updateBroadcaster.subscribe(
+            new AggregationUpdateBroadcaster.Topic(Dimension.DEVICE_TYPE, deviceType.name()));
+    }
+    
+    @GetMapping("/device/{deviceId}/export")
+    public ResponseEntity<StreamingResponseBody> exportByDevice(
+            @PathVariable String deviceId,
+            @RequestParam(value = "format", defaultValue = "ndjson") String format,
+            @RequestParam("startTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant startTime,
+            @RequestParam("endTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant endTime) {
+        
+        return export(deviceId, null, null, format, startTime, endTime);
+    }
+    
+    @GetMapping("/zone/{zone}/export")
+    public ResponseEntity<StreamingResponseBody> exportByZone(
+            @PathVariable String zone,
+            @RequestParam(value = "format", defaultValue = "ndjson") String format,
+            @RequestParam("startTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant startTime,
+            @RequestParam("endTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant endTime) {
+        
+        return export(null, zone, null, format, startTime, endTime);
+    }
+    
+    @GetMapping("/type/{deviceType}/export")
+    public ResponseEntity<StreamingResponseBody> exportByDeviceType(
+            @PathVariable DeviceType deviceType,
+            @RequestParam(value = "format", defaultValue = "ndjson") String format,
+            @RequestParam("startTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant startTime,
+            @RequestParam("endTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant endTime) {
+        
+        return export(null, null, deviceType, format, startTime, endTime);
+    }
+    
+    @GetMapping("/zone/{zone}/type/{deviceType}/export")
+    public ResponseEntity<StreamingResponseBody> exportByZoneAndType(
+            @PathVariable String zone,
+            @PathVariable DeviceType deviceType,
+            @RequestParam(value = "format", defaultValue = "ndjson") String format,
+            @RequestParam("startTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant startTime,
+            @RequestParam("endTime") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant endTime) {
+        
+        return export(null, zone, deviceType, format, startTime, endTime);
+    }
+    
+    /**
+     * Writes the hourly rows one line at a time as the cursor advances, flushing every
+     * {@value #EXPORT_FLUSH_ROWS} rows so clients can start consuming before the query finishes.
+     */
+    private ResponseEntity<StreamingResponseBody> export(String deviceId, String zone, DeviceType deviceType,
+                                                         String format, Instant startTime, Instant endTime) {
+        Optional<ExportFormat> exportFormat = ExportFormat.fromParameter(format);
+        if (exportFormat.isEmpty() || !startTime.isBefore(endTime)) {
+            return ResponseEntity.badRequest().build();
+        }
+        StreamingResponseBody body = out -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            exportFormat.get().writeHeader(writer);
+            int[] written = {0};
+            aggregationService.exportHourlyRows(deviceId, zone, deviceType, startTime, endTime, row -> {
+                try {
+                    exportFormat.get().writeRow(writer, row);
+                    if (++written[0] % EXPORT_FLUSH_ROWS == 0) {
+                        writer.flush();
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            writer.flush();
+        };
+        return ResponseEntity.ok().contentType(exportFormat.get().getMediaType()).body(body);
+    }
+    
+    /**
+     * The database is saturated; the client should back off rather than queue behind it.
+     */
+    @ExceptionHandler(QueryRejectedException.class)
+    public ResponseEntity<Void> handleQueryRejected(QueryRejectedException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+            .header(HttpHeaders.RETRY_AFTER, "1")
+            .build();
     }
     
     private AggregationResponse toResponse(AggregationResult result) {
@@ -83,10 +418,25 @@ public class EventController {
             result.minValue(),
             result.maxValue(),
             result.medianValue(),
-            result.count()
+            result.count(),
+            null
         );
     }
     
+    public record BatchRequest(
+        List<String> deviceIds,
+        List<String> zones,
+        List<DeviceType> deviceTypes,
+        Instant startTime,
+        Instant endTime
+    ) {}
+    
+    public record BatchResponse(
+        Map<String, AggregationResponse> devices,
+        Map<String, AggregationResponse> zones,
+        Map<DeviceType, AggregationResponse> deviceTypes
+    ) {}
+    
     public record AggregationResponse(
         String deviceId,
         String zone,
@@ -97,7 +447,13 @@ public class EventController {
         Double minValue,
         Double maxValue,
         Double medianValue,
-        Long count
-    ) {}
+        Long count,
+        @JsonInclude(JsonInclude.Include.NON_NULL) Map<String, Double> percentiles
+    ) {
+        AggregationResponse withPercentiles(Map<String, Double> percentiles, Double medianValue) {
+            return new AggregationResponse(deviceId, zone, deviceType, timeWindowStart, timeWindowEnd,
+                avgValue, minValue, maxValue, medianValue, count, percentiles);
+        }
+    }
 }
 
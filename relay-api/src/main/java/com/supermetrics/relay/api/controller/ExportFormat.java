@@ -0,0 +1,114 @@
+package com.supermetrics.relay.api.controller;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.supermetrics.relay.common.entity.DeviceEventAggregation;
+import org.springframework.http.MediaType;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Optional;
+
+/**
+ * Line-oriented encodings for aggregation exports. Each row is written on its own so the
+ * response can be flushed while the query is still being read.
+ */
+enum ExportFormat {
+    NDJSON("ndjson", MediaType.parseMediaType("application/x-ndjson")) {
+        private final JsonFactory jsonFactory = new JsonFactory();
+
+        @Override
+        void writeHeader(Writer writer) {
+        }
+
+        @Override
+        void writeRow(Writer writer, DeviceEventAggregation row) throws IOException {
+            JsonGenerator generator = jsonFactory.createGenerator(writer);
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartObject();
+            generator.writeStringField("deviceId", row.getDeviceId());
+            generator.writeStringField("zone", row.getZone());
+            generator.writeStringField("deviceType", row.getDeviceType() != null ? row.getDeviceType().name() : null);
+            generator.writeStringField("timeWindowStart", row.getTimeWindowStart().toString());
+            generator.writeStringField("timeWindowEnd", row.getTimeWindowEnd().toString());
+            generator.writeNumberField("avgValue", row.getAvgValue());
+            generator.writeNumberField("minValue", row.getMinValue());
+            generator.writeNumberField("maxValue", row.getMaxValue());
+            if (row.getMedianValue() != null) {
+                generator.writeNumberField("medianValue", row.getMedianValue());
+            } else {
+                generator.writeNullField("medianValue");
+            }
+            generator.writeNumberField("count", row.getCount());
+            generator.writeEndObject();
+            generator.close();
+            writer.write('\n');
+        }
+    },
+    CSV("csv", MediaType.parseMediaType("text/csv")) {
+        @Override
+        void writeHeader(Writer writer) throws IOException {
+            writer.write("deviceId,zone,deviceType,timeWindowStart,timeWindowEnd,"
+                + "avgValue,minValue,maxValue,medianValue,count\n");
+        }
+
+        @Override
+        void writeRow(Writer writer, DeviceEventAggregation row) throws IOException {
+            writer.write(field(row.getDeviceId()));
+            writer.write(',');
+            writer.write(field(row.getZone()));
+            writer.write(',');
+            writer.write(row.getDeviceType() != null ? row.getDeviceType().name() : "");
+            writer.write(',');
+            writer.write(row.getTimeWindowStart().toString());
+            writer.write(',');
+            writer.write(row.getTimeWindowEnd().toString());
+            writer.write(',');
+            writer.write(String.valueOf(row.getAvgValue()));
+            writer.write(',');
+            writer.write(String.valueOf(row.getMinValue()));
+            writer.write(',');
+            writer.write(String.valueOf(row.getMaxValue()));
+            writer.write(',');
+            writer.write(row.getMedianValue() != null ? String.valueOf(row.getMedianValue()) : "");
+            writer.write(',');
+            writer.write(String.valueOf(row.getCount()));
+            writer.write('\n');
+        }
+
+        private String field(String value) {
+            if (value == null) {
+                return "";
+            }
+            if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+                return value;
+            }
+            return '"' + value.replace("\"", "\"\"") + '"';
+        }
+    };
+
+    private final String parameter;
+    private final MediaType mediaType;
+
+    ExportFormat(String parameter, MediaType mediaType) {
+        this.parameter = parameter;
+        this.mediaType = mediaType;
+    }
+
+    MediaType getMediaType() {
+        return mediaType;
+    }
+
+    abstract void writeHeader(Writer writer) throws IOException;
+
+    abstract void writeRow(Writer writer, DeviceEventAggregation row) throws IOException;
+
+    static Optional<ExportFormat> fromParameter(String parameter) {
+        for (ExportFormat format : values()) {
+            if (format.parameter.equalsIgnoreCase(parameter)) {
+                return Optional.of(format);
+            }
+        }
+        return Optional.empty();
+    }
+}
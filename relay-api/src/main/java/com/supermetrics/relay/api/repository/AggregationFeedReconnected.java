@@ -0,0 +1,8 @@
+package com.supermetrics.relay.api.repository;
+
+/**
+ * Published by {@link AggregationNotificationListener} once it is LISTENing again after losing
+ * its connection. Notifications sent while it was away are gone, so anything kept current from
+ * them should reload.
+ */
+public record AggregationFeedReconnected() {}
@@ -0,0 +1,23 @@
+package com.supermetrics.relay.api.repository;
+
+import com.supermetrics.relay.common.domain.DeviceType;
+import com.supermetrics.relay.common.entity.DeviceEventAggregation;
+
+import java.time.Instant;
+
+/**
+ * An aggregation row as it was written, received from the {@code aggregation_updates} channel.
+ */
+public record AggregationNotification(
+    String deviceId,
+    String zone,
+    DeviceType deviceType,
+    DeviceEventAggregation.WindowType windowType,
+    Instant timeWindowStart,
+    Instant timeWindowEnd,
+    Double avgValue,
+    Double minValue,
+    Double maxValue,
+    Double medianValue,
+    Long count
+) {}
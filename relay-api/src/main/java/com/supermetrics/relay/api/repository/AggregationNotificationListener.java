@@ -0,0 +1,145 @@
+package com.supermetrics.relay.api.repository;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.supermetrics.relay.api.config.ApiProperties;
+import com.supermetrics.relay.common.domain.DeviceType;
+import com.supermetrics.relay.common.entity.DeviceEventAggregation;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+
+/**
+ * Holds one connection LISTENing on {@value #CHANNEL} for the whole process and republishes each
+ * notification as an {@link AggregationNotification} application event. Every subscriber shares
+ * this single upstream feed. The connection is re-established after failures, and an
+ * {@link AggregationFeedReconnected} event is published once it is listening again.
+ */
+@Component
+public class AggregationNotificationListener implements SmartLifecycle {
+    private static final Logger logger = LoggerFactory.getLogger(AggregationNotificationListener.class);
+
+    static final String CHANNEL = "aggregation_updates";
+
+    private final DataSource dataSource;
+    private final ObjectMapper objectMapper;
+    private final ApplicationEventPublisher eventPublisher;
+    private final ApiProperties.Subscriptions properties;
+
+    private volatile boolean running;
+    private Thread thread;
+
+    public AggregationNotificationListener(DataSource dataSource, ObjectMapper objectMapper,
+                                           ApplicationEventPublisher eventPublisher, ApiProperties properties) {
+        this.dataSource = dataSource;
+        this.objectMapper = objectMapper;
+        this.eventPublisher = eventPublisher;
+        this.properties = properties.getSubscriptions();
+    }
+
+    @Override
+    public void start() {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::listen, "aggregation-notification-listener");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void listen() {
+        boolean connected = false;
+        while (running) {
+            try (Connection connection = dataSource.getConnection()) {
+                connection.setAutoCommit(true);
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("LISTEN " + CHANNEL);
+                }
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                logger.info("Listening for aggregation updates on {}", CHANNEL);
+                if (connected) {
+                    eventPublisher.publishEvent(new AggregationFeedReconnected());
+                }
+                connected = true;
+                while (running) {
+                    PGNotification[] notifications =
+                        pgConnection.getNotifications((int) properties.getPollInterval().toMillis());
+                    if (notifications == null) {
+                        continue;
+                    }
+                    for (PGNotification notification : notifications) {
+                        publish(notification.getParameter());
+                    }
+                }
+            } catch (SQLException e) {
+                if (!running) {
+                    return;
+                }
+                logger.warn("Aggregation update listener lost its connection, retrying: {}", e.getMessage());
+                try {
+                    Thread.sleep(properties.getRetryInterval().toMillis());
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void publish(String payload) {
+        try {
+            eventPublisher.publishEvent(parse(objectMapper, payload));
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Ignoring malformed aggregation update {}: {}", payload, e.getMessage());
+        }
+    }
+
+    static AggregationNotification parse(ObjectMapper objectMapper, String payload) throws IOException {
+        JsonNode node = objectMapper.readTree(payload);
+        return new AggregationNotification(
+            text(node, "deviceId"),
+            text(node, "zone"),
+            node.hasNonNull("deviceType") ? DeviceType.valueOf(node.get("deviceType").asText()) : null,
+            DeviceEventAggregation.WindowType.valueOf(node.get("windowType").asText()),
+            Instant.ofEpochMilli(node.get("timeWindowStart").asLong()),
+            Instant.ofEpochMilli(node.get("timeWindowEnd").asLong()),
+            number(node, "avgValue"),
+            number(node, "minValue"),
+            number(node, "maxValue"),
+            number(node, "medianValue"),
+            node.get("count").asLong());
+    }
+
+    private static String text(JsonNode node, String field) {
+        return node.hasNonNull(field) ? node.get(field).asText() : null;
+    }
+
+    private static Double number(JsonNode node, String field) {
+        return node.hasNonNull(field) ? node.get(field).asDouble() : null;
+    }
+}
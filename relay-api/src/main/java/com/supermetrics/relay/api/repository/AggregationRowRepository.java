@@ -0,0 +1,78 @@
+package com.supermetrics.relay.api.repository;
+
+import com.supermetrics.relay.common.domain.DeviceType;
+import com.supermetrics.relay.common.entity.DeviceEventAggregation;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Raw aggregation rows for exports. Rows are mapped to detached {@link DeviceEventAggregation}
+ * instances outside any persistence context, so reading a year of them keeps nothing alive
+ * beyond the current fetch.
+ */
+@Repository
+public class AggregationRowRepository {
+
+    private static final String SELECT = """
+        SELECT device_id, device_type, zone, time_window_start, time_window_end, window_type,
+               avg_value, min_value, max_value, median_value, count
+        FROM device_event_aggregations
+        """;
+
+    private static final int FETCH_SIZE = 1000;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final QueryConcurrencyLimiter limiter;
+    private final ReplicaRouter replicaRouter;
+
+    public AggregationRowRepository(JdbcTemplate jdbcTemplate, QueryConcurrencyLimiter limiter,
+                                    ReplicaRouter replicaRouter) {
+        this.jdbcTemplate = new JdbcTemplate(jdbcTemplate.getDataSource());
+        this.jdbcTemplate.setFetchSize(FETCH_SIZE);
+        this.limiter = limiter;
+        this.replicaRouter = replicaRouter;
+    }
+
+    /**
+     * Rows of {@code slice} in window order. The stream holds an open cursor: callers must close
+     * it, and must read it inside a transaction for the driver to fetch {@value #FETCH_SIZE} rows
+     * at a time instead of the whole result. A streaming query slot is held until it is closed.
+     */
+    public Stream<DeviceEventAggregation> streamRows(String deviceId, String zone, DeviceType deviceType,
+                                                     TimeSlice slice) {
+        List<Object> args = new ArrayList<>();
+        String sql = SELECT + AggregationSummaryRepository.where(deviceId, zone, deviceType, List.of(slice), args)
+            + " ORDER BY time_window_start";
+        QueryConcurrencyLimiter.Permit permit = limiter.acquireStreaming();
+        try {
+            return replicaRouter.read(List.of(slice),
+                    () -> jdbcTemplate.queryForStream(sql, (rs, rowNum) -> toAggregation(rs), args.toArray()))
+                .onClose(permit::close);
+        } catch (RuntimeException e) {
+            permit.close();
+            throw e;
+        }
+    }
+
+    private static DeviceEventAggregation toAggregation(ResultSet rs) throws SQLException {
+        String deviceType = rs.getString("device_type");
+        return new DeviceEventAggregation(
+            rs.getString("device_id"),
+            deviceType == null ? null : DeviceType.valueOf(deviceType),
+            rs.getString("zone"),
+            rs.getTimestamp("time_window_start").toInstant(),
+            rs.getTimestamp("time_window_end").toInstant(),
+            DeviceEventAggregation.WindowType.valueOf(rs.getString("window_type")),
+            rs.getDouble("avg_value"),
+            rs.getDouble("min_value"),
+            rs.getDouble("max_value"),
+            rs.getObject("median_value", Double.class),
+            rs.getLong("count"));
+    }
+}
@@ -0,0 +1,108 @@
+package com.supermetrics.relay.api.repository;
+
+import com.supermetrics.relay.common.domain.DeviceType;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Everything the API needs from a set of aggregation rows, computed by the database. Only the
+ * per-row medians come back as arrays, sorted by value, because a median of medians cannot be
+ * merged in SQL without the weights.
+ *
+ * @param rows             matching rows, including those with a zero count
+ * @param deviceId         the device id shared by every row, or null when they differ
+ * @param zone             the zone shared by every row, or null when they differ
+ * @param deviceType       device type of the earliest row
+ * @param latestZone       zone of the most recent row
+ * @param latestDeviceType device type of the most recent row
+ * @param weightedSum      sum of {@code avg_value * count} over rows with a positive count
+ * @param medians          non-null medians of rows with a positive count, ascending
+ * @param medianWeights    counts of the rows in {@code medians}, same order
+ */
+public record AggregationSummary(
+    long rows,
+    String deviceId,
+    String zone,
+    DeviceType deviceType,
+    String latestZone,
+    DeviceType latestDeviceType,
+    double weightedSum,
+    long count,
+    Double minValue,
+    Double maxValue,
+    double[] medians,
+    long[] medianWeights
+) {
+
+    public static AggregationSummary empty() {
+        return new AggregationSummary(0L, null, null, null, null, null, 0.0, 0L, null, null,
+            new double[0], new long[0]);
+    }
+
+    /**
+     * Combines this summary with one covering later rows.
+     */
+    public AggregationSummary followedBy(AggregationSummary later) {
+        if (later.rows == 0) {
+            return this;
+        }
+        if (rows == 0) {
+            return later;
+        }
+        return new AggregationSummary(
+            rows + later.rows,
+            Objects.equals(deviceId, later.deviceId) ? deviceId : null,
+            Objects.equals(zone, later.zone) ? zone : null,
+            deviceType,
+            later.latestZone,
+            later.latestDeviceType,
+            weightedSum + later.weightedSum,
+            count + later.count,
+            minValue == null ? later.minValue : later.minValue == null ? minValue : Math.min(minValue, later.minValue),
+            maxValue == null ? later.maxValue : later.maxValue == null ? maxValue : Math.max(maxValue, later.maxValue),
+            mergeMedians(later),
+            mergeWeights(later));
+    }
+
+    /**
+     * Combines summaries given in time order, pairing them up so the median arrays are merged in
+     * O(n log n) rather than grown one summary at a time.
+     */
+    public static AggregationSummary combine(List<AggregationSummary> summaries) {
+        if (summaries.isEmpty()) {
+            return empty();
+        }
+        return combine(summaries, 0, summaries.size());
+    }
+
+    private static AggregationSummary combine(List<AggregationSummary> summaries, int from, int to) {
+        if (to - from == 1) {
+            return summaries.get(from);
+        }
+        int mid = (from + to) >>> 1;
+        return combine(summaries, from, mid).followedBy(combine(summaries, mid, to));
+    }
+
+    private double[] mergeMedians(AggregationSummary other) {
+        double[] merged = new double[medians.length + other.medians.length];
+        int i = 0, j = 0, k = 0;
+        while (i < medians.length || j < other.medians.length) {
+            merged[k++] = j >= other.medians.length || (i < medians.length && medians[i] <= other.medians[j])
+                ? medians[i++]
+                : other.medians[j++];
+        }
+        return merged;
+    }
+
+    private long[] mergeWeights(AggregationSummary other) {
+        long[] merged = new long[medianWeights.length + other.medianWeights.length];
+        int i = 0, j = 0, k = 0;
+        while (i < medians.length || j < other.medians.length) {
+            merged[k++] = j >= other.medians.length || (i < medians.length && medians[i] <= other.medians[j])
+                ? medianWeights[i++]
+                : other.medianWeights[j++];
+        }
+        return merged;
+    }
+}
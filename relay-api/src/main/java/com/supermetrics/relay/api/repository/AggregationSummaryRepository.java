@@ -0,0 +1,334 @@
+package com.supermetrics.relay.api.repository;
+
+import com.supermetrics.relay.common.domain.DeviceType;
+import com.supermetrics.relay.common.entity.DeviceEventAggregation;
+import com.supermetrics.relay.common.sketch.TDigest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Reduces the aggregation rows matching a filter to a single {@link AggregationSummary} in one
+ * statement, so a month of zone rows never leaves Postgres as entities. {@code first}/{@code last}
+ * are TimescaleDB aggregates ordered by window start.
+ */
+@Repository
+public class AggregationSummaryRepository {
+
+    private static final String COLUMNS = """
+               COUNT(*) AS row_count,
+               CASE WHEN COUNT(DISTINCT device_id) = 1 AND COUNT(device_id) = COUNT(*)
+                    THEN MIN(device_id) END AS device_id,
+               CASE WHEN COUNT(DISTINCT zone) = 1 AND COUNT(zone) = COUNT(*)
+                    THEN MIN(zone) END AS zone,
+               first(device_type, time_window_start) AS device_type,
+               last(zone, time_window_start) AS latest_zone,
+               last(device_type, time_window_start) AS latest_device_type,
+               SUM(avg_value * count) FILTER (WHERE count > 0) AS weighted_sum,
+               SUM(count) FILTER (WHERE count > 0) AS total_count,
+               MIN(min_value) FILTER (WHERE count > 0) AS min_value,
+               MAX(max_value) FILTER (WHERE count > 0) AS max_value,
+               array_agg(median_value ORDER BY median_value)
+                   FILTER (WHERE count > 0 AND median_value IS NOT NULL) AS medians,
+               array_agg(count ORDER BY median_value)
+                   FILTER (WHERE count > 0 AND median_value IS NOT NULL) AS median_weights
+        FROM device_event_aggregations
+        """;
+
+    private static final String SELECT = "SELECT " + COLUMNS;
+
+    private static final String SELECT_BY_HOUR = "SELECT time_bucket('1 hour', time_window_start) AS hour, " + COLUMNS;
+
+    private static final String SELECT_BY_BUCKET =
+        "SELECT time_bucket(CAST(? AS INTERVAL), time_window_start) AS bucket, " + COLUMNS;
+
+    private static final int SERIES_FETCH_SIZE = 500;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final JdbcTemplate seriesJdbcTemplate;
+    private final QueryConcurrencyLimiter limiter;
+    private final ReplicaRouter replicaRouter;
+
+    public AggregationSummaryRepository(JdbcTemplate jdbcTemplate, QueryConcurrencyLimiter limiter,
+                                        ReplicaRouter replicaRouter) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.limiter = limiter;
+        this.replicaRouter = replicaRouter;
+        this.seriesJdbcTemplate = new JdbcTemplate(jdbcTemplate.getDataSource());
+        this.seriesJdbcTemplate.setFetchSize(SERIES_FETCH_SIZE);
+    }
+
+    /**
+     * Null dimensions are not filtered on. A row matches when it belongs to any of {@code slices}.
+     */
+    public AggregationSummary summarize(String deviceId, String zone, DeviceType deviceType, List<TimeSlice> slices) {
+        if (slices.isEmpty()) {
+            return AggregationSummary.empty();
+        }
+        List<Object> args = new ArrayList<>();
+        String sql = SELECT + where(deviceId, zone, deviceType, slices, args);
+        return limiter.query(() -> replicaRouter.read(slices, () -> jdbcTemplate.query(sql,
+            rs -> rs.next() ? toSummary(rs) : AggregationSummary.empty(), args.toArray())));
+    }
+
+    /**
+     * Same as {@link #summarize} but one summary per hour the matching rows start in. Hours
+     * without rows are absent from the result.
+     */
+    public Map<Instant, AggregationSummary> summarizeByHour(String deviceId, String zone, DeviceType deviceType,
+                                                            List<TimeSlice> slices) {
+        Map<Instant, AggregationSummary> summaries = new HashMap<>();
+        if (slices.isEmpty()) {
+            return summaries;
+        }
+        List<Object> args = new ArrayList<>();
+        String sql = SELECT_BY_HOUR + where(deviceId, zone, deviceType, slices, args) + " GROUP BY hour";
+        return limiter.query(() -> replicaRouter.read(slices, () -> {
+                jdbcTemplate.query(sql, rs -> {
+                    summaries.put(rs.getTimestamp("hour").toInstant(), toSummary(rs));
+                }, args.toArray());
+                return summaries;
+            }));
+    }
+
+    /**
+     * Every value of {@code dimension} with rows, or only those with windows starting at or after
+     * {@code since} when it is given. Without {@code since} TimescaleDB answers with a SkipScan
+     * over the index led by that column instead of reading every row.
+     */
+    public List<String> distinctValues(Dimension dimension, Instant since) {
+        String column = dimension.getColumn();
+        String sql = "SELECT DISTINCT " + column + " FROM device_event_aggregations WHERE " + column + " IS NOT NULL";
+        if (since == null) {
+            return limiter.query(() -> jdbcTemplate.queryForList(sql, String.class));
+        }
+        return limiter.query(() -> jdbcTemplate.queryForList(sql + " AND time_window_start >= ?", String.class,
+            Timestamp.from(since)));
+    }
+
+    /**
+     * Start of the latest {@code windowType} window written, or null when there is none starting
+     * at or after {@code since} (null for no bound). Asked once per device type, so each answer
+     * is a backward scan of the index led by that column that stops at the first row.
+     */
+    public Instant latestWindowStart(DeviceEventAggregation.WindowType windowType, Instant since) {
+        String sql = "SELECT max(time_window_start) FROM device_event_aggregations"
+            + " WHERE device_type = ? AND window_type = ?" + (since != null ? " AND time_window_start >= ?" : "");
+        Instant latest = null;
+        for (DeviceType deviceType : DeviceType.values()) {
+            Object[] args = since != null
+                ? new Object[]{deviceType.name(), windowType.name(), Timestamp.from(since)}
+                : new Object[]{deviceType.name(), windowType.name()};
+            Timestamp start = limiter.query(() -> jdbcTemplate.queryForObject(sql, Timestamp.class, args));
+            if (start != null && (latest == null || start.toInstant().isAfter(latest))) {
+                latest = start.toInstant();
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * One summary per value of {@code dimension} in {@code values}, from a single
+     * {@code = ANY(?)} statement grouped by that column. Values without rows are absent.
+     */
+    public Map<String, AggregationSummary> summarizeByDimension(Dimension dimension, Collection<String> values,
+                                                                List<TimeSlice> slices) {
+        Map<String, AggregationSummary> summaries = new HashMap<>();
+        if (values.isEmpty() || slices.isEmpty()) {
+            return summaries;
+        }
+        List<Object> args = new ArrayList<>();
+        String column = dimension.getColumn();
+        String sql = "SELECT " + column + " AS target, " + COLUMNS
+            + "WHERE " + column + " = ANY(?) AND " + ranges(slices, args)
+            + " GROUP BY " + column;
+        return limiter.query(() -> replicaRouter.read(slices, () -> {
+                jdbcTemplate.query(connection -> {
+                    PreparedStatement statement = connection.prepareStatement(sql);
+                    statement.setArray(1, connection.createArrayOf("varchar", values.toArray()));
+                    for (int i = 0; i < args.size(); i++) {
+                        statement.setObject(i + 2, args.get(i));
+                    }
+                    return statement;
+                }, rs -> {
+                    summaries.put(rs.getString("target"), toSummary(rs));
+                });
+                return summaries;
+            }));
+    }
+
+    /**
+     * The {@code limit} devices matching {@code zone} and {@code deviceType} (null is not filtered
+     * on) with the highest {@code metric}, or the lowest when {@code ascending}, in rank order.
+     * Devices without events are left out; ties are broken by device id.
+     */
+    public Map<String, AggregationSummary> rankDevices(String zone, DeviceType deviceType, RankingMetric metric,
+                                                       boolean ascending, int limit, List<TimeSlice> slices) {
+        Map<String, AggregationSummary> ranked = new LinkedHashMap<>();
+        if (slices.isEmpty()) {
+            return ranked;
+        }
+        List<Object> args = new ArrayList<>();
+        String sql = "SELECT device_id AS target, " + COLUMNS + where(null, zone, deviceType, slices, args)
+            + " GROUP BY device_id"
+            + " HAVING SUM(count) FILTER (WHERE count > 0) > 0"
+            + " ORDER BY " + metric.getExpression() + (ascending ? " ASC" : " DESC") + ", device_id"
+            + " LIMIT ?";
+        args.add(limit);
+        return limiter.query(() -> replicaRouter.read(slices, () -> {
+                jdbcTemplate.query(sql, rs -> {
+                    ranked.put(rs.getString("target"), toSummary(rs));
+                }, args.toArray());
+                return ranked;
+            }));
+    }
+
+    /**
+     * One summary per device and hour for the devices matching {@code zone} and
+     * {@code deviceType}, keyed by hour and then device id. Hours without rows are absent.
+     */
+    public Map<Instant, Map<String, AggregationSummary>> summarizeDevicesByHour(String zone, DeviceType deviceType,
+                                                                               List<TimeSlice> slices) {
+        Map<Instant, Map<String, AggregationSummary>> summaries = new HashMap<>();
+        if (slices.isEmpty()) {
+            return summaries;
+        }
+        List<Object> args = new ArrayList<>();
+        String sql = "SELECT device_id AS target, time_bucket('1 hour', time_window_start) AS hour, " + COLUMNS
+            + where(null, zone, deviceType, slices, args) + " GROUP BY hour, device_id";
+        return limiter.query(() -> replicaRouter.read(slices, () -> {
+                jdbcTemplate.query(sql, rs -> {
+                    summaries.computeIfAbsent(rs.getTimestamp("hour").toInstant(), hour -> new HashMap<>())
+                        .put(rs.getString("target"), toSummary(rs));
+                }, args.toArray());
+                return summaries;
+            }));
+    }
+
+    /**
+     * Streams one summary per {@code bucket}-sized time_bucket, in bucket order, to
+     * {@code consumer}. Rows are read through a cursor of {@value #SERIES_FETCH_SIZE} rows, which
+     * the Postgres driver only uses inside a transaction.
+     */
+    public void streamByBucket(String deviceId, String zone, DeviceType deviceType, TimeSlice slice,
+                               Duration bucket, BiConsumer<Instant, AggregationSummary> consumer) {
+        List<Object> args = new ArrayList<>();
+        args.add(bucket.toSeconds() + " seconds");
+        String sql = SELECT_BY_BUCKET + where(deviceId, zone, deviceType, List.of(slice), args)
+            + " GROUP BY bucket ORDER BY bucket";
+        try (QueryConcurrencyLimiter.Permit permit = limiter.acquireStreaming()) {
+            replicaRouter.read(List.of(slice), () -> seriesJdbcTemplate.query(sql, rs -> {
+                consumer.accept(rs.getTimestamp("bucket").toInstant(), toSummary(rs));
+            }, args.toArray()));
+        }
+    }
+
+    /**
+     * Merges the persisted sketch of every matching row with events into one digest, reading the
+     * sketches through the same {@value #SERIES_FETCH_SIZE}-row cursor as {@link #streamByBucket}
+     * so only one batch of them is in memory. Rows without a sketch are skipped.
+     */
+    public TDigest mergeDigests(String deviceId, String zone, DeviceType deviceType, List<TimeSlice> slices) {
+        TDigest merged = new TDigest();
+        if (slices.isEmpty()) {
+            return merged;
+        }
+        List<Object> args = new ArrayList<>();
+        String sql = "SELECT digest FROM device_event_aggregations " + where(deviceId, zone, deviceType, slices, args)
+            + " AND count > 0 AND digest IS NOT NULL";
+        try (QueryConcurrencyLimiter.Permit permit = limiter.acquireStreaming()) {
+            replicaRouter.read(slices, () -> seriesJdbcTemplate.query(sql, rs -> {
+                merged.merge(TDigest.fromBytes(rs.getBytes("digest")));
+            }, args.toArray()));
+        }
+        return merged;
+    }
+
+    static String where(String deviceId, String zone, DeviceType deviceType, List<TimeSlice> slices,
+                                List<Object> args) {
+        List<String> conditions = new ArrayList<>();
+        if (deviceId != null) {
+            conditions.add("device_id = ?");
+            args.add(deviceId);
+        }
+        if (zone != null) {
+            conditions.add("zone = ?");
+            args.add(zone);
+        }
+        if (deviceType != null) {
+            conditions.add("device_type = ?");
+            args.add(deviceType.name());
+        }
+        conditions.add(ranges(slices, args));
+        return "WHERE " + String.join(" AND ", conditions);
+    }
+
+    /**
+     * A window overlaps a slice when it starts before the slice ends and ends after it starts.
+     * The second half is repeated as a bound on {@code time_window_start}, which is exact because
+     * every window is {@link DeviceEventAggregation.WindowType#getSize()} long; without it
+     * TimescaleDB cannot exclude the chunks before the slice.
+     */
+    private static String ranges(List<TimeSlice> slices, List<Object> args) {
+        List<String> ranges = new ArrayList<>();
+        for (TimeSlice slice : slices) {
+            ranges.add("(window_type = ? AND time_window_start < ? AND time_window_start > ?"
+                + " AND time_window_end > ?)");
+            args.add(slice.windowType().name());
+            args.add(Timestamp.from(slice.end()));
+            args.add(Timestamp.from(slice.start().minus(slice.windowType().getSize())));
+            args.add(Timestamp.from(slice.start()));
+        }
+        return "(" + String.join(" OR ", ranges) + ")";
+    }
+
+    private static AggregationSummary toSummary(ResultSet rs) throws SQLException {
+        long rows = rs.getLong("row_count");
+        if (rows == 0) {
+            return AggregationSummary.empty();
+        }
+        Object[] medians = arrayValues(rs.getArray("medians"));
+        Object[] weights = arrayValues(rs.getArray("median_weights"));
+        double[] medianValues = new double[medians.length];
+        long[] medianWeights = new long[weights.length];
+        for (int i = 0; i < medians.length; i++) {
+            medianValues[i] = ((Number) medians[i]).doubleValue();
+            medianWeights[i] = ((Number) weights[i]).longValue();
+        }
+        return new AggregationSummary(
+            rows,
+            rs.getString("device_id"),
+            rs.getString("zone"),
+            deviceType(rs.getString("device_type")),
+            rs.getString("latest_zone"),
+            deviceType(rs.getString("latest_device_type")),
+            rs.getDouble("weighted_sum"),
+            rs.getLong("total_count"),
+            rs.getObject("min_value", Double.class),
+            rs.getObject("max_value", Double.class),
+            medianValues,
+            medianWeights);
+    }
+
+    private static Object[] arrayValues(Array array) throws SQLException {
+        return array == null ? new Object[0] : (Object[]) array.getArray();
+    }
+
+    private static DeviceType deviceType(String value) {
+        return value == null ? null : DeviceType.valueOf(value);
+    }
+}
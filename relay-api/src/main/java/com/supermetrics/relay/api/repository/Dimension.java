@@ -0,0 +1,20 @@
+package com.supermetrics.relay.api.repository;
+
+/**
+ * Aggregation columns a batch query can group by.
+ */
+public enum Dimension {
+    DEVICE_ID("device_id"),
+    ZONE("zone"),
+    DEVICE_TYPE("device_type");
+
+    private final String column;
+
+    Dimension(String column) {
+        this.column = column;
+    }
+
+    String getColumn() {
+        return column;
+    }
+}
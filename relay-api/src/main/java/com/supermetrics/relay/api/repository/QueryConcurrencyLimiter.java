@@ -0,0 +1,106 @@
+package com.supermetrics.relay.api.repository;
+
+import com.supermetrics.relay.api.config.ApiProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Bounds how many statements the repositories run at once. With virtual threads the number of
+ * request threads is no longer a limit, so without this every burst would queue on the Hikari
+ * pool and starve the listener connection. Streaming reads hold their connection for the whole
+ * response and get a separate, smaller budget so exports cannot crowd out dashboard queries.
+ *
+ * Permits in use are published as {@code relay.api.queries.active} and rejections as
+ * {@code relay.api.queries.rejected}, both tagged {@code kind=interactive|streaming}.
+ */
+@Component
+public class QueryConcurrencyLimiter {
+
+    private final Semaphore queries;
+    private final Semaphore streamingQueries;
+    private final Duration acquireTimeout;
+    private final Counter rejectedQueries;
+    private final Counter rejectedStreamingQueries;
+
+    public QueryConcurrencyLimiter(ApiProperties properties, MeterRegistry meterRegistry) {
+        ApiProperties.Concurrency concurrency = properties.getConcurrency();
+        this.queries = new Semaphore(concurrency.getMaxQueries(), true);
+        this.streamingQueries = new Semaphore(concurrency.getMaxStreamingQueries(), true);
+        this.acquireTimeout = concurrency.getAcquireTimeout();
+        this.rejectedQueries = register(meterRegistry, "interactive", queries, concurrency.getMaxQueries());
+        this.rejectedStreamingQueries = register(meterRegistry, "streaming", streamingQueries,
+            concurrency.getMaxStreamingQueries());
+    }
+
+    /**
+     * Runs {@code query} once a permit is available.
+     *
+     * @throws QueryRejectedException when no permit frees up within the acquire timeout
+     */
+    public <T> T query(Supplier<T> query) {
+        acquire(queries, rejectedQueries);
+        try {
+            return query.get();
+        } finally {
+            queries.release();
+        }
+    }
+
+    /**
+     * Takes a streaming permit, which the caller releases by closing the returned handle once its
+     * cursor is closed.
+     *
+     * @throws QueryRejectedException when no permit frees up within the acquire timeout
+     */
+    public Permit acquireStreaming() {
+        acquire(streamingQueries, rejectedStreamingQueries);
+        return new Permit(streamingQueries);
+    }
+
+    private void acquire(Semaphore semaphore, Counter rejected) {
+        boolean acquired;
+        try {
+            acquired = semaphore.tryAcquire(acquireTimeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QueryRejectedException("Interrupted while waiting to run a query");
+        }
+        if (!acquired) {
+            rejected.increment();
+            throw new QueryRejectedException("No query slot available within " + acquireTimeout);
+        }
+    }
+
+    private static Counter register(MeterRegistry meterRegistry, String kind, Semaphore semaphore, int permits) {
+        Gauge.builder("relay.api.queries.active", semaphore, s -> permits - s.availablePermits())
+            .tag("kind", kind)
+            .register(meterRegistry);
+        return Counter.builder("relay.api.queries.rejected")
+            .tag("kind", kind)
+            .register(meterRegistry);
+    }
+
+    public static final class Permit implements AutoCloseable {
+        private final Semaphore semaphore;
+        private boolean released;
+
+        private Permit(Semaphore semaphore) {
+            this.semaphore = semaphore;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                semaphore.release();
+            }
+        }
+    }
+}
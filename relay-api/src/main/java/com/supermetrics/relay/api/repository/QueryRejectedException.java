@@ -0,0 +1,14 @@
+package com.supermetrics.relay.api.repository;
+
+import org.springframework.dao.TransientDataAccessResourceException;
+
+/**
+ * Thrown when a statement could not start within {@code relay.api.concurrency.acquire-timeout}.
+ * Retrying later may succeed.
+ */
+public class QueryRejectedException extends TransientDataAccessResourceException {
+
+    public QueryRejectedException(String message) {
+        super(message);
+    }
+}
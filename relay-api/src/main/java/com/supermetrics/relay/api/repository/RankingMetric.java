@@ -0,0 +1,51 @@
+package com.supermetrics.relay.api.repository;
+
+import java.util.Optional;
+
+/**
+ * Values devices can be ranked by, as written in the {@code metric} parameter. Each has the SQL
+ * expression used to rank groups in Postgres and the equivalent for a merged
+ * {@link AggregationSummary}; both ignore rows without events.
+ */
+public enum RankingMetric {
+    AVG("avg", "SUM(avg_value * count) FILTER (WHERE count > 0) / SUM(count) FILTER (WHERE count > 0)"),
+    MAX("max", "MAX(max_value) FILTER (WHERE count > 0)"),
+    MIN("min", "MIN(min_value) FILTER (WHERE count > 0)"),
+    COUNT("count", "SUM(count) FILTER (WHERE count > 0)");
+
+    private final String parameter;
+    private final String expression;
+
+    RankingMetric(String parameter, String expression) {
+        this.parameter = parameter;
+        this.expression = expression;
+    }
+
+    String getExpression() {
+        return expression;
+    }
+
+    /**
+     * Null when the summary has no events.
+     */
+    public Double valueOf(AggregationSummary summary) {
+        if (summary.count() == 0) {
+            return null;
+        }
+        return switch (this) {
+            case AVG -> summary.weightedSum() / summary.count();
+            case MAX -> summary.maxValue();
+            case MIN -> summary.minValue();
+            case COUNT -> (double) summary.count();
+        };
+    }
+
+    public static Optional<RankingMetric> fromParameter(String parameter) {
+        for (RankingMetric metric : values()) {
+            if (metric.parameter.equals(parameter)) {
+                return Optional.of(metric);
+            }
+        }
+        return Optional.empty();
+    }
+}
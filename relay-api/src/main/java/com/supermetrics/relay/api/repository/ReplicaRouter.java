@@ -0,0 +1,264 @@
+package com.supermetrics.relay.api.repository;
+
+import com.supermetrics.relay.api.config.ApiProperties;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Sends range reads to read-only replicas so dashboard scans stay off the primary the processor
+ * writes to. {@link #dataSource()} routes each new connection to the target chosen by the
+ * enclosing {@link #read} call, and to the primary outside one, so writes, LISTEN and anything
+ * not routed explicitly keep using the primary.
+ *
+ * A replica is used only when its measured lag is at most {@code max-lag} and the range ended
+ * more than {@code primary-window} plus that lag ago; ranges touching the last few minutes, and
+ * every read while no replica qualifies, go to the primary. Lag is probed every
+ * {@code probe-interval} against the primary's WAL position; a replica that cannot be probed is
+ * skipped until it can.
+ *
+ * Read latency is published as {@code relay.api.datasource.reads} and replica lag in seconds as
+ * {@code relay.api.datasource.replica.lag}, both tagged {@code target=primary|replica-N}.
+ */
+public class ReplicaRouter implements SmartLifecycle, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ReplicaRouter.class);
+
+    public static final String PRIMARY = "primary";
+
+    private static final String PRIMARY_LSN_SQL = "SELECT pg_current_wal_lsn()::text";
+
+    // Replayed up to the primary's position, read just before, means caught up however long ago
+    // the last write was. Comparing with what the replica itself received would also read as
+    // caught up when its WAL receiver has disconnected.
+    private static final String LAG_SQL = """
+        SELECT CASE WHEN NOT pg_is_in_recovery() OR pg_last_wal_replay_lsn() >= CAST(? AS pg_lsn) THEN 0
+                    ELSE EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) END
+        """;
+
+    private final DataSource primary;
+    private final Map<String, DataSource> replicas;
+    private final ApiProperties.Replicas properties;
+    private final Clock clock;
+    private final RoutingDataSource routingDataSource;
+    private final ThreadLocal<String> currentTarget = new ThreadLocal<>();
+    private final Map<String, Duration> lag = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new HashMap<>();
+    private final AtomicInteger next = new AtomicInteger();
+
+    private ScheduledExecutorService executor;
+
+    public ReplicaRouter(DataSource primary, Map<String, DataSource> replicas, ApiProperties properties,
+                         MeterRegistry meterRegistry) {
+        this(primary, replicas, properties, meterRegistry, Clock.systemUTC());
+    }
+
+    ReplicaRouter(DataSource primary, Map<String, DataSource> replicas, ApiProperties properties,
+                  MeterRegistry meterRegistry, Clock clock) {
+        this.primary = primary;
+        this.replicas = new LinkedHashMap<>(replicas);
+        this.properties = properties.getReplicas();
+        this.clock = clock;
+
+        Map<Object, Object> targets = new HashMap<>(this.replicas);
+        targets.put(PRIMARY, primary);
+        this.routingDataSource = new RoutingDataSource();
+        this.routingDataSource.setTargetDataSources(targets);
+        this.routingDataSource.setDefaultTargetDataSource(primary);
+        this.routingDataSource.afterPropertiesSet();
+
+        timers.put(PRIMARY, timer(meterRegistry, PRIMARY));
+        for (String name : this.replicas.keySet()) {
+            timers.put(name, timer(meterRegistry, name));
+            Gauge.builder("relay.api.datasource.replica.lag", lag,
+                    measured -> measured.containsKey(name) ? measured.get(name).toMillis() / 1000.0 : Double.NaN)
+                .tag("target", name)
+                .register(meterRegistry);
+        }
+    }
+
+    /**
+     * Connections from this data source go to the target of the enclosing {@link #read}, or the
+     * primary.
+     */
+    public DataSource dataSource() {
+        return routingDataSource;
+    }
+
+    /**
+     * Runs {@code query} against a replica when the rows of {@code slices} are old enough for it
+     * to have them, otherwise against the primary. Connections already bound to the thread, such
+     * as inside a transaction that has run a statement, are not rerouted.
+     */
+    public <T> T read(List<TimeSlice> slices, Supplier<T> query) {
+        String target = choose(lastWindowEnd(slices));
+        String previous = currentTarget.get();
+        currentTarget.set(target);
+        Timer.Sample sample = Timer.start();
+        try {
+            return query.get();
+        } finally {
+            sample.stop(timers.get(target));
+            if (previous == null) {
+                currentTarget.remove();
+            } else {
+                currentTarget.set(previous);
+            }
+        }
+    }
+
+    /**
+     * {@link #read(List, Supplier)} for queries that hand rows to a callback.
+     */
+    public void read(List<TimeSlice> slices, Runnable query) {
+        read(slices, () -> {
+            query.run();
+            return null;
+        });
+    }
+
+    String choose(Instant rangeEnd) {
+        if (replicas.isEmpty() || rangeEnd == null) {
+            return PRIMARY;
+        }
+        Instant now = clock.instant();
+        List<String> eligible = new ArrayList<>(replicas.size());
+        for (String name : replicas.keySet()) {
+            Duration replicaLag = lag.get(name);
+            if (replicaLag != null && replicaLag.compareTo(properties.getMaxLag()) <= 0
+                    && !rangeEnd.plus(properties.getPrimaryWindow()).plus(replicaLag).isAfter(now)) {
+                eligible.add(name);
+            }
+        }
+        if (eligible.isEmpty()) {
+            return PRIMARY;
+        }
+        return eligible.get(Math.floorMod(next.getAndIncrement(), eligible.size()));
+    }
+
+    /**
+     * Measures how far each replica is behind the primary's current WAL position; replicas that
+     * fail, and every replica while the primary cannot be read, are marked unknown.
+     */
+    void probe() {
+        String primaryLsn;
+        try {
+            primaryLsn = new JdbcTemplate(primary).queryForObject(PRIMARY_LSN_SQL, String.class);
+        } catch (RuntimeException e) {
+            if (!lag.isEmpty()) {
+                logger.warn("Cannot read the primary's WAL position, reading from the primary: {}", e.getMessage());
+                lag.clear();
+            }
+            return;
+        }
+        for (Map.Entry<String, DataSource> replica : replicas.entrySet()) {
+            try {
+                Double seconds = new JdbcTemplate(replica.getValue()).queryForObject(LAG_SQL, Double.class, primaryLsn);
+                if (seconds == null) {
+                    lag.remove(replica.getKey());
+                } else {
+                    lag.put(replica.getKey(), Duration.ofMillis((long) (Math.max(0.0, seconds) * 1000)));
+                }
+            } catch (RuntimeException e) {
+                if (lag.remove(replica.getKey()) != null) {
+                    logger.warn("Replica {} is unavailable, reading from the primary: {}",
+                        replica.getKey(), e.getMessage());
+                }
+            }
+        }
+    }
+
+    void recordLag(String replica, Duration replicaLag) {
+        lag.put(replica, replicaLag);
+    }
+
+    /**
+     * End of the last window the slices read: slice ends rounded up to their window size, since
+     * an unaligned end still reads the whole window it falls in.
+     */
+    static Instant lastWindowEnd(List<TimeSlice> slices) {
+        Instant end = null;
+        for (TimeSlice slice : slices) {
+            long size = slice.windowType().getSize().toMillis();
+            Instant windowEnd = Instant.ofEpochMilli(Math.ceilDiv(slice.end().toEpochMilli(), size) * size);
+            if (end == null || windowEnd.isAfter(end)) {
+                end = windowEnd;
+            }
+        }
+        return end;
+    }
+
+    @Override
+    public void start() {
+        if (replicas.isEmpty()) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replica-lag-probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::probe, 0, properties.getProbeInterval().toMillis(),
+            TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return executor != null;
+    }
+
+    /**
+     * Closes the replica pools; the primary belongs to the application context.
+     */
+    @Override
+    public void close() throws IOException {
+        for (DataSource replica : replicas.values()) {
+            if (replica instanceof Closeable closeable) {
+                closeable.close();
+            }
+        }
+    }
+
+    private static Timer timer(MeterRegistry meterRegistry, String target) {
+        return Timer.builder("relay.api.datasource.reads")
+            .tag("target", target)
+            .register(meterRegistry);
+    }
+
+    private final class RoutingDataSource extends AbstractRoutingDataSource {
+        @Override
+        protected Object determineCurrentLookupKey() {
+            return currentTarget.get();
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.supermetrics.relay.api.repository;
+
+import com.supermetrics.relay.common.entity.DeviceEventAggregation;
+
+import java.time.Instant;
+
+/**
+ * Rows of one window type overlapping {@code [start, end)}.
+ */
+public record TimeSlice(DeviceEventAggregation.WindowType windowType, Instant start, Instant end) {}
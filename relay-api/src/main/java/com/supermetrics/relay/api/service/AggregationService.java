@@ -2,131 +2,534 @@ package com.supermetrics.relay.api.service;
 
 import com.supermetrics.relay.common.domain.DeviceType;
 import com.supermetrics.relay.common.entity.DeviceEventAggregation;
-import com.supermetrics.relay.api.repository.DeviceEventAggregationRepository;
+import com.supermetrics.relay.common.domain.LiveAggregation;
+import com.supermetrics.relay.common.sketch.TDigest;
+import com.supermetrics.relay.api.client.LiveAggregationClient;
+import com.supermetrics.relay.api.config.ApiProperties;
+import com.supermetrics.relay.api.repository.AggregationRowRepository;
+import com.supermetrics.relay.api.repository.AggregationSummary;
+import com.supermetrics.relay.api.repository.AggregationSummaryRepository;
+import com.supermetrics.relay.api.repository.Dimension;
+import com.supermetrics.relay.api.repository.RankingMetric;
+import com.supermetrics.relay.api.repository.TimeSlice;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.client.RestClientException;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 @Service
 public class AggregationService {
     
-    private final DeviceEventAggregationRepository aggregationRepository;
+    private static final DeviceEventAggregation.WindowType[] RESOLUTIONS = {
+        DeviceEventAggregation.WindowType.MINUTE,
+        DeviceEventAggregation.WindowType.HOURLY,
+        DeviceEventAggregation.WindowType.DAILY
+    };
     
-    public AggregationService(DeviceEventAggregationRepository aggregationRepository) {
-        this.aggregationRepository = aggregationRepository;
+    private static final Logger logger = LoggerFactory.getLogger(AggregationService.class);
+    
+    private final AggregationSummaryRepository summaryRepository;
+    private final AggregationRowRepository rowRepository;
+    private final LiveAggregationClient liveAggregationClient;
+    private final HourlyAggregationCache hourlyCache;
+    private final KnownKeys knownKeys;
+    private final ApiProperties.Batch batchProperties;
+    private final ApiProperties.Ranking rankingProperties;
+    private final Instant rollupsSince;
+    
+    public AggregationService(AggregationSummaryRepository summaryRepository,
+                              AggregationRowRepository rowRepository,
+                              LiveAggregationClient liveAggregationClient,
+                              HourlyAggregationCache hourlyCache,
+                              KnownKeys knownKeys,
+                              ApiProperties properties) {
+        this.summaryRepository = summaryRepository;
+        this.rowRepository = rowRepository;
+        this.liveAggregationClient = liveAggregationClient;
+        this.hourlyCache = hourlyCache;
+        this.knownKeys = knownKeys;
+        this.batchProperties = properties.getBatch();
+        this.rankingProperties = properties.getRanking();
+        this.rollupsSince = properties.getRollups().getSince();
     }
     
+    /**
+     * Hours that may still be rolling up are served from the processor's state store and merged
+     * with the closed hours from Postgres. If the processor cannot answer, the whole range is read
+     * from Postgres as before.
+     */
     public AggregationResult getAggregationsByDevice(String deviceId, Instant startTime, Instant endTime) {
-        List<DeviceEventAggregation> aggregations = aggregationRepository
-            .findByDeviceIdAndTimeRange(deviceId, startTime, endTime);
-        return aggregateResults(aggregations, startTime, endTime);
+        Optional<Instant> liveFrom = liveAggregationClient.liveFrom().filter(endTime::isAfter);
+        if (liveFrom.isEmpty()) {
+            return toResult(summarize(deviceId, null, null, startTime, endTime), startTime, endTime);
+        }
+        Instant liveStart = liveFrom.get().isAfter(startTime) ? liveFrom.get() : startTime;
+        AggregationSummary stored = liveStart.isAfter(startTime)
+            ? summarize(deviceId, null, null, startTime, liveStart)
+            : AggregationSummary.empty();
+        Optional<LiveAggregation> live;
+        try {
+            live = liveAggregationClient.findDeviceAggregation(deviceId,
+                stored.latestZone(), stored.latestDeviceType(), liveStart, endTime);
+        } catch (RestClientException e) {
+            logger.warn("Live aggregation unavailable for device {}, reading Postgres only: {}", deviceId, e.getMessage());
+            return toResult(summarize(deviceId, null, null, startTime, endTime), startTime, endTime);
+        }
+        return toResult(live.map(l -> merge(stored, l)).orElse(stored), startTime, endTime);
     }
     
     public AggregationResult getAggregationsByZone(String zone, Instant startTime, Instant endTime) {
-        List<DeviceEventAggregation> aggregations = aggregationRepository
-            .findByZoneAndTimeRange(zone, startTime, endTime);
-        return aggregateResults(aggregations, startTime, endTime);
+        return toResult(summarize(null, zone, null, startTime, endTime), startTime, endTime);
     }
     
     public AggregationResult getAggregationsByDeviceType(DeviceType deviceType, Instant startTime, Instant endTime) {
-        List<DeviceEventAggregation> aggregations = aggregationRepository
-            .findByDeviceTypeAndTimeRange(deviceType, startTime, endTime);
-        return aggregateResults(aggregations, startTime, endTime);
+        return toResult(summarize(null, null, deviceType, startTime, endTime), startTime, endTime);
     }
     
     public AggregationResult getAggregationsByZoneAndType(String zone, DeviceType deviceType, 
                                                           Instant startTime, Instant endTime) {
-        List<DeviceEventAggregation> aggregations = aggregationRepository
-            .findByZoneAndDeviceTypeAndTimeRange(zone, deviceType, startTime, endTime);
-        return aggregateResults(aggregations, startTime, endTime);
+        return toResult(summarize(null, zone, deviceType, startTime, endTime), startTime, endTime);
     }
     
-    private AggregationResult aggregateResults(List<DeviceEventAggregation> aggregations, 
-                                               Instant startTime, Instant endTime) {
-        if (aggregations.isEmpty()) {
-            return new AggregationResult(
-                null, null, null, startTime, endTime, null, null, null, null, 0L
-            );
+    /**
+     * Aggregates every requested target over the same range with one grouped query per
+     * dimension. Targets without data are left out of the maps. Reads Postgres only.
+     *
+     * @throws IllegalArgumentException when the request exceeds {@code relay.api.batch} limits
+     */
+    public BatchResult getBatchAggregations(Collection<String> deviceIds, Collection<String> zones,
+                                            Collection<DeviceType> deviceTypes, Instant startTime, Instant endTime) {
+        Set<String> devices = new LinkedHashSet<>(deviceIds);
+        Set<String> zoneSet = new LinkedHashSet<>(zones);
+        Set<String> types = new LinkedHashSet<>();
+        for (DeviceType deviceType : deviceTypes) {
+            types.add(deviceType.name());
         }
+        int targets = devices.size() + zoneSet.size() + types.size();
+        if (targets > batchProperties.getMaxTargets()) {
+            throw new IllegalArgumentException("Batch of " + targets + " targets exceeds the limit of "
+                + batchProperties.getMaxTargets());
+        }
+        if (Duration.between(startTime, endTime).compareTo(batchProperties.getMaxRange()) > 0) {
+            throw new IllegalArgumentException("Batch range exceeds " + batchProperties.getMaxRange());
+        }
+        List<TimeSlice> slices = planSlices(startTime, endTime);
         
-        DeviceEventAggregation first = aggregations.get(0);
-        final String firstDeviceId = first.getDeviceId();
-        final String firstZone = first.getZone();
-        DeviceType deviceType = first.getDeviceType();
-        
-        boolean allSameDeviceId = aggregations.stream().allMatch(a -> 
-            (firstDeviceId == null && a.getDeviceId() == null) || 
-            (firstDeviceId != null && firstDeviceId.equals(a.getDeviceId())));
-        boolean allSameZone = aggregations.stream().allMatch(a -> 
-            (firstZone == null && a.getZone() == null) || 
-            (firstZone != null && firstZone.equals(a.getZone())));
-        
-        String deviceId = allSameDeviceId ? firstDeviceId : null;
-        String zone = allSameZone ? firstZone : null;
-        
-        double weightedSum = 0.0;
-        long totalCount = 0;
-        double minValue = Double.MAX_VALUE;
-        double maxValue = Double.MIN_VALUE;
-        List<WeightedValue> weightedMedians = new ArrayList<>();
-        
-        for (DeviceEventAggregation agg : aggregations) {
-            long count = agg.getCount();
-            if (count > 0) {
-                weightedSum += agg.getAvgValue() * count;
-                totalCount += count;
-                
-                minValue = Math.min(minValue, agg.getMinValue());
-                maxValue = Math.max(maxValue, agg.getMaxValue());
-                
-                if (agg.getMedianValue() != null) {
-                    weightedMedians.add(new WeightedValue(agg.getMedianValue(), count));
-                }
+        Map<DeviceType, AggregationResult> typeResults = new LinkedHashMap<>();
+        batch(Dimension.DEVICE_TYPE, types, slices, startTime, endTime)
+            .forEach((type, result) -> typeResults.put(DeviceType.valueOf(type), result));
+        return new BatchResult(
+            batch(Dimension.DEVICE_ID, devices, slices, startTime, endTime),
+            batch(Dimension.ZONE, zoneSet, slices, startTime, endTime),
+            typeResults);
+    }
+    
+    private Map<String, AggregationResult> batch(Dimension dimension, Set<String> values, List<TimeSlice> slices,
+                                                 Instant startTime, Instant endTime) {
+        Map<String, AggregationResult> results = new LinkedHashMap<>();
+        Set<String> known = new LinkedHashSet<>();
+        for (String value : values) {
+            if (knownKeys.mayContain(dimension, value)) {
+                known.add(value);
+            }
+        }
+        if (known.isEmpty()) {
+            return results;
+        }
+        Map<String, AggregationSummary> summaries = summaryRepository.summarizeByDimension(dimension, known, slices);
+        for (String value : values) {
+            AggregationSummary summary = summaries.get(value);
+            if (summary != null && summary.count() > 0) {
+                results.put(value, toResult(summary, startTime, endTime));
             }
         }
+        return results;
+    }
+    
+    /**
+     * The {@code limit} devices of a zone and/or device type with the highest {@code metric}
+     * (lowest when {@code ascending}) over the range, in rank order. Ranges the hourly cache
+     * covers are ranked from cached per-device hours, so repeated queries only read the hours not
+     * cached yet; other ranges are ranked in Postgres. Reads Postgres only.
+     *
+     * @throws IllegalArgumentException when {@code limit} is outside 1..{@code relay.api.ranking.max-limit}
+     */
+    public List<AggregationResult> getTopDevices(String zone, DeviceType deviceType, RankingMetric metric,
+                                                 boolean ascending, int limit, Instant startTime, Instant endTime) {
+        if (limit < 1 || limit > rankingProperties.getMaxLimit()) {
+            throw new IllegalArgumentException("limit must be between 1 and " + rankingProperties.getMaxLimit());
+        }
+        Map<String, AggregationSummary> ranked;
+        List<Instant> hours = wholeHours(startTime, endTime);
+        if (!knownKeys.mayContainZone(zone)) {
+            ranked = Map.of();
+        } else if (hours.isEmpty()) {
+            ranked = summaryRepository.rankDevices(zone, deviceType, metric, ascending, limit,
+                planSlices(startTime, endTime));
+        } else {
+            ranked = rank(mergeByDevice(hourlyCache.getAllByDevice(zone, deviceType, hours,
+                missing -> summaryRepository.summarizeDevicesByHour(zone, deviceType, hourlyRuns(missing)))),
+                metric, ascending, limit);
+        }
+        List<AggregationResult> results = new ArrayList<>(ranked.size());
+        ranked.values().forEach(summary -> results.add(toResult(summary, startTime, endTime)));
+        return results;
+    }
+    
+    /**
+     * The hours that exactly make up {@code [startTime, endTime)} for the cache, or none when the
+     * range is not cacheable or has minute-aligned edges inside an hour.
+     */
+    private List<Instant> wholeHours(Instant startTime, Instant endTime) {
+        List<Instant> hours = new ArrayList<>();
+        if (!startTime.isBefore(endTime) || !hourlyCache.covers(startTime, endTime)) {
+            return hours;
+        }
+        boolean minuteAligned = isAligned(startTime, DeviceEventAggregation.WindowType.MINUTE)
+            && isAligned(endTime, DeviceEventAggregation.WindowType.MINUTE);
+        if (minuteAligned && !(isAligned(startTime, DeviceEventAggregation.WindowType.HOURLY)
+                && isAligned(endTime, DeviceEventAggregation.WindowType.HOURLY))) {
+            return hours;
+        }
+        Instant endHour = ceil(endTime, DeviceEventAggregation.WindowType.HOURLY);
+        for (Instant hour = floor(startTime, DeviceEventAggregation.WindowType.HOURLY); hour.isBefore(endHour);
+                hour = hour.plus(DeviceEventAggregation.WindowType.HOURLY.getSize())) {
+            hours.add(hour);
+        }
+        return hours;
+    }
+    
+    private static Map<String, AggregationSummary> mergeByDevice(List<Map<String, AggregationSummary>> hours) {
+        Map<String, AggregationSummary> devices = new HashMap<>();
+        for (Map<String, AggregationSummary> hour : hours) {
+            hour.forEach((deviceId, summary) -> devices.merge(deviceId, summary, AggregationSummary::followedBy));
+        }
+        return devices;
+    }
+    
+    static Map<String, AggregationSummary> rank(Map<String, AggregationSummary> devices, RankingMetric metric,
+                                                boolean ascending, int limit) {
+        Comparator<Map.Entry<String, Double>> byValue = Map.Entry.comparingByValue();
+        Comparator<Map.Entry<String, Double>> order = (ascending ? byValue : byValue.reversed())
+            .thenComparing(Map.Entry.comparingByKey());
+        List<Map.Entry<String, Double>> values = new ArrayList<>();
+        devices.forEach((deviceId, summary) -> {
+            Double value = metric.valueOf(summary);
+            if (value != null) {
+                values.add(Map.entry(deviceId, value));
+            }
+        });
+        values.sort(order);
+        Map<String, AggregationSummary> ranked = new LinkedHashMap<>();
+        for (Map.Entry<String, Double> entry : values.subList(0, Math.min(limit, values.size()))) {
+            ranked.put(entry.getKey(), devices.get(entry.getKey()));
+        }
+        return ranked;
+    }
+    
+    /**
+     * Percentiles in (0, 100] of every reading in the range, keyed by percentile in request order.
+     * Computed by merging the t-digest persisted with each row, so the cost is linear in the
+     * number of rows and uses the coarsest windows that tile the range. Rows written before
+     * sketches were persisted do not contribute; values are null when no row in the range has
+     * one. Reads Postgres only.
+     *
+     * The digest's median and the number of readings it holds come back with the percentiles, so
+     * a caller that already paid for the merge can answer {@code medianValue} from it when the
+     * digest covers every reading of the range.
+     */
+    @Transactional(readOnly = true)
+    public Percentiles getPercentiles(String deviceId, String zone, DeviceType deviceType,
+                                      List<Double> percentiles, Instant startTime, Instant endTime) {
+        TDigest digest = mayExist(deviceId, zone)
+            ? summaryRepository.mergeDigests(deviceId, zone, deviceType, planSlices(startTime, endTime))
+            : new TDigest();
+        Map<Double, Double> values = new LinkedHashMap<>();
+        for (Double percentile : percentiles) {
+            values.put(percentile, digest.size() == 0 ? null : digest.quantile(percentile / 100.0));
+        }
+        return new Percentiles(values, digest.size() == 0 ? null : digest.quantile(0.5), digest.size());
+    }
+    
+    /**
+     * Passes one result per bucket that has rows to {@code consumer}, in time order. Buckets are
+     * built from the HOURLY windows overlapping the range, in Postgres, and are not held in memory;
+     * open hours are not merged in from the processor.
+     */
+    @Transactional(readOnly = true)
+    public void streamSeries(String deviceId, String zone, DeviceType deviceType, SeriesBucket bucket,
+                             Instant startTime, Instant endTime, Consumer<AggregationResult> consumer) {
+        if (!mayExist(deviceId, zone)) {
+            return;
+        }
+        TimeSlice slice = new TimeSlice(DeviceEventAggregation.WindowType.HOURLY, startTime, endTime);
+        summaryRepository.streamByBucket(deviceId, zone, deviceType, slice, bucket.getSize(),
+            (bucketStart, summary) -> consumer.accept(
+                toResult(summary, bucketStart, bucketStart.plus(bucket.getSize()))));
+    }
+    
+    /**
+     * Passes every HOURLY row overlapping the range to {@code consumer}, in window order, while
+     * the database cursor is read.
+     */
+    @Transactional(readOnly = true)
+    public void exportHourlyRows(String deviceId, String zone, DeviceType deviceType,
+                                 Instant startTime, Instant endTime, Consumer<DeviceEventAggregation> consumer) {
+        if (!mayExist(deviceId, zone)) {
+            return;
+        }
+        TimeSlice slice = new TimeSlice(DeviceEventAggregation.WindowType.HOURLY, startTime, endTime);
+        try (Stream<DeviceEventAggregation> rows = rowRepository.streamRows(deviceId, zone, deviceType, slice)) {
+            rows.forEach(consumer);
+        }
+    }
+    
+    /**
+     * False when {@link KnownKeys} knows the device or zone has no rows, so the query can be
+     * skipped.
+     */
+    private boolean mayExist(String deviceId, String zone) {
+        return knownKeys.mayContainDevice(deviceId) && knownKeys.mayContainZone(zone);
+    }
+    
+    /**
+     * Whole hours come from {@link HourlyAggregationCache}; only the uncached ones and the partial
+     * hours at minute-aligned edges are read from Postgres. Ranges that are not minute-aligned
+     * already cover every overlapping hour, so they are served entirely from hours.
+     */
+    private AggregationSummary summarize(String deviceId, String zone, DeviceType deviceType,
+                                         Instant startTime, Instant endTime) {
+        if (!mayExist(deviceId, zone)) {
+            return AggregationSummary.empty();
+        }
+        if (!startTime.isBefore(endTime) || !hourlyCache.covers(startTime, endTime)) {
+            return summaryRepository.summarize(deviceId, zone, deviceType, planSlices(startTime, endTime));
+        }
+        boolean aligned = isAligned(startTime, DeviceEventAggregation.WindowType.MINUTE)
+            && isAligned(endTime, DeviceEventAggregation.WindowType.MINUTE);
+        Instant firstHour = aligned ? ceil(startTime, DeviceEventAggregation.WindowType.HOURLY)
+            : floor(startTime, DeviceEventAggregation.WindowType.HOURLY);
+        Instant endHour = aligned ? floor(endTime, DeviceEventAggregation.WindowType.HOURLY)
+            : ceil(endTime, DeviceEventAggregation.WindowType.HOURLY);
+        if (!firstHour.isBefore(endHour)) {
+            return summaryRepository.summarize(deviceId, zone, deviceType, planSlices(startTime, endTime));
+        }
         
-        Double avgValue = totalCount > 0 ? weightedSum / totalCount : null;
-        Double minVal = minValue == Double.MAX_VALUE ? null : minValue;
-        Double maxVal = maxValue == Double.MIN_VALUE ? null : maxValue;
-        Double medianValue = calculateWeightedMedian(weightedMedians, totalCount);
+        List<AggregationSummary> parts = new ArrayList<>();
+        if (aligned && startTime.isBefore(firstHour)) {
+            parts.add(summaryRepository.summarize(deviceId, zone, deviceType, planSlices(startTime, firstHour)));
+        }
+        List<Instant> hours = new ArrayList<>();
+        for (Instant hour = firstHour; hour.isBefore(endHour); hour = hour.plus(DeviceEventAggregation.WindowType.HOURLY.getSize())) {
+            hours.add(hour);
+        }
+        parts.addAll(hourlyCache.getAll(deviceId, zone, deviceType, hours,
+            missing -> summaryRepository.summarizeByHour(deviceId, zone, deviceType, hourlyRuns(missing))));
+        if (aligned && endHour.isBefore(endTime)) {
+            parts.add(summaryRepository.summarize(deviceId, zone, deviceType, planSlices(endHour, endTime)));
+        }
+        return AggregationSummary.combine(parts);
+    }
+    
+    /**
+     * Collapses sorted hour starts into one HOURLY slice per contiguous run.
+     */
+    static List<TimeSlice> hourlyRuns(List<Instant> hours) {
+        List<TimeSlice> runs = new ArrayList<>();
+        Instant runStart = null;
+        Instant runEnd = null;
+        for (Instant hour : hours) {
+            if (runEnd != null && !hour.equals(runEnd)) {
+                runs.add(new TimeSlice(DeviceEventAggregation.WindowType.HOURLY, runStart, runEnd));
+                runStart = null;
+            }
+            if (runStart == null) {
+                runStart = hour;
+            }
+            runEnd = hour.plus(DeviceEventAggregation.WindowType.HOURLY.getSize());
+        }
+        if (runStart != null) {
+            runs.add(new TimeSlice(DeviceEventAggregation.WindowType.HOURLY, runStart, runEnd));
+        }
+        return runs;
+    }
+    
+    /**
+     * Adds the processor's partial window to a stored summary as if it were one more row after
+     * the stored ones.
+     */
+    static AggregationSummary merge(AggregationSummary stored, LiveAggregation live) {
+        boolean counted = live.count() > 0;
+        return stored.followedBy(new AggregationSummary(1L, live.deviceId(), live.zone(), live.deviceType(),
+            live.zone(), live.deviceType(),
+            counted ? live.avgValue() * live.count() : 0.0,
+            counted ? live.count() : 0L,
+            counted ? live.minValue() : null,
+            counted ? live.maxValue() : null,
+            counted ? new double[]{live.medianValue()} : new double[0],
+            counted ? new long[]{live.count()} : new long[0]));
+    }
+    
+    private List<TimeSlice> planSlices(Instant startTime, Instant endTime) {
+        return planSlices(startTime, endTime, rollupsSince);
+    }
+    
+    /**
+     * Splits a minute-aligned range into the coarsest windows that tile it exactly: whole days in
+     * the middle, whole hours next to them and minutes only at the unaligned edges. A 90-day range
+     * on day boundaries becomes a single DAILY query. Ranges that are not minute-aligned keep the
+     * original semantics of every HOURLY window overlapping the range.
+     *
+     * MINUTE rows only exist from {@code rollupsSince} on, so the part of a range before the first
+     * hour after it also keeps the overlapping-HOURLY semantics, and the DAILY row of the day the
+     * cascade started, which only holds the hours after it, is never used. Without a cut-over
+     * every range is read from overlapping HOURLY windows.
+     */
+    static List<TimeSlice> planSlices(Instant startTime, Instant endTime, Instant rollupsSince) {
+        if (!startTime.isBefore(endTime) || rollupsSince == null
+                || !isAligned(startTime, DeviceEventAggregation.WindowType.MINUTE)
+                || !isAligned(endTime, DeviceEventAggregation.WindowType.MINUTE)) {
+            return List.of(new TimeSlice(DeviceEventAggregation.WindowType.HOURLY, startTime, endTime));
+        }
+        Instant minutesFrom = ceil(rollupsSince, DeviceEventAggregation.WindowType.HOURLY);
+        Instant partialDay = floor(rollupsSince, DeviceEventAggregation.WindowType.DAILY);
+        List<TimeSlice> slices = new ArrayList<>();
+        Instant from = startTime;
+        if (from.isBefore(minutesFrom)) {
+            Instant hoursEnd = endTime.isBefore(minutesFrom)
+                ? ceil(endTime, DeviceEventAggregation.WindowType.HOURLY)
+                : minutesFrom;
+            cover(floor(from, DeviceEventAggregation.WindowType.HOURLY), hoursEnd, RESOLUTIONS.length - 1,
+                partialDay, slices);
+            from = hoursEnd;
+        }
+        cover(from, endTime, RESOLUTIONS.length - 1, partialDay, slices);
+        return joinAdjacent(slices);
+    }
+    
+    private static void cover(Instant startTime, Instant endTime, int level, Instant partialDay,
+                              List<TimeSlice> slices) {
+        if (!startTime.isBefore(endTime)) {
+            return;
+        }
+        DeviceEventAggregation.WindowType windowType = RESOLUTIONS[level];
+        if (level == 0) {
+            slices.add(new TimeSlice(windowType, startTime, endTime));
+            return;
+        }
+        Instant alignedStart = floor(startTime, windowType);
+        if (alignedStart.isBefore(startTime)) {
+            alignedStart = alignedStart.plus(windowType.getSize());
+        }
+        Instant alignedEnd = floor(endTime, windowType);
+        if (!alignedStart.isBefore(alignedEnd)) {
+            cover(startTime, endTime, level - 1, partialDay, slices);
+            return;
+        }
+        cover(startTime, alignedStart, level - 1, partialDay, slices);
+        if (windowType == DeviceEventAggregation.WindowType.DAILY
+                && !partialDay.isBefore(alignedStart) && partialDay.isBefore(alignedEnd)) {
+            Instant nextDay = partialDay.plus(windowType.getSize());
+            cover(alignedStart, partialDay, level, partialDay, slices);
+            cover(partialDay, nextDay, level - 1, partialDay, slices);
+            cover(nextDay, alignedEnd, level, partialDay, slices);
+        } else {
+            slices.add(new TimeSlice(windowType, alignedStart, alignedEnd));
+        }
+        cover(alignedEnd, endTime, level - 1, partialDay, slices);
+    }
+    
+    private static List<TimeSlice> joinAdjacent(List<TimeSlice> slices) {
+        List<TimeSlice> joined = new ArrayList<>(slices.size());
+        for (TimeSlice slice : slices) {
+            TimeSlice last = joined.isEmpty() ? null : joined.get(joined.size() - 1);
+            if (last != null && last.windowType() == slice.windowType() && last.end().equals(slice.start())) {
+                joined.set(joined.size() - 1, new TimeSlice(slice.windowType(), last.start(), slice.end()));
+            } else {
+                joined.add(slice);
+            }
+        }
+        return joined;
+    }
+    
+    private static Instant floor(Instant time, DeviceEventAggregation.WindowType windowType) {
+        long millis = time.toEpochMilli();
+        return Instant.ofEpochMilli(millis - Math.floorMod(millis, windowType.getSize().toMillis()));
+    }
+    
+    private static Instant ceil(Instant time, DeviceEventAggregation.WindowType windowType) {
+        Instant floor = floor(time, windowType);
+        return floor.equals(time) ? time : floor.plus(windowType.getSize());
+    }
+    
+    private static boolean isAligned(Instant time, DeviceEventAggregation.WindowType windowType) {
+        return floor(time, windowType).equals(time);
+    }
+    
+    private AggregationResult toResult(AggregationSummary summary, Instant startTime, Instant endTime) {
+        if (summary.rows() == 0) {
+            return new AggregationResult(
+                null, null, null, startTime, endTime, null, null, null, null, 0L
+            );
+        }
+        long totalCount = summary.count();
+        Double avgValue = totalCount > 0 ? summary.weightedSum() / totalCount : null;
+        Double medianValue = calculateWeightedMedian(summary.medians(), summary.medianWeights(), totalCount);
         
-        return new AggregationResult(deviceId, zone, deviceType, startTime, endTime,
-            avgValue, minVal, maxVal, medianValue, totalCount);
+        return new AggregationResult(summary.deviceId(), summary.zone(), summary.deviceType(), startTime, endTime,
+            avgValue, summary.minValue(), summary.maxValue(), medianValue, totalCount);
     }
     
-    private Double calculateWeightedMedian(List<WeightedValue> weightedValues, long totalCount) {
-        if (weightedValues.isEmpty() || totalCount == 0) {
+    /**
+     * {@code values} arrive sorted from the database, so this is a single cumulative pass.
+     */
+    private Double calculateWeightedMedian(double[] values, long[] weights, long totalCount) {
+        if (values.length == 0 || totalCount == 0) {
             return null;
         }
         
-        weightedValues.sort(Comparator.comparing(w -> w.value));
-        
         long targetWeight = totalCount / 2;
         long cumulativeWeight = 0;
         
-        for (WeightedValue wv : weightedValues) {
-            cumulativeWeight += wv.weight;
+        for (int i = 0; i < values.length; i++) {
+            cumulativeWeight += weights[i];
             if (cumulativeWeight >= targetWeight) {
-                return wv.value;
+                return values[i];
             }
         }
         
-        return weightedValues.get(weightedValues.size() - 1).value;
+        return values[values.length - 1];
     }
     
-    private static class WeightedValue {
-        final double value;
-        final long weight;
-        
-        WeightedValue(double value, long weight) {
-            this.value = value;
-            this.weight = weight;
-        }
-    }
+    public record BatchResult(
+        Map<String, AggregationResult> devices,
+        Map<String, AggregationResult> zones,
+        Map<DeviceType, AggregationResult> deviceTypes
+    ) {}
     
+    /**
+     * @param values percentile values keyed by percentile, in request order
+     * @param median median of the merged digest, or null when it is empty
+     * @param count  number of readings in the merged digest
+     */
+    public record Percentiles(Map<Double, Double> values, Double median, long count) {}
+
     public record AggregationResult(
         String deviceId,
         String zone,
@@ -0,0 +1,177 @@
+package com.supermetrics.relay.api.service;
+
+import com.supermetrics.relay.api.config.ApiProperties;
+import com.supermetrics.relay.api.repository.AggregationNotification;
+import com.supermetrics.relay.api.repository.Dimension;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fans aggregation updates out to SSE subscribers. Each update is looked up once per dimension
+ * it belongs to, so a thousand dashboards watching one zone cost one map lookup and a thousand
+ * queue offers, not a thousand queries.
+ *
+ * The notification listener thread only enqueues: every subscriber has its own queue of
+ * {@code relay.api.subscriptions.queue-size} updates, drained by a virtual thread while it has
+ * any, so a slow client blocks only its own writes. A subscriber whose queue is full is
+ * disconnected rather than allowed to hold up the feed; clients are expected to reconnect.
+ */
+@Component
+public class AggregationUpdateBroadcaster implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(AggregationUpdateBroadcaster.class);
+
+    static final String EVENT_NAME = "aggregation";
+
+    public record Topic(Dimension dimension, String value) {}
+
+    private final Map<Topic, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private final ApiProperties.Subscriptions properties;
+    private final Executor executor;
+
+    @Autowired
+    public AggregationUpdateBroadcaster(ApiProperties properties) {
+        this(properties, Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("sse-subscriber-", 0).factory()));
+    }
+
+    AggregationUpdateBroadcaster(ApiProperties properties, Executor executor) {
+        this.properties = properties.getSubscriptions();
+        this.executor = executor;
+    }
+
+    /**
+     * Registers a new subscriber of {@code topic}. The emitter completes after
+     * {@code relay.api.subscriptions.timeout}; clients are expected to reconnect.
+     */
+    public SseEmitter subscribe(Topic topic) {
+        SseEmitter emitter = new SseEmitter(properties.getTimeout().toMillis());
+        subscribe(topic, emitter);
+        return emitter;
+    }
+
+    void subscribe(Topic topic, SseEmitter emitter) {
+        Subscriber subscriber = new Subscriber(topic, emitter, properties.getQueueSize());
+        subscribers.compute(topic, (t, current) -> {
+            Set<Subscriber> updated = current != null ? current : new CopyOnWriteArraySet<>();
+            updated.add(subscriber);
+            return updated;
+        });
+        emitter.onCompletion(() -> unsubscribe(subscriber));
+        emitter.onTimeout(() -> unsubscribe(subscriber));
+        emitter.onError(e -> unsubscribe(subscriber));
+    }
+
+    @EventListener
+    public void onUpdate(AggregationNotification update) {
+        if (update.deviceId() != null) {
+            send(new Topic(Dimension.DEVICE_ID, update.deviceId()), update);
+        }
+        if (update.zone() != null) {
+            send(new Topic(Dimension.ZONE, update.zone()), update);
+        }
+        if (update.deviceType() != null) {
+            send(new Topic(Dimension.DEVICE_TYPE, update.deviceType().name()), update);
+        }
+    }
+
+    int subscriberCount(Topic topic) {
+        Set<Subscriber> current = subscribers.get(topic);
+        return current == null ? 0 : current.size();
+    }
+
+    @Override
+    public void close() {
+        if (executor instanceof ExecutorService service) {
+            service.shutdownNow();
+        }
+    }
+
+    private void send(Topic topic, AggregationNotification update) {
+        Set<Subscriber> current = subscribers.get(topic);
+        if (current == null) {
+            return;
+        }
+        for (Subscriber subscriber : current) {
+            subscriber.offer(update);
+        }
+    }
+
+    private void unsubscribe(Subscriber subscriber) {
+        subscribers.computeIfPresent(subscriber.topic, (t, current) -> {
+            current.remove(subscriber);
+            return current.isEmpty() ? null : current;
+        });
+    }
+
+    private final class Subscriber {
+        private final Topic topic;
+        private final SseEmitter emitter;
+        private final BlockingQueue<AggregationNotification> pending;
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        Subscriber(Topic topic, SseEmitter emitter, int queueSize) {
+            this.topic = topic;
+            this.emitter = emitter;
+            this.pending = new ArrayBlockingQueue<>(queueSize);
+        }
+
+        void offer(AggregationNotification update) {
+            if (!pending.offer(update)) {
+                logger.debug("Dropping subscriber of {}: more than {} updates behind", topic, pending.size());
+                unsubscribe(this);
+                emitter.complete();
+                return;
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if (!draining.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                draining.set(false);
+            }
+        }
+
+        private void drain() {
+            try {
+                AggregationNotification update;
+                while ((update = pending.poll()) != null) {
+                    emitter.send(SseEmitter.event().name(EVENT_NAME).data(update));
+                }
+            } catch (IOException | IllegalStateException e) {
+                logger.debug("Dropping subscriber of {}: {}", topic, e.getMessage());
+                unsubscribe(this);
+                pending.clear();
+                emitter.completeWithError(e);
+                return;
+            } finally {
+                draining.set(false);
+            }
+            // An update offered after the last poll but before the flag was cleared found the
+            // drain still running and did not schedule one
+            if (!pending.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
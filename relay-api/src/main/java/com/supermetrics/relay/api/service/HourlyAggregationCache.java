@@ -0,0 +1,157 @@
+package com.supermetrics.relay.api.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Weigher;
+import com.supermetrics.relay.api.config.ApiProperties;
+import com.supermetrics.relay.api.repository.AggregationSummary;
+import com.supermetrics.relay.common.domain.DeviceType;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Per-hour {@link AggregationSummary} cache keyed by the query's filter and the hour. An hour with
+ * rows that {@link RollupProgress} reports closed no longer changes and stays until it is evicted
+ * by size; open hours, and hours without rows, which may only be waiting for the processor,
+ * expire after {@code open-hour-ttl}. A second cache, sized by
+ * {@code devices-maximum-size}, holds the per-device summaries of a zone or device type for each
+ * hour under the same expiry rules. Hit, miss and eviction counts are published as
+ * {@code cache.*} meters tagged {@code cache=aggregation-hours} and
+ * {@code cache=aggregation-device-hours}.
+ */
+@Component
+public class HourlyAggregationCache {
+
+    static final String NAME = "aggregation-hours";
+    static final String DEVICES_NAME = "aggregation-device-hours";
+
+    private static final Duration HOUR = Duration.ofHours(1);
+
+    record HourKey(String deviceId, String zone, DeviceType deviceType, Instant hour) {}
+
+    record DevicesHourKey(String zone, DeviceType deviceType, Instant hour) {}
+
+    private final ApiProperties.Cache properties;
+    private final RollupProgress progress;
+    private final Cache<HourKey, AggregationSummary> cache;
+    private final Cache<DevicesHourKey, Map<String, AggregationSummary>> deviceCache;
+
+    public HourlyAggregationCache(ApiProperties properties, MeterRegistry meterRegistry, RollupProgress progress) {
+        this.properties = properties.getCache();
+        this.progress = progress;
+        this.cache = build(this.properties.getMaximumSize(), HourKey::hour, summary -> summary.rows() > 0,
+            (HourKey key, AggregationSummary summary) -> weight(summary));
+        this.deviceCache = build(this.properties.getDevicesMaximumSize(), DevicesHourKey::hour,
+            summaries -> !summaries.isEmpty(),
+            (DevicesHourKey key, Map<String, AggregationSummary> summaries) -> weight(summaries));
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, NAME);
+        CaffeineCacheMetrics.monitor(meterRegistry, deviceCache, DEVICES_NAME);
+    }
+
+    private <K, V> Cache<K, V> build(DataSize maximumSize, Function<K, Instant> hourOf, Predicate<V> hasRows,
+                                     Weigher<K, V> weigher) {
+        return Caffeine.newBuilder()
+            .maximumWeight(maximumSize.toBytes())
+            .weigher(weigher)
+            .expireAfter(new Expiry<K, V>() {
+                @Override
+                public long expireAfterCreate(K key, V value, long currentTime) {
+                    return hasRows.test(value) && isClosed(hourOf.apply(key))
+                        ? Long.MAX_VALUE : properties.getOpenHourTtl().toNanos();
+                }
+
+                @Override
+                public long expireAfterUpdate(K key, V value, long currentTime, long currentDuration) {
+                    return expireAfterCreate(key, value, currentTime);
+                }
+
+                @Override
+                public long expireAfterRead(K key, V value, long currentTime, long currentDuration) {
+                    return currentDuration;
+                }
+            })
+            .recordStats()
+            .build();
+    }
+
+    /**
+     * Whether a query over {@code [startTime, endTime)} should go through the cache. Long ranges
+     * are cheaper as a few DAILY rows than as thousands of cached hours.
+     */
+    public boolean covers(Instant startTime, Instant endTime) {
+        return properties.isEnabled() && Duration.between(startTime, endTime).compareTo(properties.getMaxRange()) <= 0;
+    }
+
+    /**
+     * Returns one summary per hour in {@code hours}, in the same order. Hours not cached are
+     * passed to {@code loader} in a single call; hours it returns nothing for are cached as empty.
+     */
+    public List<AggregationSummary> getAll(String deviceId, String zone, DeviceType deviceType, List<Instant> hours,
+                                           Function<List<Instant>, Map<Instant, AggregationSummary>> loader) {
+        List<HourKey> keys = new ArrayList<>(hours.size());
+        for (Instant hour : hours) {
+            keys.add(new HourKey(deviceId, zone, deviceType, hour));
+        }
+        return getAll(cache, keys, HourKey::hour, loader, AggregationSummary.empty());
+    }
+
+    /**
+     * Same as {@link #getAll} but each hour holds a summary per device matching {@code zone} and
+     * {@code deviceType}, for ranking devices without going back to Postgres.
+     */
+    public List<Map<String, AggregationSummary>> getAllByDevice(
+            String zone, DeviceType deviceType, List<Instant> hours,
+            Function<List<Instant>, Map<Instant, Map<String, AggregationSummary>>> loader) {
+        List<DevicesHourKey> keys = new ArrayList<>(hours.size());
+        for (Instant hour : hours) {
+            keys.add(new DevicesHourKey(zone, deviceType, hour));
+        }
+        return getAll(deviceCache, keys, DevicesHourKey::hour, loader, Map.of());
+    }
+
+    private static <K, V> List<V> getAll(Cache<K, V> cache, List<K> keys, Function<K, Instant> hourOf,
+                                         Function<List<Instant>, Map<Instant, V>> loader, V empty) {
+        Map<K, V> cached = cache.getAll(keys, missing -> {
+            List<Instant> hours = missing.stream().map(hourOf).sorted().toList();
+            Map<Instant, V> loaded = loader.apply(hours);
+            Map<K, V> entries = new HashMap<>();
+            for (K key : missing) {
+                entries.put(key, loaded.getOrDefault(hourOf.apply(key), empty));
+            }
+            return entries;
+        });
+        List<V> values = new ArrayList<>(keys.size());
+        for (K key : keys) {
+            values.add(cached.getOrDefault(key, empty));
+        }
+        return values;
+    }
+
+    boolean isClosed(Instant hour) {
+        return progress.isClosed(hour.plus(HOUR));
+    }
+
+    private static int weight(AggregationSummary summary) {
+        return 160 + 16 * summary.medians().length;
+    }
+
+    private static int weight(Map<String, AggregationSummary> summaries) {
+        int weight = 64;
+        for (Map.Entry<String, AggregationSummary> entry : summaries.entrySet()) {
+            weight += 48 + 2 * entry.getKey().length() + weight(entry.getValue());
+        }
+        return weight;
+    }
+}
@@ -0,0 +1,216 @@
+package com.supermetrics.relay.api.service;
+
+import com.supermetrics.relay.api.config.ApiProperties;
+import com.supermetrics.relay.api.repository.AggregationFeedReconnected;
+import com.supermetrics.relay.api.repository.AggregationNotification;
+import com.supermetrics.relay.api.repository.AggregationSummaryRepository;
+import com.supermetrics.relay.api.repository.Dimension;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every deviceId and zone that has aggregation rows, so lookups for values that do not exist
+ * (typos, decommissioned devices, scanners) are answered without a range query. A value is only
+ * reported missing when Postgres had no row for it at the last full load and no notification or
+ * delta has reported one since.
+ *
+ * Loaded with {@code SELECT DISTINCT} per column in the background at startup, then kept current
+ * from {@code aggregation_updates} notifications and a delta read of recently started windows
+ * every {@code relay.api.known-keys.refresh-interval}. The delta cannot see rows that land in old
+ * windows (backlog replays routed to their original windows), which only notifications report,
+ * so the full load is repeated whenever the notification listener reconnects, since anything sent
+ * while it was away is lost, and every {@code relay.api.known-keys.reload-interval} to bound how
+ * long a value can be missed with subscriptions disabled. Until the first load completes every
+ * value is reported as possibly present.
+ *
+ * Sizes are published as {@code relay.api.known-keys.size} and short-circuited lookups as
+ * {@code relay.api.known-keys.rejected}, both tagged {@code dimension=device_id|zone}.
+ */
+@Component
+public class KnownKeys implements SmartLifecycle {
+    private static final Logger logger = LoggerFactory.getLogger(KnownKeys.class);
+
+    // Hourly windows are upserted for up to an hour after they start, so each delta re-reads
+    // windows this far behind the previous refresh
+    static final Duration DELTA_OVERLAP = Duration.ofHours(1);
+
+    private final AggregationSummaryRepository repository;
+    private final ApiProperties.KnownKeys properties;
+    private final Clock clock;
+    private final Set<String> deviceIds = ConcurrentHashMap.newKeySet();
+    private final Set<String> zones = ConcurrentHashMap.newKeySet();
+    private final Counter rejectedDeviceIds;
+    private final Counter rejectedZones;
+
+    private volatile Instant refreshedAt;
+    private volatile Instant loadedAt;
+    private volatile boolean reloadRequested;
+    private volatile ScheduledExecutorService executor;
+
+    @Autowired
+    public KnownKeys(AggregationSummaryRepository repository, ApiProperties properties, MeterRegistry meterRegistry) {
+        this(repository, properties, meterRegistry, Clock.systemUTC());
+    }
+
+    KnownKeys(AggregationSummaryRepository repository, ApiProperties properties, MeterRegistry meterRegistry,
+              Clock clock) {
+        this.repository = repository;
+        this.properties = properties.getKnownKeys();
+        this.clock = clock;
+        this.rejectedDeviceIds = register(meterRegistry, Dimension.DEVICE_ID, deviceIds);
+        this.rejectedZones = register(meterRegistry, Dimension.ZONE, zones);
+    }
+
+    /**
+     * False only when {@code deviceId} is non-null and definitely has no rows.
+     */
+    public boolean mayContainDevice(String deviceId) {
+        return mayContain(deviceIds, deviceId, rejectedDeviceIds);
+    }
+
+    /**
+     * False only when {@code zone} is non-null and definitely has no rows.
+     */
+    public boolean mayContainZone(String zone) {
+        return mayContain(zones, zone, rejectedZones);
+    }
+
+    /**
+     * Device types are a closed enum and are never filtered.
+     */
+    public boolean mayContain(Dimension dimension, String value) {
+        return switch (dimension) {
+            case DEVICE_ID -> mayContainDevice(value);
+            case ZONE -> mayContainZone(value);
+            case DEVICE_TYPE -> true;
+        };
+    }
+
+    /**
+     * Number of known device ids, 0 until the first load completes.
+     */
+    int deviceCount() {
+        return refreshedAt == null ? 0 : deviceIds.size();
+    }
+
+    /**
+     * Number of known zones, 0 until the first load completes.
+     */
+    int zoneCount() {
+        return refreshedAt == null ? 0 : zones.size();
+    }
+
+    @EventListener
+    public void onUpdate(AggregationNotification update) {
+        if (update.deviceId() != null) {
+            deviceIds.add(update.deviceId());
+        }
+        if (update.zone() != null) {
+            zones.add(update.zone());
+        }
+    }
+
+    /**
+     * Notifications sent while the listener was disconnected are lost, so the next refresh, run
+     * right away, reloads every value.
+     */
+    @EventListener
+    public void onReconnect(AggregationFeedReconnected reconnected) {
+        reloadRequested = true;
+        ScheduledExecutorService current = executor;
+        if (current != null) {
+            current.execute(this::refresh);
+        }
+    }
+
+    /**
+     * Loads every value on the first call, after a reconnect and once the last full load is
+     * {@code reload-interval} old, and only values from recently started windows otherwise.
+     * Failures are logged and retried on the next run.
+     */
+    void refresh() {
+        Instant started = clock.instant();
+        boolean full = refreshedAt == null || reloadRequested
+            || !loadedAt.plus(properties.getReloadInterval()).isAfter(started);
+        Instant since = full ? null : refreshedAt.minus(DELTA_OVERLAP);
+        if (full) {
+            reloadRequested = false;
+        }
+        try {
+            deviceIds.addAll(repository.distinctValues(Dimension.DEVICE_ID, since));
+            zones.addAll(repository.distinctValues(Dimension.ZONE, since));
+        } catch (RuntimeException e) {
+            logger.warn("Could not refresh known device ids and zones: {}", e.getMessage());
+            if (full) {
+                reloadRequested = true;
+            }
+            return;
+        }
+        if (full) {
+            logger.info("Loaded {} known device ids and {} zones", deviceIds.size(), zones.size());
+            loadedAt = started;
+        }
+        refreshedAt = started;
+    }
+
+    @Override
+    public void start() {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "known-keys-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::refresh, 0, properties.getRefreshInterval().toMillis(),
+            TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return executor != null;
+    }
+
+    private boolean mayContain(Set<String> values, String value, Counter rejected) {
+        if (value == null || refreshedAt == null || values.contains(value)) {
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    private static Counter register(MeterRegistry meterRegistry, Dimension dimension, Set<String> values) {
+        String tag = dimension.name().toLowerCase();
+        Gauge.builder("relay.api.known-keys.size", values, Set::size)
+            .tag("dimension", tag)
+            .register(meterRegistry);
+        return Counter.builder("relay.api.known-keys.rejected")
+            .tag("dimension", tag)
+            .register(meterRegistry);
+    }
+}
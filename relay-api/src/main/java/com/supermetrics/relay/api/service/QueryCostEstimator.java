@@ -0,0 +1,65 @@
+package com.supermetrics.relay.api.service;
+
+import com.supermetrics.relay.api.config.ApiProperties;
+import com.supermetrics.relay.api.repository.TimeSlice;
+import com.supermetrics.relay.common.domain.DeviceType;
+import com.supermetrics.relay.common.entity.DeviceEventAggregation;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Estimates how many aggregation rows a read touches: windows per device for the range, times the
+ * devices the filter matches. Windows follow {@link AggregationService#planSlices}, or every
+ * HOURLY window for series and exports. Device counts come from {@link KnownKeys}, assuming
+ * devices are spread evenly over zones and device types.
+ */
+@Component
+public class QueryCostEstimator {
+
+    private final KnownKeys knownKeys;
+    private final Instant rollupsSince;
+
+    public QueryCostEstimator(KnownKeys knownKeys, ApiProperties properties) {
+        this.knownKeys = knownKeys;
+        this.rollupsSince = properties.getRollups().getSince();
+    }
+
+    public long estimateRows(String deviceId, String zone, DeviceType deviceType, Instant startTime, Instant endTime,
+                             boolean hourlyRows) {
+        if (!startTime.isBefore(endTime)) {
+            return 0;
+        }
+        List<TimeSlice> slices = hourlyRows
+            ? List.of(new TimeSlice(DeviceEventAggregation.WindowType.HOURLY, startTime, endTime))
+            : AggregationService.planSlices(startTime, endTime, rollupsSince);
+        long windows = 0;
+        for (TimeSlice slice : slices) {
+            windows += windows(slice);
+        }
+        return windows * devices(deviceId, zone, deviceType);
+    }
+
+    private long devices(String deviceId, String zone, DeviceType deviceType) {
+        if (deviceId != null) {
+            return 1;
+        }
+        long devices = Math.max(1, knownKeys.deviceCount());
+        if (zone != null) {
+            devices /= Math.max(1, knownKeys.zoneCount());
+        }
+        if (deviceType != null) {
+            devices /= DeviceType.values().length;
+        }
+        return Math.max(1, devices);
+    }
+
+    private static long windows(TimeSlice slice) {
+        long size = slice.windowType().getSize().toMillis();
+        long firstWindow = Math.floorDiv(slice.start().toEpochMilli(), size) * size;
+        long span = Duration.between(Instant.ofEpochMilli(firstWindow), slice.end()).toMillis();
+        return Math.ceilDiv(span, size);
+    }
+}
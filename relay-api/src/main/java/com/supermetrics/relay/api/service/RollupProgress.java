@@ -0,0 +1,149 @@
+package com.supermetrics.relay.api.service;
+
+import com.supermetrics.relay.api.config.ApiProperties;
+import com.supermetrics.relay.api.repository.AggregationNotification;
+import com.supermetrics.relay.api.repository.AggregationSummaryRepository;
+import com.supermetrics.relay.common.entity.DeviceEventAggregation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How far the processor has got, in event time, so callers can tell an hour that will no longer
+ * change from one that merely ended a while ago on the wall clock. The processor is behind the
+ * wall clock by its grace periods in FINAL mode and by any consumer lag in either mode, so only
+ * its own output says when an hour's rows are complete.
+ *
+ * Progress is the start of the latest MINUTE window written, read every
+ * {@code relay.api.rollups.progress-interval} and advanced in between by HOURLY
+ * {@code aggregation_updates} notifications. An hour is closed once progress is past its end by
+ * both levels of {@code relay.api.rollups.grace} plus {@code margin}: by then every late event
+ * has been folded into its MINUTE rows and the HOURLY row has been re-emitted. Progress is the
+ * furthest any input partition has got, so {@code margin} also has to cover how far the slowest
+ * partition trails the fastest. Nothing is closed until the first read succeeds.
+ *
+ * An HOURLY notification for an hour that was already closed means that guess was wrong, or rows
+ * were replayed, and bumps {@link #revision()} so validators derived from it stop matching. Only
+ * notifications received while {@code relay.api.subscriptions.enabled} are seen.
+ */
+@Component
+public class RollupProgress implements SmartLifecycle {
+    private static final Logger logger = LoggerFactory.getLogger(RollupProgress.class);
+
+    private final AggregationSummaryRepository repository;
+    private final ApiProperties.Rollups properties;
+    private final AtomicLong revision = new AtomicLong();
+
+    private volatile Instant eventTime;
+    private ScheduledExecutorService executor;
+
+    public RollupProgress(AggregationSummaryRepository repository, ApiProperties properties) {
+        this.repository = repository;
+        this.properties = properties.getRollups();
+    }
+
+    /**
+     * True once the processor has got far enough past {@code windowEnd} that no window ending at
+     * or before it will be written again.
+     */
+    public boolean isClosed(Instant windowEnd) {
+        Instant current = eventTime;
+        return current != null && !windowEnd.plus(closedAfter()).isAfter(current);
+    }
+
+    /**
+     * End of the last closed hour, so every hour ending at or before it is closed, or null
+     * before the first read.
+     */
+    public Instant closedUntil() {
+        Instant current = eventTime;
+        return current == null ? null : current.minus(closedAfter()).truncatedTo(ChronoUnit.HOURS);
+    }
+
+    /**
+     * Event time the processor has reached, or null before the first read.
+     */
+    public Instant eventTime() {
+        return eventTime;
+    }
+
+    /**
+     * Number of closed hours rewritten since startup.
+     */
+    public long revision() {
+        return revision.get();
+    }
+
+    @EventListener
+    public void onUpdate(AggregationNotification update) {
+        if (update.windowType() != DeviceEventAggregation.WindowType.HOURLY || update.timeWindowStart() == null) {
+            return;
+        }
+        if (update.timeWindowEnd() != null && isClosed(update.timeWindowEnd())) {
+            logger.debug("Closed hour {} of {} was rewritten", update.timeWindowStart(), update.deviceId());
+            revision.incrementAndGet();
+        }
+        advance(update.timeWindowStart());
+    }
+
+    /**
+     * Reads the latest MINUTE window, only among windows from the current progress on after the
+     * first read. Failures are logged and retried on the next run.
+     */
+    void refresh() {
+        Instant latest;
+        try {
+            latest = repository.latestWindowStart(DeviceEventAggregation.WindowType.MINUTE, eventTime);
+        } catch (RuntimeException e) {
+            logger.warn("Could not read rollup progress: {}", e.getMessage());
+            return;
+        }
+        if (latest != null) {
+            advance(latest);
+        }
+    }
+
+    private synchronized void advance(Instant time) {
+        if (eventTime == null || time.isAfter(eventTime)) {
+            eventTime = time;
+        }
+    }
+
+    private Duration closedAfter() {
+        return properties.getGrace().multipliedBy(2).plus(properties.getMargin());
+    }
+
+    @Override
+    public void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rollup-progress-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::refresh, 0, properties.getProgressInterval().toMillis(),
+            TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return executor != null;
+    }
+}
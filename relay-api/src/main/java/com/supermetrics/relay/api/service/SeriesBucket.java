@@ -0,0 +1,33 @@
+package com.supermetrics.relay.api.service;
+
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * Bucket widths accepted by the series endpoints, as written in the {@code bucket} parameter.
+ */
+public enum SeriesBucket {
+    HOUR("1h", Duration.ofHours(1)),
+    DAY("1d", Duration.ofDays(1));
+
+    private final String parameter;
+    private final Duration size;
+
+    SeriesBucket(String parameter, Duration size) {
+        this.parameter = parameter;
+        this.size = size;
+    }
+
+    public Duration getSize() {
+        return size;
+    }
+
+    public static Optional<SeriesBucket> fromParameter(String parameter) {
+        for (SeriesBucket bucket : values()) {
+            if (bucket.parameter.equals(parameter)) {
+                return Optional.of(bucket);
+            }
+        }
+        return Optional.empty();
+    }
+}
@@ -0,0 +1,165 @@
+package com.supermetrics.relay.api.web;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.supermetrics.relay.api.config.ApiProperties;
+import com.supermetrics.relay.api.service.QueryCostEstimator;
+import com.supermetrics.relay.common.domain.DeviceType;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Admission control for {@code /api/events}, applied after authentication and before any query.
+ * Every request takes a token from its bearer token's {@link TokenBucket}. Reads that
+ * {@link QueryCostEstimator} expects to touch at least {@code heavy-rows} rows also need one of
+ * {@code max-heavy-queries} bulkhead permits, held until the response is complete, so year-long
+ * zone queries queue among themselves instead of in front of interactive ones. Either limit
+ * answers 429 with {@code Retry-After}.
+ *
+ * Rejections are published as {@code relay.api.admission.rejected} tagged
+ * {@code reason=rate|heavy}, and heavy queries in flight as {@code relay.api.admission.heavy.active}.
+ */
+@Component
+public class AdmissionControlInterceptor implements AsyncHandlerInterceptor {
+
+    static final String HEAVY_PERMIT = AdmissionControlInterceptor.class.getName() + ".heavyPermit";
+    private static final String BEARER_PREFIX = "Bearer ";
+    private static final Duration IDLE_BUCKET_EXPIRY = Duration.ofMinutes(10);
+
+    private final ApiProperties.Admission properties;
+    private final QueryCostEstimator costEstimator;
+    private final LongSupplier nanoTime;
+    private final Cache<String, TokenBucket> buckets;
+    private final Semaphore heavyQueries;
+    private final Counter rateLimited;
+    private final Counter heavyRejected;
+
+    @Autowired
+    public AdmissionControlInterceptor(ApiProperties properties, QueryCostEstimator costEstimator,
+                                       MeterRegistry meterRegistry) {
+        this(properties, costEstimator, meterRegistry, System::nanoTime);
+    }
+
+    AdmissionControlInterceptor(ApiProperties properties, QueryCostEstimator costEstimator,
+                                MeterRegistry meterRegistry, LongSupplier nanoTime) {
+        this.properties = properties.getAdmission();
+        this.costEstimator = costEstimator;
+        this.nanoTime = nanoTime;
+        this.buckets = Caffeine.newBuilder()
+            .maximumSize(this.properties.getMaxTokens())
+            .expireAfterAccess(IDLE_BUCKET_EXPIRY)
+            .build();
+        this.heavyQueries = new Semaphore(this.properties.getMaxHeavyQueries(), true);
+        int maxHeavyQueries = this.properties.getMaxHeavyQueries();
+        Gauge.builder("relay.api.admission.heavy.active", heavyQueries,
+                semaphore -> maxHeavyQueries - semaphore.availablePermits())
+            .register(meterRegistry);
+        this.rateLimited = Counter.builder("relay.api.admission.rejected").tag("reason", "rate")
+            .register(meterRegistry);
+        this.heavyRejected = Counter.builder("relay.api.admission.rejected").tag("reason", "heavy")
+            .register(meterRegistry);
+    }
+
+    @Override
+    public boolean preHandle(@NonNull HttpServletRequest request, @NonNull HttpServletResponse response,
+                             @NonNull Object handler) {
+        // Streaming responses dispatch again once the body is written; admission happened on the first
+        if (!properties.isEnabled() || request.getDispatcherType() != DispatcherType.REQUEST) {
+            return true;
+        }
+        long now = nanoTime.getAsLong();
+        long waitNanos = buckets.get(clientKey(request),
+                key -> new TokenBucket(properties.getRequestsPerSecond(), properties.getBurst(), now))
+            .tryAcquire(now);
+        if (waitNanos > 0) {
+            rateLimited.increment();
+            return reject(response, Duration.ofNanos(waitNanos));
+        }
+        if (estimateRows(request) < properties.getHeavyRows()) {
+            return true;
+        }
+        try {
+            if (!heavyQueries.tryAcquire(properties.getHeavyQueueTimeout().toNanos(), TimeUnit.NANOSECONDS)) {
+                heavyRejected.increment();
+                return reject(response, Duration.ofSeconds(1));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return reject(response, Duration.ofSeconds(1));
+        }
+        request.setAttribute(HEAVY_PERMIT, Boolean.TRUE);
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(@NonNull HttpServletRequest request, @NonNull HttpServletResponse response,
+                                @NonNull Object handler, Exception ex) {
+        if (request.getAttribute(HEAVY_PERMIT) != null) {
+            request.removeAttribute(HEAVY_PERMIT);
+            heavyQueries.release();
+        }
+    }
+
+    /**
+     * Rows the request is expected to read, or 0 when it has no valid range; such requests are
+     * rejected with 400 by the controller anyway.
+     */
+    long estimateRows(HttpServletRequest request) {
+        Instant startTime;
+        Instant endTime;
+        DeviceType deviceType = null;
+        @SuppressWarnings("unchecked")
+        Map<String, String> variables = (Map<String, String>) request.getAttribute(
+            HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        if (variables == null || request.getParameter("startTime") == null || request.getParameter("endTime") == null) {
+            return 0;
+        }
+        try {
+            startTime = Instant.parse(request.getParameter("startTime"));
+            endTime = Instant.parse(request.getParameter("endTime"));
+            if (variables.containsKey("deviceType")) {
+                deviceType = DeviceType.valueOf(variables.get("deviceType"));
+            }
+        } catch (DateTimeParseException | IllegalArgumentException e) {
+            return 0;
+        }
+        String uri = request.getRequestURI();
+        boolean hourlyRows = uri.endsWith("/series") || uri.endsWith("/export");
+        return costEstimator.estimateRows(variables.get("deviceId"), variables.get("zone"), deviceType,
+            startTime, endTime, hourlyRows);
+    }
+
+    private static String clientKey(HttpServletRequest request) {
+        String authorization = request.getHeader(HttpHeaders.AUTHORIZATION);
+        if (authorization != null && authorization.startsWith(BEARER_PREFIX)) {
+            return authorization.substring(BEARER_PREFIX.length());
+        }
+        return request.getRemoteAddr();
+    }
+
+    private static boolean reject(HttpServletResponse response, Duration retryAfter) {
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER,
+            String.valueOf(Math.max(1, Math.ceilDiv(retryAfter.toMillis(), 1000))));
+        return false;
+    }
+}
@@ -0,0 +1,171 @@
+package com.supermetrics.relay.api.web;
+
+import com.supermetrics.relay.api.config.ApiProperties;
+import com.supermetrics.relay.api.service.RollupProgress;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Conditional GET for {@code /api/events} reads whose {@code endTime} lies before the last
+ * window {@link RollupProgress} reports closed. Such a response should no longer change, so its
+ * validator is derived from the request and {@link RollupProgress#revision()}, and a matching
+ * {@code If-None-Match} is answered with 304 before any query runs. A closed hour that is
+ * rewritten anyway bumps the revision, so the next revalidation gets the new answer.
+ *
+ * Successful responses carry the ETag and a private {@code Cache-Control} with
+ * {@code relay.api.http-cache.max-age}: they are answers to authenticated requests, so only the
+ * client's own cache may keep them, and {@code Vary: Authorization} stops it reusing one across
+ * credentials. Errors and 404s are left uncached.
+ *
+ * The ETag is weak because Tomcat does not compress responses with a strong one, and the same
+ * range is sent gzip-encoded or not depending on the client.
+ */
+@Component
+public class ClosedRangeCacheFilter extends OncePerRequestFilter {
+
+    // Bump when the serialized form of a response changes so clients drop old representations
+    private static final String REPRESENTATION_VERSION = "1";
+    private static final String END_TIME = "endTime";
+
+    private final ApiProperties properties;
+    private final RollupProgress progress;
+
+    public ClosedRangeCacheFilter(ApiProperties properties, RollupProgress progress) {
+        this.properties = properties;
+        this.progress = progress;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(@NonNull HttpServletRequest request) {
+        return !properties.getHttpCache().isEnabled()
+            || !("GET".equals(request.getMethod()) || "HEAD".equals(request.getMethod()))
+            || !request.getRequestURI().startsWith(request.getContextPath() + "/api/events/")
+            || request.getParameter(END_TIME) == null;
+    }
+
+    @Override
+    protected void doFilterInternal(@NonNull HttpServletRequest request, @NonNull HttpServletResponse response,
+                                    @NonNull FilterChain filterChain) throws ServletException, IOException {
+        if (!isClosed(request.getParameter(END_TIME))) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        String etag = etag(request, progress.revision());
+        String cacheControl = CacheControl.maxAge(properties.getHttpCache().getMaxAge())
+            .cachePrivate()
+            .getHeaderValue();
+        if (matches(request.getHeader(HttpHeaders.IF_NONE_MATCH), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            response.setHeader(HttpHeaders.ETAG, etag);
+            response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+            response.setHeader(HttpHeaders.VARY, HttpHeaders.AUTHORIZATION);
+            return;
+        }
+        filterChain.doFilter(request, new CachingHeadersResponse(response, etag, cacheControl));
+    }
+
+    /**
+     * True once the hourly window containing {@code endTime} is closed, the same rule
+     * {@link com.supermetrics.relay.api.service.HourlyAggregationCache} uses. Unaligned ranges
+     * read the hourly windows they overlap, so the window end is what matters.
+     */
+    boolean isClosed(String endTime) {
+        Instant end;
+        try {
+            end = Instant.parse(endTime);
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+        Instant windowEnd = end.minusNanos(1).truncatedTo(ChronoUnit.HOURS).plus(Duration.ofHours(1));
+        return progress.isClosed(windowEnd);
+    }
+
+    static String etag(HttpServletRequest request, long revision) {
+        StringBuilder key = new StringBuilder(REPRESENTATION_VERSION).append(' ').append(revision)
+            .append(' ').append(request.getRequestURI());
+        Map<String, String[]> parameters = new TreeMap<>(request.getParameterMap());
+        parameters.forEach((name, values) -> key.append('&').append(name).append('=').append(Arrays.toString(values)));
+        return "W/\"" + DigestUtils.md5DigestAsHex(key.toString().getBytes(StandardCharsets.UTF_8)) + "\"";
+    }
+
+    /**
+     * Weak comparison, as required for {@code If-None-Match}.
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaque = etag.substring(2);
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*") || tag.equals(etag) || tag.equals(opaque)
+                    || (tag.startsWith("W/") && tag.substring(2).equals(opaque))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the validator and cache headers when the body is first written with status 200, which
+     * is the last point before the headers are committed.
+     */
+    private static final class CachingHeadersResponse extends HttpServletResponseWrapper {
+
+        private final String etag;
+        private final String cacheControl;
+
+        CachingHeadersResponse(HttpServletResponse response, String etag, String cacheControl) {
+            super(response);
+            this.etag = etag;
+            this.cacheControl = cacheControl;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            addCachingHeaders();
+            return super.getOutputStream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            addCachingHeaders();
+            return super.getWriter();
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            addCachingHeaders();
+            super.flushBuffer();
+        }
+
+        private void addCachingHeaders() {
+            if (!isCommitted() && getStatus() == SC_OK && !containsHeader(HttpHeaders.ETAG)) {
+                setHeader(HttpHeaders.ETAG, etag);
+                setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+                setHeader(HttpHeaders.VARY, HttpHeaders.AUTHORIZATION);
+            }
+        }
+    }
+}
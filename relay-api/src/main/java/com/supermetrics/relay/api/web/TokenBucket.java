@@ -0,0 +1,40 @@
+package com.supermetrics.relay.api.web;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket in its GCRA form: the only state is the theoretical arrival time of the
+ * next request, advanced with a CAS by one emission interval per accepted request. A request is
+ * accepted while that time is no more than {@code burst - 1} intervals ahead of now.
+ */
+final class TokenBucket {
+
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final AtomicLong theoreticalArrival;
+
+    TokenBucket(double permitsPerSecond, int burst, long nowNanos) {
+        this.intervalNanos = (long) (1_000_000_000L / permitsPerSecond);
+        this.toleranceNanos = intervalNanos * (burst - 1L);
+        this.theoreticalArrival = new AtomicLong(nowNanos);
+    }
+
+    /**
+     * Takes a token if one is available.
+     *
+     * @return 0 when accepted, otherwise how many nanoseconds until a token is available
+     */
+    long tryAcquire(long nowNanos) {
+        while (true) {
+            long current = theoreticalArrival.get();
+            long arrival = current - nowNanos > 0 ? current : nowNanos;
+            long wait = arrival - nowNanos - toleranceNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (theoreticalArrival.compareAndSet(current, arrival + intervalNanos)) {
+                return 0;
+            }
+        }
+    }
+}
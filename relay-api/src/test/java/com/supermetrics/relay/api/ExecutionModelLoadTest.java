@@ -0,0 +1,246 @@
+package com.supermetrics.relay.api;
+
+import org.flywaydb.core.Flyway;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.utility.DockerImageName;
+
+import javax.sql.DataSource;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs relay-api twice against TimescaleDB, once on Tomcat's platform thread pool and once with
+ * {@code spring.threads.virtual.enabled}, and drives both over HTTP with the same burst of
+ * dashboard traffic: most requests are single-day zone reads answered from the hourly cache, the
+ * rest are 35-day device-type reads that bypass it and wait on the Hikari pool. Every request goes
+ * through Tomcat, the security filters, the services and JDBC, so the comparison includes
+ * everything a thread is held for. Skipped without Docker. Run with:
+ *
+ * <pre>mvn test -pl relay-api -Dtest=ExecutionModelLoadTest -Drelay.load-test=true</pre>
+ *
+ * Latencies and throughput of both runs are written to {@value #REPORT}.
+ */
+@Tag("load")
+@EnabledIfSystemProperty(named = "relay.load-test", matches = "true")
+@Testcontainers(disabledWithoutDocker = true)
+class ExecutionModelLoadTest {
+
+    @Container
+    private static final PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>(
+        DockerImageName.parse("timescale/timescaledb:2.23.0-pg16").asCompatibleSubstituteFor("postgres"));
+
+    private static final String REPORT = "target/execution-model-report.txt";
+    private static final String TOKEN = "Bearer supermetrics-api-token-2024";
+
+    private static final int CLIENTS = 400;
+    private static final int WARM_UP_REQUESTS = 1000;
+    private static final int REQUESTS = 5000;
+    private static final int DB_EVERY = 10;
+    private static final int POOL_SIZE = 20;
+    private static final int ZONES = 20;
+    private static final String[] DEVICE_TYPES = {"THERMOSTAT", "HEART_RATE_METER", "CAR_FUEL"};
+
+    private static HttpClient client;
+    private static ExecutorService clients;
+
+    @BeforeAll
+    static void migrateAndSeed() {
+        DataSource dataSource = new DriverManagerDataSource(postgres.getJdbcUrl(), postgres.getUsername(),
+            postgres.getPassword());
+        Flyway.configure()
+            .dataSource(dataSource)
+            .locations("filesystem:../relay-processor/src/main/resources/db/migration")
+            .load()
+            .migrate();
+        // Five weeks of hourly rows for 200 devices in 20 zones
+        new JdbcTemplate(dataSource).execute("""
+            DO $$
+            BEGIN
+                SET LOCAL session_replication_role = replica;
+                INSERT INTO device_event_aggregations (device_id, device_type, zone, time_window_start,
+                    time_window_end, window_type, avg_value, min_value, max_value, median_value, count)
+                SELECT 'device-' || d,
+                       (ARRAY['THERMOSTAT', 'HEART_RATE_METER', 'CAR_FUEL'])[1 + d % 3],
+                       'zone-' || d % 20,
+                       h, h + INTERVAL '1 hour', 'HOURLY', 20 + d % 7, 10, 30, 20, 60
+                FROM generate_series(0, 199) d,
+                     generate_series(TIMESTAMPTZ '2024-01-01', TIMESTAMPTZ '2024-02-04 23:00', INTERVAL '1 hour') h;
+            END $$
+            """);
+        new JdbcTemplate(dataSource).execute("ANALYZE device_event_aggregations");
+        clients = Executors.newVirtualThreadPerTaskExecutor();
+        client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .executor(clients)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    }
+
+    @AfterAll
+    static void closeClient() {
+        if (clients != null) {
+            clients.shutdownNow();
+        }
+    }
+
+    @Test
+    void cacheHitsDoNotQueueBehindDatabaseBoundRequestsOnVirtualThreads() throws Exception {
+        Result platform = run(false);
+        Result virtual = run(true);
+
+        Files.writeString(Path.of(REPORT), String.join(System.lineSeparator(),
+            String.format("%d requests from %d clients, every %dth bypasses the cache; Hikari pool of %d",
+                REQUESTS, CLIENTS, DB_EVERY, POOL_SIZE),
+            String.format("%-9s %12s %14s %14s %14s %14s %8s", "model", "requests/s", "cache p50 ms",
+                "cache p99 ms", "db p50 ms", "db p99 ms", "errors"),
+            platform.format("platform"),
+            virtual.format("virtual"),
+            ""));
+
+        assertThat(platform.errors()).as("non-200 responses on platform threads").isEmpty();
+        assertThat(virtual.errors()).as("non-200 responses on virtual threads").isEmpty();
+        assertThat(virtual.cacheHitP99()).isLessThan(platform.cacheHitP99());
+        assertThat(virtual.throughput()).isGreaterThanOrEqualTo(platform.throughput() * 0.9);
+    }
+
+    /**
+     * Starts the application with the given execution model, warms it up (which also fills the
+     * hourly cache and lets the JIT settle), then measures one burst and stops it.
+     */
+    private static Result run(boolean virtualThreads) throws Exception {
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(RelayApiApplication.class).run(
+                // The application's own configuration, not the test one that leaves out the database
+                "--spring.config.location=file:src/main/resources/application.yml",
+                "--spring.flyway.enabled=false",
+                "--server.port=0",
+                "--spring.threads.virtual.enabled=" + virtualThreads,
+                "--spring.datasource.url=" + postgres.getJdbcUrl(),
+                "--spring.datasource.username=" + postgres.getUsername(),
+                "--spring.datasource.password=" + postgres.getPassword(),
+                "--spring.datasource.hikari.maximum-pool-size=" + POOL_SIZE,
+                "--spring.datasource.hikari.connection-timeout=30s",
+                "--relay.api.concurrency.max-queries=" + POOL_SIZE,
+                "--relay.api.concurrency.acquire-timeout=30s",
+                // Measures the execution model, not the limits in front of it
+                "--relay.api.admission.enabled=false",
+                "--relay.api.subscriptions.enabled=false",
+                // No MINUTE rows are seeded, so no hour is ever closed; keep the open ones
+                "--relay.api.cache.open-hour-ttl=10m")) {
+            int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            burst(port, WARM_UP_REQUESTS);
+            return burst(port, REQUESTS);
+        }
+    }
+
+    private static Result burst(int port, int requests) throws Exception {
+        Latencies cacheHits = new Latencies();
+        Latencies queries = new Latencies();
+        Map<String, Integer> errors = new ConcurrentHashMap<>();
+        AtomicInteger next = new AtomicInteger();
+        long started = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < CLIENTS; c++) {
+                executor.submit(() -> {
+                    int i;
+                    while ((i = next.getAndIncrement()) < requests) {
+                        boolean db = i % DB_EVERY == 0;
+                        URI uri = URI.create("http://localhost:" + port + (db ? databaseBound(i) : cacheHit(i)));
+                        HttpRequest request = HttpRequest.newBuilder(uri)
+                            .header("Authorization", TOKEN)
+                            .timeout(Duration.ofMinutes(1))
+                            .build();
+                        long sent = System.nanoTime();
+                        try {
+                            HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                            if (response.statusCode() != 200) {
+                                errors.merge(String.valueOf(response.statusCode()), 1, Integer::sum);
+                                continue;
+                            }
+                        } catch (Exception e) {
+                            errors.merge(e.getClass().getSimpleName(), 1, Integer::sum);
+                            continue;
+                        }
+                        (db ? queries : cacheHits).add(System.nanoTime() - sent);
+                    }
+                    return null;
+                });
+            }
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+        return new Result(requests / seconds, cacheHits.sorted(), queries.sorted(), errors);
+    }
+
+    private static String cacheHit(int i) {
+        return "/api/events/zone/zone-" + i % ZONES + "?startTime=2024-01-10T00:00:00Z&endTime=2024-01-11T00:00:00Z";
+    }
+
+    // Longer than relay.api.cache.max-range, so every one is read from Postgres
+    private static String databaseBound(int i) {
+        return "/api/events/type/" + DEVICE_TYPES[i % DEVICE_TYPES.length]
+            + "?startTime=2024-01-01T00:00:00Z&endTime=2024-02-05T00:00:00Z";
+    }
+
+    private static final class Latencies {
+        private final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+
+        void add(long latency) {
+            latencies.add(latency);
+        }
+
+        List<Long> sorted() {
+            List<Long> sorted = new ArrayList<>(latencies);
+            Collections.sort(sorted);
+            return sorted;
+        }
+    }
+
+    private record Result(double throughput, List<Long> cacheLatencies, List<Long> queryLatencies,
+                          Map<String, Integer> errors) {
+
+        double cacheHitP99() {
+            return percentile(cacheLatencies, 0.99);
+        }
+
+        String format(String model) {
+            return String.format("%-9s %12.0f %14.1f %14.1f %14.1f %14.1f %8s", model, throughput,
+                percentile(cacheLatencies, 0.5), cacheHitP99(), percentile(queryLatencies, 0.5),
+                percentile(queryLatencies, 0.99), errors.isEmpty() ? "0" : errors);
+        }
+
+        private static double percentile(List<Long> sorted, double quantile) {
+            if (sorted.isEmpty()) {
+                return Double.NaN;
+            }
+            int index = Math.min(sorted.size() - 1, (int) Math.ceil(quantile * sorted.size()) - 1);
+            return sorted.get(index) / 1e6;
+        }
+    }
+}
@@ -1,7 +1,13 @@
 package com.supermetrics.relay.api.controller;
 
 import com.supermetrics.relay.common.domain.DeviceType;
+import com.supermetrics.relay.common.entity.DeviceEventAggregation;
+import com.supermetrics.relay.api.repository.Dimension;
+import com.supermetrics.relay.api.repository.QueryRejectedException;
+import com.supermetrics.relay.api.repository.RankingMetric;
 import com.supermetrics.relay.api.service.AggregationService;
+import com.supermetrics.relay.api.service.AggregationUpdateBroadcaster;
+import com.supermetrics.relay.api.service.SeriesBucket;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import com.supermetrics.relay.api.TestApplication;
@@ -11,13 +17,30 @@ import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.ByteArrayOutputStream;
 import java.time.Instant;
-
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
 @SpringBootTest(classes = TestApplication.class, webEnvironment = SpringBootTest.WebEnvironment.MOCK)
@@ -28,9 +51,15 @@ class EventControllerTest {
     @Autowired
     private MockMvc mockMvc;
 
+    @Autowired
+    private EventController eventController;
+
     @MockBean
     private AggregationService aggregationService;
 
+    @MockBean
+    private AggregationUpdateBroadcaster updateBroadcaster;
+
     @Test
     void getAggregationsByDevice_WhenResultsExist_Returns200WithData() throws Exception {
         Instant startTime = Instant.parse("2024-01-01T00:00:00Z");
@@ -67,6 +96,89 @@ class EventControllerTest {
             .andExpect(jsonPath("$.count").value(150L));
     }
 
+    @Test
+    void getAggregationsByDevice_WithPercentiles_ReturnsThemKeyedByPercentile() throws Exception {
+        Instant startTime = Instant.parse("2024-01-01T00:00:00Z");
+        Instant endTime = Instant.parse("2024-01-01T23:59:59Z");
+        when(aggregationService.getAggregationsByDevice(eq("device-123"), any(), any()))
+            .thenReturn(new AggregationService.AggregationResult("device-123", "zone-1", DeviceType.THERMOSTAT,
+                startTime, endTime, 22.5, 10.0, 35.0, 22.0, 150L));
+        when(aggregationService.getPercentiles(eq("device-123"), isNull(), isNull(), eq(List.of(50.0, 99.9)),
+                any(), any()))
+            .thenReturn(new AggregationService.Percentiles(percentiles(50.0, 22.0, 99.9, 34.5), 22.0, 120L));
+
+        mockMvc.perform(get("/api/events/device/device-123")
+                .param("startTime", "2024-01-01T00:00:00Z")
+                .param("endTime", "2024-01-01T23:59:59Z")
+                .param("percentiles", "50,99.9"))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.percentiles['50']").value(22.0))
+            .andExpect(jsonPath("$.percentiles['99.9']").value(34.5));
+    }
+
+    @Test
+    void getAggregationsByZone_WithPercentiles_AnswersTheMedianFromACompleteDigest() throws Exception {
+        Instant startTime = Instant.parse("2024-01-01T00:00:00Z");
+        Instant endTime = Instant.parse("2024-01-01T23:59:59Z");
+        when(aggregationService.getAggregationsByZone(eq("zone-1"), any(), any()))
+            .thenReturn(new AggregationService.AggregationResult(null, "zone-1", null,
+                startTime, endTime, 22.5, 10.0, 35.0, 22.0, 150L));
+        when(aggregationService.getPercentiles(isNull(), eq("zone-1"), isNull(), eq(List.of(90.0)), any(), any()))
+            .thenReturn(new AggregationService.Percentiles(percentiles(90.0, 31.0), 23.5, 150L));
+
+        mockMvc.perform(get("/api/events/zone/zone-1")
+                .param("startTime", "2024-01-01T00:00:00Z")
+                .param("endTime", "2024-01-01T23:59:59Z")
+                .param("percentiles", "90"))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.medianValue").value(23.5))
+            .andExpect(jsonPath("$.percentiles['90']").value(31.0));
+    }
+
+    @Test
+    void getAggregationsByZone_WithPercentiles_KeepsTheWeightedMedianWhenRowsLackDigests() throws Exception {
+        Instant startTime = Instant.parse("2024-01-01T00:00:00Z");
+        Instant endTime = Instant.parse("2024-01-01T23:59:59Z");
+        when(aggregationService.getAggregationsByZone(eq("zone-1"), any(), any()))
+            .thenReturn(new AggregationService.AggregationResult(null, "zone-1", null,
+                startTime, endTime, 22.5, 10.0, 35.0, 22.0, 150L));
+        when(aggregationService.getPercentiles(isNull(), eq("zone-1"), isNull(), eq(List.of(90.0)), any(), any()))
+            .thenReturn(new AggregationService.Percentiles(percentiles(90.0, 31.0), 23.5, 100L));
+
+        mockMvc.perform(get("/api/events/zone/zone-1")
+                .param("startTime", "2024-01-01T00:00:00Z")
+                .param("endTime", "2024-01-01T23:59:59Z")
+                .param("percentiles", "90"))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.medianValue").value(22.0));
+    }
+
+    @Test
+    void getAggregationsByDevice_WithoutPercentiles_OmitsThem() throws Exception {
+        Instant startTime = Instant.parse("2024-01-01T00:00:00Z");
+        Instant endTime = Instant.parse("2024-01-01T23:59:59Z");
+        when(aggregationService.getAggregationsByDevice(eq("device-123"), any(), any()))
+            .thenReturn(new AggregationService.AggregationResult("device-123", "zone-1", DeviceType.THERMOSTAT,
+                startTime, endTime, 22.5, 10.0, 35.0, 22.0, 150L));
+
+        mockMvc.perform(get("/api/events/device/device-123")
+                .param("startTime", "2024-01-01T00:00:00Z")
+                .param("endTime", "2024-01-01T23:59:59Z"))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.percentiles").doesNotExist());
+    }
+
+    @Test
+    void getAggregationsByZone_WithPercentileOutOfRange_Returns400() throws Exception {
+        for (String percentiles : List.of("0", "100.5", "abc")) {
+            mockMvc.perform(get("/api/events/zone/zone-1")
+                    .param("startTime", "2024-01-01T00:00:00Z")
+                    .param("endTime", "2024-01-01T23:59:59Z")
+                    .param("percentiles", percentiles))
+                .andExpect(status().isBadRequest());
+        }
+    }
+
     @Test
     void getAggregationsByDevice_WhenNoResults_Returns404() throws Exception {
         Instant startTime = Instant.parse("2024-01-01T00:00:00Z");
@@ -86,6 +198,18 @@ class EventControllerTest {
             .andExpect(status().isNotFound());
     }
 
+    @Test
+    void getAggregationsByDevice_WhenDatabaseIsSaturated_Returns503() throws Exception {
+        when(aggregationService.getAggregationsByDevice(eq("device-123"), any(), any()))
+            .thenThrow(new QueryRejectedException("No query slot available"));
+
+        mockMvc.perform(get("/api/events/device/device-123")
+                .param("startTime", "2024-01-01T00:00:00Z")
+                .param("endTime", "2024-01-01T23:59:59Z"))
+            .andExpect(status().isServiceUnavailable())
+            .andExpect(header().string("Retry-After", "1"));
+    }
+
     @Test
     void getAggregationsByZone_WhenResultsExist_Returns200WithData() throws Exception {
         Instant startTime = Instant.parse("2024-01-01T00:00:00Z");
@@ -252,4 +376,209 @@ class EventControllerTest {
                 .contentType(MediaType.APPLICATION_JSON))
             .andExpect(status().isBadRequest());
     }
+
+    @Test
+    void getSeriesByZone_StreamsOneEntryPerBucket() throws Exception {
+        Instant hour = Instant.parse("2024-01-01T00:00:00Z");
+        doAnswer(invocation -> {
+            Consumer<AggregationService.AggregationResult> consumer = invocation.getArgument(6);
+            consumer.accept(new AggregationService.AggregationResult(
+                null, "zone-1", DeviceType.THERMOSTAT, hour, hour.plusSeconds(3600), 20.0, 10.0, 30.0, 20.0, 10L));
+            consumer.accept(new AggregationService.AggregationResult(
+                null, "zone-1", DeviceType.THERMOSTAT, hour.plusSeconds(3600), hour.plusSeconds(7200),
+                25.0, 15.0, 35.0, 25.0, 12L));
+            return null;
+        }).when(aggregationService).streamSeries(isNull(), eq("zone-1"), isNull(), eq(SeriesBucket.HOUR),
+            any(), any(), any());
+
+        MvcResult result = mockMvc.perform(get("/api/events/zone/zone-1/series")
+                .param("bucket", "1h")
+                .param("startTime", "2024-01-01T00:00:00Z")
+                .param("endTime", "2024-01-01T02:00:00Z"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+        mockMvc.perform(asyncDispatch(result))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.length()").value(2))
+            .andExpect(jsonPath("$[0].timeWindowStart").value("2024-01-01T00:00:00Z"))
+            .andExpect(jsonPath("$[0].count").value(10))
+            .andExpect(jsonPath("$[1].avgValue").value(25.0));
+    }
+
+    @Test
+    void getSeriesByZone_WhenDatabaseIsSaturated_Returns503() throws Exception {
+        doThrow(new QueryRejectedException("No query slot available"))
+            .when(aggregationService).streamSeries(isNull(), eq("zone-1"), isNull(), eq(SeriesBucket.HOUR),
+                any(), any(), any());
+
+        MvcResult result = mockMvc.perform(get("/api/events/zone/zone-1/series")
+                .param("bucket", "1h")
+                .param("startTime", "2024-01-01T00:00:00Z")
+                .param("endTime", "2024-01-01T02:00:00Z"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+        mockMvc.perform(asyncDispatch(result))
+            .andExpect(status().isServiceUnavailable());
+    }
+
+    @Test
+    void getSeriesByZone_WhenQueryFails_WritesNothing() {
+        doThrow(new QueryRejectedException("No query slot available"))
+            .when(aggregationService).streamSeries(isNull(), eq("zone-1"), isNull(), eq(SeriesBucket.HOUR),
+                any(), any(), any());
+        StreamingResponseBody body = eventController.getSeriesByZone("zone-1", "1h",
+            Instant.parse("2024-01-01T00:00:00Z"), Instant.parse("2024-01-01T02:00:00Z")).getBody();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertThrows(QueryRejectedException.class, () -> body.writeTo(out));
+        assertEquals(0, out.size());
+    }
+
+    @Test
+    void getSeriesByZone_WithUnknownBucket_Returns400() throws Exception {
+        mockMvc.perform(get("/api/events/zone/zone-1/series")
+                .param("bucket", "5m")
+                .param("startTime", "2024-01-01T00:00:00Z")
+                .param("endTime", "2024-01-01T02:00:00Z"))
+            .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void getBatchAggregations_ReturnsResultsPerTarget() throws Exception {
+        Instant startTime = Instant.parse("2024-01-01T00:00:00Z");
+        Instant endTime = Instant.parse("2024-01-02T00:00:00Z");
+        AggregationService.AggregationResult device = new AggregationService.AggregationResult(
+            "device-1", "zone-1", DeviceType.THERMOSTAT, startTime, endTime, 20.0, 10.0, 30.0, 20.0, 10L);
+
+        when(aggregationService.getBatchAggregations(
+                eq(List.of("device-1", "device-2")), eq(List.of()), eq(List.of()), eq(startTime), eq(endTime)))
+            .thenReturn(new AggregationService.BatchResult(Map.of("device-1", device), Map.of(), Map.of()));
+
+        mockMvc.perform(post("/api/events/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("""
+                    {"deviceIds": ["device-1", "device-2"],
+                     "startTime": "2024-01-01T00:00:00Z", "endTime": "2024-01-02T00:00:00Z"}
+                    """))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.devices.device-1.avgValue").value(20.0))
+            .andExpect(jsonPath("$.devices.device-2").doesNotExist())
+            .andExpect(jsonPath("$.zones").isEmpty());
+    }
+
+    @Test
+    void getBatchAggregations_OverLimits_Returns400() throws Exception {
+        when(aggregationService.getBatchAggregations(any(), any(), any(), any(), any()))
+            .thenThrow(new IllegalArgumentException("too many targets"));
+
+        mockMvc.perform(post("/api/events/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("""
+                    {"zones": ["zone-1"], "startTime": "2024-01-01T00:00:00Z", "endTime": "2024-01-02T00:00:00Z"}
+                    """))
+            .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void exportByZone_WritesCsvLines() throws Exception {
+        Instant hour = Instant.parse("2024-01-01T00:00:00Z");
+        doAnswer(invocation -> {
+            Consumer<DeviceEventAggregation> consumer = invocation.getArgument(5);
+            consumer.accept(new DeviceEventAggregation("device-1", DeviceType.THERMOSTAT, "zone, east",
+                hour, hour.plusSeconds(3600), DeviceEventAggregation.WindowType.HOURLY, 20.0, 10.0, 30.0, null, 10L));
+            return null;
+        }).when(aggregationService).exportHourlyRows(isNull(), eq("zone, east"), isNull(), any(), any(), any());
+
+        MvcResult result = mockMvc.perform(get("/api/events/zone/zone, east/export")
+                .param("format", "csv")
+                .param("startTime", "2024-01-01T00:00:00Z")
+                .param("endTime", "2024-01-02T00:00:00Z"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+        mockMvc.perform(asyncDispatch(result))
+            .andExpect(status().isOk())
+            .andExpect(content().contentTypeCompatibleWith("text/csv"))
+            .andExpect(content().string(
+                "deviceId,zone,deviceType,timeWindowStart,timeWindowEnd,avgValue,minValue,maxValue,medianValue,count\n"
+                    + "device-1,\"zone, east\",THERMOSTAT,2024-01-01T00:00:00Z,2024-01-01T01:00:00Z,20.0,10.0,30.0,,10\n"));
+    }
+
+    @Test
+    void exportByDevice_WritesNdjsonLines() throws Exception {
+        Instant hour = Instant.parse("2024-01-01T00:00:00Z");
+        doAnswer(invocation -> {
+            Consumer<DeviceEventAggregation> consumer = invocation.getArgument(5);
+            for (int i = 0; i < 2; i++) {
+                consumer.accept(new DeviceEventAggregation("device-1", DeviceType.THERMOSTAT, "zone-1",
+                    hour.plusSeconds(3600L * i), hour.plusSeconds(3600L * (i + 1)),
+                    DeviceEventAggregation.WindowType.HOURLY, 20.0, 10.0, 30.0, 20.0, 10L));
+            }
+            return null;
+        }).when(aggregationService).exportHourlyRows(eq("device-1"), isNull(), isNull(), any(), any(), any());
+
+        MvcResult result = mockMvc.perform(get("/api/events/device/device-1/export")
+                .param("startTime", "2024-01-01T00:00:00Z")
+                .param("endTime", "2024-01-02T00:00:00Z"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+        String body = mockMvc.perform(asyncDispatch(result))
+            .andExpect(status().isOk())
+            .andExpect(content().contentTypeCompatibleWith("application/x-ndjson"))
+            .andReturn().getResponse().getContentAsString();
+        String[] lines = body.split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[1].contains("\"timeWindowStart\":\"2024-01-01T01:00:00Z\""));
+    }
+
+    @Test
+    void subscribeToZone_RegistersZoneTopic() throws Exception {
+        when(updateBroadcaster.subscribe(any())).thenReturn(new SseEmitter());
+
+        mockMvc.perform(get("/api/events/zone/zone-1/subscribe"))
+            .andExpect(request().asyncStarted());
+
+        verify(updateBroadcaster).subscribe(new AggregationUpdateBroadcaster.Topic(Dimension.ZONE, "zone-1"));
+    }
+
+    @Test
+    void getTopDevicesByZone_ReturnsRankedDevices() throws Exception {
+        Instant startTime = Instant.parse("2024-01-01T00:00:00Z");
+        Instant endTime = Instant.parse("2024-01-02T00:00:00Z");
+        when(aggregationService.getTopDevices("zone-1", null, RankingMetric.MAX, false, 2, startTime, endTime))
+            .thenReturn(List.of(
+                new AggregationService.AggregationResult("device-2", "zone-1", DeviceType.THERMOSTAT,
+                    startTime, endTime, 30.0, 20.0, 45.0, 30.0, 10L),
+                new AggregationService.AggregationResult("device-1", "zone-1", DeviceType.THERMOSTAT,
+                    startTime, endTime, 25.0, 20.0, 40.0, 25.0, 10L)));
+
+        mockMvc.perform(get("/api/events/zone/zone-1/top")
+                .param("metric", "max")
+                .param("limit", "2")
+                .param("startTime", "2024-01-01T00:00:00Z")
+                .param("endTime", "2024-01-02T00:00:00Z"))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$[0].deviceId").value("device-2"))
+            .andExpect(jsonPath("$[1].maxValue").value(40.0));
+    }
+
+    @Test
+    void getTopDevicesByZone_WithUnknownMetric_Returns400() throws Exception {
+        mockMvc.perform(get("/api/events/zone/zone-1/top")
+                .param("metric", "median")
+                .param("startTime", "2024-01-01T00:00:00Z")
+                .param("endTime", "2024-01-02T00:00:00Z"))
+            .andExpect(status().isBadRequest());
+    }
+
+    private static Map<Double, Double> percentiles(double... pairs) {
+        Map<Double, Double> values = new LinkedHashMap<>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            values.put(pairs[i], pairs[i + 1]);
+        }
+        return values;
+    }
 }
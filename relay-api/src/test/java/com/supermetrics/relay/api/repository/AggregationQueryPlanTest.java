@@ -0,0 +1,277 @@
+package com.supermetrics.relay.api.repository;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.supermetrics.relay.api.config.ApiProperties;
+import com.supermetrics.relay.common.domain.DeviceType;
+import com.supermetrics.relay.common.entity.DeviceEventAggregation;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.flywaydb.core.Flyway;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.utility.DockerImageName;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs every repository query against TimescaleDB with the Flyway migrations applied and
+ * asserts on its EXPLAIN plan: no sequential scan of any chunk, the index matching the query's
+ * filter, and only the chunks overlapping the requested day. Skipped without Docker.
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class AggregationQueryPlanTest {
+
+    @Container
+    private static final PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>(
+        DockerImageName.parse("timescale/timescaledb:2.23.0-pg16").asCompatibleSubstituteFor("postgres"));
+
+    private static final Instant DAY = Instant.parse("2024-01-17T00:00:00Z");
+    private static final TimeSlice SLICE = new TimeSlice(DeviceEventAggregation.WindowType.HOURLY, DAY,
+        DAY.plus(Duration.ofDays(1)));
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static DataSource dataSource;
+
+    private RecordingDataSource recording;
+    private AggregationSummaryRepository summaryRepository;
+    private AggregationRowRepository rowRepository;
+
+    @BeforeAll
+    static void migrateAndSeed() {
+        dataSource = new DriverManagerDataSource(postgres.getJdbcUrl(), postgres.getUsername(), postgres.getPassword());
+        Flyway.configure()
+            .dataSource(dataSource)
+            .locations("filesystem:../relay-processor/src/main/resources/db/migration")
+            .load()
+            .migrate();
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        // Five weeks of hourly rows for 200 devices in 20 zones: six 7-day chunks
+        jdbcTemplate.execute("""
+            DO $$
+            BEGIN
+                SET LOCAL session_replication_role = replica;
+                INSERT INTO device_event_aggregations (device_id, device_type, zone, time_window_start,
+                    time_window_end, window_type, avg_value, min_value, max_value, median_value, count)
+                SELECT 'device-' || d,
+                       (ARRAY['THERMOSTAT', 'HEART_RATE_METER', 'CAR_FUEL'])[1 + d % 3],
+                       'zone-' || d % 20,
+                       h, h + INTERVAL '1 hour', 'HOURLY', 20, 10, 30, 20, 60
+                FROM generate_series(0, 199) d,
+                     generate_series(TIMESTAMPTZ '2024-01-01', TIMESTAMPTZ '2024-02-04 23:00', INTERVAL '1 hour') h;
+            END $$
+            """);
+        jdbcTemplate.execute("ANALYZE device_event_aggregations");
+    }
+
+    @BeforeEach
+    void setUp() {
+        recording = new RecordingDataSource(dataSource);
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(recording);
+        QueryConcurrencyLimiter limiter = new QueryConcurrencyLimiter(new ApiProperties(), new SimpleMeterRegistry());
+        ReplicaRouter replicaRouter = new ReplicaRouter(recording, Map.of(), new ApiProperties(),
+            new SimpleMeterRegistry());
+        summaryRepository = new AggregationSummaryRepository(jdbcTemplate, limiter, replicaRouter);
+        rowRepository = new AggregationRowRepository(jdbcTemplate, limiter, replicaRouter);
+    }
+
+    @Test
+    void summarizeByDevice() throws Exception {
+        summaryRepository.summarize("device-7", null, null, List.of(SLICE));
+
+        assertPlan("idx_agg_device_window_start");
+    }
+
+    @Test
+    void summarizeByZone() throws Exception {
+        summaryRepository.summarize(null, "zone-7", null, List.of(SLICE));
+
+        assertPlan("idx_agg_zone_type_window_start");
+    }
+
+    @Test
+    void summarizeByZoneAndType() throws Exception {
+        summaryRepository.summarize(null, "zone-7", DeviceType.HEART_RATE_METER, List.of(SLICE));
+
+        assertPlan("idx_agg_zone_type_window_start");
+    }
+
+    @Test
+    void summarizeByDeviceType() throws Exception {
+        summaryRepository.summarize(null, null, DeviceType.THERMOSTAT, List.of(SLICE));
+
+        assertPlan("idx_agg_type_window_start");
+    }
+
+    @Test
+    void summarizeByHour() throws Exception {
+        summaryRepository.summarizeByHour(null, "zone-7", null, List.of(SLICE));
+
+        assertPlan("idx_agg_zone_type_window_start");
+    }
+
+    @Test
+    void summarizeByDimension() throws Exception {
+        summaryRepository.summarizeByDimension(Dimension.DEVICE_ID, List.of("device-1", "device-2"), List.of(SLICE));
+
+        assertPlan("idx_agg_device_window_start");
+    }
+
+    @Test
+    void rankDevices() throws Exception {
+        summaryRepository.rankDevices("zone-7", null, RankingMetric.AVG, false, 5, List.of(SLICE));
+
+        assertPlan("idx_agg_zone_type_window_start");
+    }
+
+    @Test
+    void summarizeDevicesByHour() throws Exception {
+        summaryRepository.summarizeDevicesByHour(null, DeviceType.THERMOSTAT, List.of(SLICE));
+
+        assertPlan("idx_agg_type_window_start");
+    }
+
+    @Test
+    void streamByBucket() throws Exception {
+        summaryRepository.streamByBucket(null, null, DeviceType.CAR_FUEL, SLICE, Duration.ofHours(1),
+            (bucket, summary) -> { });
+
+        assertPlan("idx_agg_type_window_start");
+    }
+
+    @Test
+    void mergeDigests() throws Exception {
+        summaryRepository.mergeDigests("device-7", null, null, List.of(SLICE));
+
+        assertPlan("idx_agg_device_window_start");
+    }
+
+    @Test
+    void streamRows() throws Exception {
+        try (Stream<DeviceEventAggregation> rows = rowRepository.streamRows("device-7", null, null, SLICE)) {
+            assertThat(rows.count()).isEqualTo(24);
+        }
+
+        assertPlan("idx_agg_device_window_start");
+    }
+
+    private void assertPlan(String expectedIndex) throws Exception {
+        assertThat(recording.statements).hasSize(1);
+        List<JsonNode> nodes = new ArrayList<>();
+        collect(explain(recording.statements.get(0)), nodes);
+
+        Set<String> chunks = new TreeSet<>();
+        Set<String> indexes = new TreeSet<>();
+        for (JsonNode node : nodes) {
+            String relation = node.path("Relation Name").asText();
+            if (relation.startsWith("_hyper_") || relation.equals("device_event_aggregations")) {
+                assertThat(node.path("Node Type").asText()).as("scan of %s", relation).isNotEqualTo("Seq Scan");
+                chunks.add(relation);
+            }
+            if (node.has("Index Name")) {
+                indexes.add(node.get("Index Name").asText());
+            }
+        }
+        assertThat(indexes).anyMatch(index -> index.endsWith(expectedIndex));
+        // The day and the hour before it can straddle at most one chunk boundary
+        assertThat(chunks).isNotEmpty().hasSizeLessThanOrEqualTo(2);
+    }
+
+    private static JsonNode explain(RecordedStatement statement) throws Exception {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement explain = connection.prepareStatement("EXPLAIN (FORMAT JSON) " + statement.sql())) {
+            for (Map.Entry<Integer, Object> parameter : statement.parameters().entrySet()) {
+                explain.setObject(parameter.getKey(), parameter.getValue());
+            }
+            try (ResultSet rs = explain.executeQuery()) {
+                rs.next();
+                return objectMapper.readTree(rs.getString(1)).get(0).get("Plan");
+            }
+        }
+    }
+
+    private static void collect(JsonNode node, List<JsonNode> nodes) {
+        nodes.add(node);
+        for (JsonNode child : node.path("Plans")) {
+            collect(child, nodes);
+        }
+    }
+
+    private record RecordedStatement(String sql, Map<Integer, Object> parameters) {}
+
+    /**
+     * Records the SQL and bound parameters of every prepared statement so the test can EXPLAIN
+     * exactly what the repository ran.
+     */
+    private static final class RecordingDataSource extends DelegatingDataSource {
+        final List<RecordedStatement> statements = new ArrayList<>();
+
+        RecordingDataSource(DataSource target) {
+            super(target);
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            Connection connection = super.getConnection();
+            return proxy(Connection.class, connection, (method, args) -> {
+                Object result = invoke(method, connection, args);
+                if (!method.getName().equals("prepareStatement")) {
+                    return result;
+                }
+                RecordedStatement statement = new RecordedStatement((String) args[0], new TreeMap<>());
+                statements.add(statement);
+                PreparedStatement prepared = (PreparedStatement) result;
+                return proxy(PreparedStatement.class, prepared, (setter, values) -> {
+                    if (setter.getName().startsWith("set") && values != null && values.length == 2
+                            && values[0] instanceof Integer index) {
+                        statement.parameters().put(index, values[1]);
+                    }
+                    return invoke(setter, prepared, values);
+                });
+            });
+        }
+
+        private static Object invoke(Method method, Object target, Object[] args) throws Throwable {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> T proxy(Class<T> type, T target, Handler handler) {
+            return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> handler.handle(method, args));
+        }
+
+        private interface Handler {
+            Object handle(Method method, Object[] args) throws Throwable;
+        }
+    }
+}
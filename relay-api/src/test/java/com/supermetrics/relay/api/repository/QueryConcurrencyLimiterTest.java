@@ -0,0 +1,77 @@
+package com.supermetrics.relay.api.repository;
+
+import com.supermetrics.relay.api.config.ApiProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class QueryConcurrencyLimiterTest {
+
+    private SimpleMeterRegistry meterRegistry;
+    private QueryConcurrencyLimiter limiter;
+
+    @BeforeEach
+    void setUp() {
+        ApiProperties properties = new ApiProperties();
+        properties.getConcurrency().setMaxQueries(1);
+        properties.getConcurrency().setMaxStreamingQueries(1);
+        properties.getConcurrency().setAcquireTimeout(Duration.ofMillis(50));
+        meterRegistry = new SimpleMeterRegistry();
+        limiter = new QueryConcurrencyLimiter(properties, meterRegistry);
+    }
+
+    @Test
+    void rejectsQueriesBeyondTheLimitAfterTheAcquireTimeout() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            Future<String> first = executor.submit(() -> limiter.query(() -> {
+                running.countDown();
+                await(release);
+                return "first";
+            }));
+            running.await();
+
+            assertThatThrownBy(() -> limiter.query(() -> "second")).isInstanceOf(QueryRejectedException.class);
+            assertThat(meterRegistry.get("relay.api.queries.active").tag("kind", "interactive").gauge().value())
+                .isEqualTo(1.0);
+
+            release.countDown();
+            assertThat(first.get()).isEqualTo("first");
+        }
+        assertThat(limiter.query(() -> "third")).isEqualTo("third");
+        assertThat(meterRegistry.get("relay.api.queries.rejected").tag("kind", "interactive").counter().count())
+            .isEqualTo(1.0);
+    }
+
+    @Test
+    void streamingPermitsAreSeparateAndReleasedOnceOnClose() {
+        QueryConcurrencyLimiter.Permit permit = limiter.acquireStreaming();
+
+        assertThat(limiter.query(() -> "interactive")).isEqualTo("interactive");
+        assertThatThrownBy(limiter::acquireStreaming).isInstanceOf(QueryRejectedException.class);
+
+        permit.close();
+        permit.close();
+        try (QueryConcurrencyLimiter.Permit next = limiter.acquireStreaming()) {
+            assertThatThrownBy(limiter::acquireStreaming).isInstanceOf(QueryRejectedException.class);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
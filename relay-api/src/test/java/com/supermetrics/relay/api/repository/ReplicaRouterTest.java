@@ -0,0 +1,145 @@
+package com.supermetrics.relay.api.repository;
+
+import com.supermetrics.relay.api.config.ApiProperties;
+import com.supermetrics.relay.common.entity.DeviceEventAggregation;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class ReplicaRouterTest {
+
+    private static final Instant NOW = Instant.parse("2024-01-01T12:00:00Z");
+
+    @Mock
+    private DataSource primary;
+
+    @Mock
+    private DataSource replica;
+
+    @Mock
+    private Connection primaryConnection;
+
+    @Mock
+    private Connection replicaConnection;
+
+    private ReplicaRouter router;
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        lenient().when(primary.getConnection()).thenReturn(primaryConnection);
+        lenient().when(replica.getConnection()).thenReturn(replicaConnection);
+        meterRegistry = new SimpleMeterRegistry();
+        router = new ReplicaRouter(primary, Map.of("replica-1", replica), new ApiProperties(), meterRegistry,
+            Clock.fixed(NOW, ZoneOffset.UTC));
+    }
+
+    @Test
+    void readsUseThePrimaryUntilReplicaLagIsKnown() {
+        assertThat(connectionFor(hours(NOW.minus(Duration.ofDays(2)), NOW.minus(Duration.ofDays(1)))))
+            .isSameAs(primaryConnection);
+    }
+
+    @Test
+    void oldRangesGoToACaughtUpReplica() {
+        router.recordLag("replica-1", Duration.ofSeconds(2));
+
+        assertThat(connectionFor(hours(NOW.minus(Duration.ofDays(2)), NOW.minus(Duration.ofDays(1)))))
+            .isSameAs(replicaConnection);
+        assertThat(meterRegistry.get("relay.api.datasource.reads").tag("target", "replica-1").timer().count())
+            .isEqualTo(1L);
+        assertThat(meterRegistry.get("relay.api.datasource.replica.lag").tag("target", "replica-1").gauge().value())
+            .isEqualTo(2.0);
+    }
+
+    @Test
+    void recentRangesStayOnThePrimary() {
+        router.recordLag("replica-1", Duration.ZERO);
+
+        // An unaligned end still reads the hour it falls in, which ends at 12:00
+        assertThat(connectionFor(hours(NOW.minus(Duration.ofHours(3)), NOW.minus(Duration.ofMinutes(50)))))
+            .isSameAs(primaryConnection);
+        assertThat(meterRegistry.get("relay.api.datasource.reads").tag("target", ReplicaRouter.PRIMARY).timer().count())
+            .isEqualTo(1L);
+    }
+
+    @Test
+    void laggingReplicasAreSkipped() {
+        router.recordLag("replica-1", Duration.ofMinutes(1));
+
+        assertThat(connectionFor(hours(NOW.minus(Duration.ofDays(2)), NOW.minus(Duration.ofDays(1)))))
+            .isSameAs(primaryConnection);
+    }
+
+    @Test
+    void unreachableReplicasBecomeUnknown() throws SQLException {
+        router.recordLag("replica-1", Duration.ZERO);
+        primaryAt("0/3000060");
+        when(replica.getConnection()).thenThrow(new SQLException("connection refused"));
+
+        router.probe();
+
+        assertThat(connectionFor(hours(NOW.minus(Duration.ofDays(2)), NOW.minus(Duration.ofDays(1)))))
+            .isSameAs(primaryConnection);
+    }
+
+    @Test
+    void replicasBecomeUnknownWhileThePrimaryPositionCannotBeRead() throws SQLException {
+        router.recordLag("replica-1", Duration.ZERO);
+        when(primaryConnection.createStatement()).thenThrow(new SQLException("connection reset"));
+
+        router.probe();
+
+        assertThat(connectionFor(hours(NOW.minus(Duration.ofDays(2)), NOW.minus(Duration.ofDays(1)))))
+            .isSameAs(primaryConnection);
+    }
+
+    private void primaryAt(String lsn) throws SQLException {
+        Statement statement = mock(Statement.class);
+        ResultSet resultSet = mock(ResultSet.class);
+        ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+        when(primaryConnection.createStatement()).thenReturn(statement);
+        when(statement.executeQuery(anyString())).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(true, false);
+        when(resultSet.getMetaData()).thenReturn(metaData);
+        when(metaData.getColumnCount()).thenReturn(1);
+        when(resultSet.getString(1)).thenReturn(lsn);
+    }
+
+    private Connection connectionFor(List<TimeSlice> slices) {
+        return router.read(slices, () -> {
+            try {
+                return router.dataSource().getConnection();
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private static List<TimeSlice> hours(Instant start, Instant end) {
+        return List.of(new TimeSlice(DeviceEventAggregation.WindowType.HOURLY, start, end));
+    }
+}
@@ -1,31 +1,67 @@
 package com.supermetrics.relay.api.service;
 
 import com.supermetrics.relay.common.domain.DeviceType;
+import com.supermetrics.relay.common.domain.LiveAggregation;
+import com.supermetrics.relay.api.client.LiveAggregationClient;
+import com.supermetrics.relay.api.config.ApiProperties;
 import com.supermetrics.relay.common.entity.DeviceEventAggregation;
-import com.supermetrics.relay.api.repository.DeviceEventAggregationRepository;
+import com.supermetrics.relay.api.repository.AggregationRowRepository;
+import com.supermetrics.relay.api.repository.AggregationSummary;
+import com.supermetrics.relay.api.repository.AggregationSummaryRepository;
+import com.supermetrics.relay.api.repository.Dimension;
+import com.supermetrics.relay.api.repository.RankingMetric;
+import com.supermetrics.relay.api.repository.TimeSlice;
+import com.supermetrics.relay.common.sketch.TDigest;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.web.client.ResourceAccessException;
 
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
 class AggregationServiceTest {
 
+    private static final Instant ROLLUPS_SINCE = Instant.EPOCH;
+
+    @Mock
+    private AggregationSummaryRepository summaryRepository;
+
+    @Mock
+    private AggregationRowRepository rowRepository;
+
     @Mock
-    private DeviceEventAggregationRepository aggregationRepository;
+    private LiveAggregationClient liveAggregationClient;
 
-    @InjectMocks
     private AggregationService aggregationService;
+    private HourlyAggregationCache hourlyCache;
+    private KnownKeys knownKeys;
+    private ApiProperties properties;
 
     private Instant startTime;
     private Instant endTime;
@@ -34,15 +70,23 @@ class AggregationServiceTest {
     void setUp() {
         startTime = Instant.parse("2024-01-01T00:00:00Z");
         endTime = Instant.parse("2024-01-01T23:59:59Z");
+        properties = new ApiProperties();
+        properties.getRollups().setSince(ROLLUPS_SINCE);
+        RollupProgress progress = new RollupProgress(summaryRepository, properties);
+        when(summaryRepository.latestWindowStart(DeviceEventAggregation.WindowType.MINUTE, null))
+            .thenReturn(Instant.parse("2024-01-02T00:05:00Z"));
+        progress.refresh();
+        hourlyCache = new HourlyAggregationCache(properties, new SimpleMeterRegistry(), progress);
+        knownKeys = new KnownKeys(summaryRepository, properties, new SimpleMeterRegistry());
+        aggregationService = new AggregationService(summaryRepository, rowRepository, liveAggregationClient,
+            hourlyCache, knownKeys, properties);
     }
 
     @Test
     void getAggregationsByDevice() {
-        DeviceEventAggregation agg = createAggregation("device-123", DeviceType.THERMOSTAT, "zone-1",
-            10.0, 5.0, 15.0, 10.0, 100L);
-
-        when(aggregationRepository.findByDeviceIdAndTimeRange(eq("device-123"), any(), any()))
-            .thenReturn(List.of(agg));
+        when(summaryRepository.summarizeByHour(eq("device-123"), isNull(), isNull(), any()))
+            .thenReturn(Map.of(startTime,
+                createSummary("device-123", DeviceType.THERMOSTAT, "zone-1", 10.0, 5.0, 15.0, 10.0, 100L)));
 
         AggregationService.AggregationResult result = aggregationService
             .getAggregationsByDevice("device-123", startTime, endTime);
@@ -53,12 +97,28 @@ class AggregationServiceTest {
     }
 
     @Test
-    void getAggregationsByZone() {
-        DeviceEventAggregation agg = createAggregation("device-123", DeviceType.THERMOSTAT, "zone-1",
-            10.0, 5.0, 15.0, 10.0, 100L);
+    void unknownDeviceIsAnsweredWithoutAQuery() {
+        when(summaryRepository.distinctValues(Dimension.DEVICE_ID, null)).thenReturn(List.of("device-1"));
+        when(summaryRepository.distinctValues(Dimension.ZONE, null)).thenReturn(List.of("zone-1"));
+        knownKeys.refresh();
 
-        when(aggregationRepository.findByZoneAndTimeRange(eq("zone-1"), any(), any()))
-            .thenReturn(List.of(agg));
+        AggregationService.AggregationResult result = aggregationService.getAggregationsByDevice(
+            "device-typo", startTime, endTime);
+        AggregationService.BatchResult batch = aggregationService.getBatchAggregations(
+            List.of("device-typo"), List.of("zone-typo"), List.of(), startTime, endTime);
+
+        assertThat(result.count()).isZero();
+        assertThat(batch.devices()).isEmpty();
+        assertThat(batch.zones()).isEmpty();
+        verify(summaryRepository, never()).summarizeByHour(any(), any(), any(), any());
+        verify(summaryRepository, never()).summarizeByDimension(any(), any(), any());
+    }
+
+    @Test
+    void getAggregationsByZone() {
+        when(summaryRepository.summarizeByHour(isNull(), eq("zone-1"), isNull(), any()))
+            .thenReturn(Map.of(startTime,
+                createSummary("device-123", DeviceType.THERMOSTAT, "zone-1", 10.0, 5.0, 15.0, 10.0, 100L)));
 
         AggregationService.AggregationResult result = aggregationService
             .getAggregationsByZone("zone-1", startTime, endTime);
@@ -68,37 +128,402 @@ class AggregationServiceTest {
     }
 
     @Test
-    void calculatesWeightedAverage() {
-        DeviceEventAggregation agg1 = createAggregation("device-123", DeviceType.THERMOSTAT, "zone-1",
-            10.0, 5.0, 15.0, 10.0, 50L);
-        DeviceEventAggregation agg2 = createAggregation("device-123", DeviceType.THERMOSTAT, "zone-1",
-            20.0, 15.0, 25.0, 20.0, 50L);
+    void calculatesWeightedAverageAndMedianFromSummary() {
+        AggregationSummary summary = new AggregationSummary(3L, null, "zone-1", DeviceType.THERMOSTAT,
+            "zone-1", DeviceType.THERMOSTAT, 10.0 * 50 + 20.0 * 30 + 30.0 * 20, 100L, 5.0, 35.0,
+            new double[]{10.0, 20.0, 30.0}, new long[]{50L, 30L, 20L});
+        when(summaryRepository.summarizeByHour(isNull(), eq("zone-1"), isNull(), any()))
+            .thenReturn(Map.of(startTime, summary));
+
+        AggregationService.AggregationResult result = aggregationService
+            .getAggregationsByZone("zone-1", startTime, endTime);
+
+        assertThat(result.avgValue()).isEqualTo(17.0);
+        assertThat(result.medianValue()).isEqualTo(10.0);
+        assertThat(result.deviceId()).isNull();
+        assertThat(result.count()).isEqualTo(100L);
+    }
 
-        when(aggregationRepository.findByDeviceIdAndTimeRange(eq("device-123"), any(), any()))
-            .thenReturn(List.of(agg1, agg2));
+    @Test
+    void emptySummaryHasNoValues() {
+        when(summaryRepository.summarizeByHour(eq("device-123"), isNull(), isNull(), any()))
+            .thenReturn(Map.of());
 
         AggregationService.AggregationResult result = aggregationService
             .getAggregationsByDevice("device-123", startTime, endTime);
 
+        assertThat(result.count()).isZero();
+        assertThat(result.avgValue()).isNull();
+    }
+
+    @Test
+    void dayAlignedRangeReadsDailyWindows() {
+        Instant start = Instant.parse("2024-01-01T00:00:00Z");
+        Instant end = Instant.parse("2024-03-31T00:00:00Z");
+
+        when(summaryRepository.summarize("device-123", null, null,
+            List.of(new TimeSlice(DeviceEventAggregation.WindowType.DAILY, start, end))))
+            .thenReturn(createSummary("device-123", DeviceType.THERMOSTAT, "zone-1", 10.0, 5.0, 15.0, 10.0, 100L));
+
+        AggregationService.AggregationResult result = aggregationService
+            .getAggregationsByDevice("device-123", start, end);
+
+        assertThat(result.count()).isEqualTo(100L);
+        verify(summaryRepository, times(1)).summarize(any(), any(), any(), any());
+    }
+
+    @Test
+    void mergesLivePartialHourWithStoredHours() {
+        Instant liveFrom = Instant.parse("2024-01-01T10:00:00Z");
+        Instant end = Instant.parse("2024-01-01T11:00:00Z");
+        when(liveAggregationClient.liveFrom()).thenReturn(Optional.of(liveFrom));
+        when(summaryRepository.summarizeByHour("device-123", null, null,
+            List.of(new TimeSlice(DeviceEventAggregation.WindowType.HOURLY, startTime, liveFrom))))
+            .thenReturn(Map.of(startTime,
+                createSummary("device-123", DeviceType.THERMOSTAT, "zone-1", 10.0, 5.0, 15.0, 10.0, 50L)));
+        when(liveAggregationClient.findDeviceAggregation("device-123", "zone-1", DeviceType.THERMOSTAT, liveFrom, end))
+            .thenReturn(Optional.of(new LiveAggregation("device-123", "zone-1", DeviceType.THERMOSTAT,
+                liveFrom, end, 20.0, 18.0, 40.0, 20.0, 50L)));
+
+        AggregationService.AggregationResult result = aggregationService
+            .getAggregationsByDevice("device-123", startTime, end);
+
+        assertThat(result.count()).isEqualTo(100L);
         assertThat(result.avgValue()).isEqualTo(15.0);
+        assertThat(result.minValue()).isEqualTo(5.0);
+        assertThat(result.maxValue()).isEqualTo(40.0);
+        assertThat(result.medianValue()).isEqualTo(10.0);
+        assertThat(result.zone()).isEqualTo("zone-1");
+    }
+
+    @Test
+    void mergeKeepsMediansSorted() {
+        AggregationSummary stored = new AggregationSummary(2L, "device-123", "zone-1", DeviceType.THERMOSTAT,
+            "zone-1", DeviceType.THERMOSTAT, 100.0, 10L, 1.0, 30.0,
+            new double[]{5.0, 30.0}, new long[]{5L, 5L});
+
+        AggregationSummary merged = AggregationService.merge(stored, new LiveAggregation("device-123", "zone-2",
+            DeviceType.THERMOSTAT, startTime, endTime, 12.0, 10.0, 14.0, 12.0, 4L));
+
+        assertThat(merged.medians()).containsExactly(5.0, 12.0, 30.0);
+        assertThat(merged.medianWeights()).containsExactly(5L, 4L, 5L);
+        assertThat(merged.zone()).isNull();
+        assertThat(merged.latestZone()).isEqualTo("zone-2");
+        assertThat(merged.count()).isEqualTo(14L);
+    }
+
+    @Test
+    void fallsBackToPostgresWhenProcessorIsUnavailable() {
+        Instant liveFrom = Instant.parse("2024-01-01T10:00:00Z");
+        Instant end = Instant.parse("2024-01-01T11:00:00Z");
+        when(liveAggregationClient.liveFrom()).thenReturn(Optional.of(liveFrom));
+        when(summaryRepository.summarizeByHour(eq("device-123"), isNull(), isNull(), any()))
+            .thenReturn(Map.of(startTime,
+                createSummary("device-123", DeviceType.THERMOSTAT, "zone-1", 10.0, 5.0, 15.0, 10.0, 60L)));
+        when(liveAggregationClient.findDeviceAggregation(any(), any(), any(), any(), any()))
+            .thenThrow(new ResourceAccessException("connection refused"));
+
+        AggregationService.AggregationResult result = aggregationService
+            .getAggregationsByDevice("device-123", startTime, end);
+
+        assertThat(result.count()).isEqualTo(60L);
+        verify(summaryRepository).summarizeByHour("device-123", null, null,
+            List.of(new TimeSlice(DeviceEventAggregation.WindowType.HOURLY, liveFrom, end)));
+    }
+
+    @Test
+    void cachedHoursAreNotFetchedAgain() {
+        when(summaryRepository.summarizeByHour(isNull(), eq("zone-1"), isNull(), any()))
+            .thenReturn(Map.of(startTime,
+                createSummary("device-123", DeviceType.THERMOSTAT, "zone-1", 10.0, 5.0, 15.0, 10.0, 100L)));
+
+        aggregationService.getAggregationsByZone("zone-1", startTime, endTime);
+        AggregationService.AggregationResult result = aggregationService
+            .getAggregationsByZone("zone-1", startTime, endTime);
+
         assertThat(result.count()).isEqualTo(100L);
+        verify(summaryRepository, times(1)).summarizeByHour(any(), any(), any(), any());
+    }
+
+    @Test
+    void fetchesOnlyMissingHoursAndPartialEdges() {
+        Instant eleven = Instant.parse("2024-01-01T11:00:00Z");
+        Instant twelve = Instant.parse("2024-01-01T12:00:00Z");
+        Instant thirteen = Instant.parse("2024-01-01T13:00:00Z");
+        when(summaryRepository.summarizeByHour(isNull(), eq("zone-1"), isNull(), any()))
+            .thenReturn(Map.of(eleven,
+                createSummary("device-123", DeviceType.THERMOSTAT, "zone-1", 10.0, 5.0, 15.0, 10.0, 10L)));
+        when(summaryRepository.summarize(isNull(), eq("zone-1"), isNull(), any()))
+            .thenReturn(createSummary("device-123", DeviceType.THERMOSTAT, "zone-1", 20.0, 5.0, 25.0, 20.0, 10L));
+        aggregationService.getAggregationsByZone("zone-1", eleven, twelve);
+
+        AggregationService.AggregationResult result = aggregationService.getAggregationsByZone(
+            "zone-1", Instant.parse("2024-01-01T10:30:00Z"), Instant.parse("2024-01-01T13:15:00Z"));
+
+        verify(summaryRepository).summarizeByHour(null, "zone-1", null,
+            List.of(new TimeSlice(DeviceEventAggregation.WindowType.HOURLY, twelve, thirteen)));
+        verify(summaryRepository).summarize(null, "zone-1", null, List.of(new TimeSlice(
+            DeviceEventAggregation.WindowType.MINUTE, Instant.parse("2024-01-01T10:30:00Z"), eleven)));
+        verify(summaryRepository).summarize(null, "zone-1", null, List.of(new TimeSlice(
+            DeviceEventAggregation.WindowType.MINUTE, thirteen, Instant.parse("2024-01-01T13:15:00Z"))));
+        assertThat(result.count()).isEqualTo(30L);
+        assertThat(result.maxValue()).isEqualTo(25.0);
+    }
+
+    @Test
+    void hoursCloseOnceTheProcessorIsPastTheirGrace() {
+        assertThat(hourlyCache.isClosed(Instant.parse("2024-01-01T22:00:00Z"))).isTrue();
+        assertThat(hourlyCache.isClosed(Instant.parse("2024-01-01T23:00:00Z"))).isFalse();
+    }
+
+    @Test
+    void closedHoursWithoutRowsAreFetchedAgain() {
+        properties.getCache().setOpenHourTtl(Duration.ZERO);
+        Instant ten = Instant.parse("2024-01-01T10:00:00Z");
+        Instant eleven = Instant.parse("2024-01-01T11:00:00Z");
+        Instant twelve = Instant.parse("2024-01-01T12:00:00Z");
+        when(summaryRepository.summarizeByHour(isNull(), eq("zone-1"), isNull(), any()))
+            .thenReturn(Map.of(ten,
+                createSummary("device-123", DeviceType.THERMOSTAT, "zone-1", 10.0, 5.0, 15.0, 10.0, 100L)));
+
+        aggregationService.getAggregationsByZone("zone-1", ten, twelve);
+        aggregationService.getAggregationsByZone("zone-1", ten, twelve);
+
+        verify(summaryRepository).summarizeByHour(null, "zone-1", null,
+            List.of(new TimeSlice(DeviceEventAggregation.WindowType.HOURLY, ten, twelve)));
+        verify(summaryRepository).summarizeByHour(null, "zone-1", null,
+            List.of(new TimeSlice(DeviceEventAggregation.WindowType.HOURLY, eleven, twelve)));
+    }
+
+    @Test
+    void groupsContiguousHoursIntoRuns() {
+        Instant ten = Instant.parse("2024-01-01T10:00:00Z");
+        Instant eleven = Instant.parse("2024-01-01T11:00:00Z");
+        Instant thirteen = Instant.parse("2024-01-01T13:00:00Z");
+
+        assertThat(AggregationService.hourlyRuns(List.of(ten, eleven, thirteen))).containsExactly(
+            new TimeSlice(DeviceEventAggregation.WindowType.HOURLY, ten, Instant.parse("2024-01-01T12:00:00Z")),
+            new TimeSlice(DeviceEventAggregation.WindowType.HOURLY, thirteen, Instant.parse("2024-01-01T14:00:00Z")));
+    }
+
+    @Test
+    void seriesBucketsBecomeResultWindows() {
+        doAnswer(invocation -> {
+            BiConsumer<Instant, AggregationSummary> consumer = invocation.getArgument(5);
+            consumer.accept(startTime,
+                createSummary(null, DeviceType.THERMOSTAT, "zone-1", 10.0, 5.0, 15.0, 10.0, 100L));
+            return null;
+        }).when(summaryRepository).streamByBucket(isNull(), eq("zone-1"), isNull(),
+            eq(new TimeSlice(DeviceEventAggregation.WindowType.HOURLY, startTime, endTime)),
+            eq(Duration.ofDays(1)), any());
+        List<AggregationService.AggregationResult> results = new ArrayList<>();
+
+        aggregationService.streamSeries(null, "zone-1", null, SeriesBucket.DAY, startTime, endTime, results::add);
+
+        assertThat(results).hasSize(1);
+        assertThat(results.get(0).timeWindowStart()).isEqualTo(startTime);
+        assertThat(results.get(0).timeWindowEnd()).isEqualTo(startTime.plus(Duration.ofDays(1)));
+        assertThat(results.get(0).medianValue()).isEqualTo(10.0);
+    }
+
+    @Test
+    void batchRunsOneGroupedQueryPerDimension() {
+        Instant end = Instant.parse("2024-01-02T00:00:00Z");
+        List<TimeSlice> day = List.of(new TimeSlice(DeviceEventAggregation.WindowType.DAILY, startTime, end));
+        when(summaryRepository.summarizeByDimension(Dimension.DEVICE_ID, Set.of("device-1", "device-2"), day))
+            .thenReturn(Map.of("device-2",
+                createSummary("device-2", DeviceType.THERMOSTAT, "zone-1", 10.0, 5.0, 15.0, 10.0, 100L)));
+        when(summaryRepository.summarizeByDimension(Dimension.DEVICE_TYPE, Set.of("THERMOSTAT"), day))
+            .thenReturn(Map.of("THERMOSTAT",
+                createSummary(null, DeviceType.THERMOSTAT, null, 12.0, 5.0, 15.0, 12.0, 300L)));
+
+        AggregationService.BatchResult result = aggregationService.getBatchAggregations(
+            List.of("device-1", "device-2", "device-1"), List.of(), List.of(DeviceType.THERMOSTAT), startTime, end);
+
+        assertThat(result.devices()).containsOnlyKeys("device-2");
+        assertThat(result.devices().get("device-2").count()).isEqualTo(100L);
+        assertThat(result.zones()).isEmpty();
+        assertThat(result.deviceTypes().get(DeviceType.THERMOSTAT).avgValue()).isEqualTo(12.0);
+        verify(summaryRepository, never()).summarizeByDimension(eq(Dimension.ZONE), any(), any());
+    }
+
+    @Test
+    void batchRejectsRequestsOverTheLimits() {
+        properties.getBatch().setMaxTargets(2);
+
+        assertThatThrownBy(() -> aggregationService.getBatchAggregations(
+            List.of("device-1", "device-2"), List.of("zone-1"), List.of(), startTime, endTime))
+            .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> aggregationService.getBatchAggregations(
+            List.of("device-1"), List.of(), List.of(), startTime, startTime.plus(Duration.ofDays(60))))
+            .isInstanceOf(IllegalArgumentException.class);
+        verify(summaryRepository, never()).summarizeByDimension(any(), any(), any());
+    }
+
+    @Test
+    void topDevicesAreRankedFromCachedHours() {
+        Instant secondHour = startTime.plusSeconds(3600);
+        when(summaryRepository.summarizeDevicesByHour(eq("zone-1"), isNull(), any()))
+            .thenReturn(Map.of(
+                startTime, Map.of(
+                    "device-1", createSummary("device-1", DeviceType.THERMOSTAT, "zone-1", 20.0, 15.0, 25.0, 20.0, 10L),
+                    "device-2", createSummary("device-2", DeviceType.THERMOSTAT, "zone-1", 30.0, 25.0, 35.0, 30.0, 10L),
+                    "device-3", createSummary("device-3", DeviceType.THERMOSTAT, "zone-1", 10.0, 5.0, 15.0, 10.0, 10L)),
+                secondHour, Map.of(
+                    "device-1", createSummary("device-1", DeviceType.THERMOSTAT, "zone-1", 40.0, 35.0, 45.0, 40.0, 30L))));
+
+        List<AggregationService.AggregationResult> top = aggregationService.getTopDevices(
+            "zone-1", null, RankingMetric.AVG, false, 2, startTime, secondHour.plusSeconds(3600));
+        aggregationService.getTopDevices("zone-1", null, RankingMetric.AVG, false, 2, startTime,
+            secondHour.plusSeconds(3600));
+
+        assertThat(top).extracting(AggregationService.AggregationResult::deviceId).containsExactly("device-1", "device-2");
+        assertThat(top.get(0).avgValue()).isEqualTo(35.0);
+        assertThat(top.get(0).count()).isEqualTo(40L);
+        verify(summaryRepository, times(1)).summarizeDevicesByHour(any(), any(), any());
+        verify(summaryRepository, never()).rankDevices(any(), any(), any(), anyBoolean(), anyInt(), any());
+    }
+
+    @Test
+    void topDevicesWithinAnHourAreRankedInPostgres() {
+        Instant from = Instant.parse("2024-01-01T10:30:00Z");
+        Instant to = Instant.parse("2024-01-01T12:00:00Z");
+        when(summaryRepository.rankDevices(isNull(), eq(DeviceType.THERMOSTAT), eq(RankingMetric.MIN), eq(true),
+                eq(5), eq(AggregationService.planSlices(from, to, ROLLUPS_SINCE))))
+            .thenReturn(Map.of(
+                "device-3", createSummary("device-3", DeviceType.THERMOSTAT, "zone-1", 10.0, 5.0, 15.0, 10.0, 10L)));
+
+        List<AggregationService.AggregationResult> top = aggregationService.getTopDevices(
+            null, DeviceType.THERMOSTAT, RankingMetric.MIN, true, 5, from, to);
+
+        assertThat(top).extracting(AggregationService.AggregationResult::minValue).containsExactly(5.0);
+        verify(summaryRepository, never()).summarizeDevicesByHour(any(), any(), any());
+    }
+
+    @Test
+    void topDevicesRejectsLimitsOutsideTheConfiguredRange() {
+        assertThatThrownBy(() -> aggregationService.getTopDevices("zone-1", null, RankingMetric.COUNT, false,
+            properties.getRanking().getMaxLimit() + 1, startTime, endTime))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void percentilesAreReadFromTheMergedDigestOfThePlannedSlices() {
+        TDigest digest = new TDigest();
+        for (int value = 1; value <= 1000; value++) {
+            digest.add(value);
+        }
+        when(summaryRepository.mergeDigests(eq("device-1"), isNull(), isNull(),
+                eq(AggregationService.planSlices(startTime, endTime, ROLLUPS_SINCE))))
+            .thenReturn(digest);
+
+        AggregationService.Percentiles percentiles = aggregationService.getPercentiles(
+            "device-1", null, null, List.of(99.0, 50.0), startTime, endTime);
+
+        assertThat(percentiles.values().keySet()).containsExactly(99.0, 50.0);
+        assertThat(percentiles.values().get(50.0)).isCloseTo(500.0, within(10.0));
+        assertThat(percentiles.values().get(99.0)).isCloseTo(990.0, within(5.0));
+        assertThat(percentiles.median()).isEqualTo(percentiles.values().get(50.0));
+        assertThat(percentiles.count()).isEqualTo(1000L);
+    }
+
+    @Test
+    void percentilesAreNullWhenNoRowHasADigest() {
+        when(summaryRepository.mergeDigests(any(), any(), any(), any())).thenReturn(new TDigest());
+
+        AggregationService.Percentiles percentiles = aggregationService.getPercentiles(
+            null, "zone-1", null, List.of(95.0), startTime, endTime);
+
+        assertThat(percentiles.values()).containsEntry(95.0, null);
+        assertThat(percentiles.median()).isNull();
+    }
+
+    @Test
+    void exportPassesHourlyRowsAndClosesTheCursor() {
+        TimeSlice slice = new TimeSlice(DeviceEventAggregation.WindowType.HOURLY, startTime, endTime);
+        boolean[] closed = {false};
+        when(rowRepository.streamRows(null, "zone-1", null, slice)).thenReturn(Stream.of(
+                createAggregation("device-1", 10.0, 60L),
+                createAggregation("device-2", 20.0, 40L))
+            .onClose(() -> closed[0] = true));
+        List<DeviceEventAggregation> exported = new ArrayList<>();
+
+        aggregationService.exportHourlyRows(null, "zone-1", null, startTime, endTime, exported::add);
+
+        assertThat(exported).extracting(DeviceEventAggregation::getDeviceId).containsExactly("device-1", "device-2");
+        assertThat(closed[0]).isTrue();
+    }
+
+    @Test
+    void plansCoarsestWindowsThatTileRange() {
+        List<TimeSlice> slices = AggregationService.planSlices(
+            Instant.parse("2024-01-01T10:30:00Z"), Instant.parse("2024-01-03T14:00:00Z"), ROLLUPS_SINCE);
+
+        assertThat(slices).containsExactly(
+            new TimeSlice(DeviceEventAggregation.WindowType.MINUTE,
+                Instant.parse("2024-01-01T10:30:00Z"), Instant.parse("2024-01-01T11:00:00Z")),
+            new TimeSlice(DeviceEventAggregation.WindowType.HOURLY,
+                Instant.parse("2024-01-01T11:00:00Z"), Instant.parse("2024-01-02T00:00:00Z")),
+            new TimeSlice(DeviceEventAggregation.WindowType.DAILY,
+                Instant.parse("2024-01-02T00:00:00Z"), Instant.parse("2024-01-03T00:00:00Z")),
+            new TimeSlice(DeviceEventAggregation.WindowType.HOURLY,
+                Instant.parse("2024-01-03T00:00:00Z"), Instant.parse("2024-01-03T14:00:00Z")));
+    }
+
+    @Test
+    void rangesBeforeTheRollupCutOverKeepOverlappingHourlyWindows() {
+        List<TimeSlice> slices = AggregationService.planSlices(
+            Instant.parse("2024-01-01T10:30:00Z"), Instant.parse("2024-01-01T14:00:00Z"),
+            Instant.parse("2024-01-05T00:00:00Z"));
+
+        assertThat(slices).containsExactly(new TimeSlice(DeviceEventAggregation.WindowType.HOURLY,
+            Instant.parse("2024-01-01T10:00:00Z"), Instant.parse("2024-01-01T14:00:00Z")));
+    }
+
+    @Test
+    void rangesSpanningTheRollupCutOverSkipItsPartialDay() {
+        List<TimeSlice> slices = AggregationService.planSlices(
+            Instant.parse("2024-01-01T10:30:00Z"), Instant.parse("2024-01-04T14:30:00Z"),
+            Instant.parse("2024-01-02T09:20:00Z"));
+
+        assertThat(slices).containsExactly(
+            new TimeSlice(DeviceEventAggregation.WindowType.HOURLY,
+                Instant.parse("2024-01-01T10:00:00Z"), Instant.parse("2024-01-03T00:00:00Z")),
+            new TimeSlice(DeviceEventAggregation.WindowType.DAILY,
+                Instant.parse("2024-01-03T00:00:00Z"), Instant.parse("2024-01-04T00:00:00Z")),
+            new TimeSlice(DeviceEventAggregation.WindowType.HOURLY,
+                Instant.parse("2024-01-04T00:00:00Z"), Instant.parse("2024-01-04T14:00:00Z")),
+            new TimeSlice(DeviceEventAggregation.WindowType.MINUTE,
+                Instant.parse("2024-01-04T14:00:00Z"), Instant.parse("2024-01-04T14:30:00Z")));
+    }
+
+    @Test
+    void withoutACutOverEveryRangeReadsOverlappingHourlyWindows() {
+        Instant from = Instant.parse("2024-01-01T10:30:00Z");
+        Instant to = Instant.parse("2024-01-03T14:00:00Z");
+
+        assertThat(AggregationService.planSlices(from, to, null))
+            .containsExactly(new TimeSlice(DeviceEventAggregation.WindowType.HOURLY, from, to));
+    }
+
+    @Test
+    void unalignedRangeKeepsOverlappingHourlyWindows() {
+        List<TimeSlice> slices = AggregationService.planSlices(startTime, endTime, ROLLUPS_SINCE);
+
+        assertThat(slices).containsExactly(
+            new TimeSlice(DeviceEventAggregation.WindowType.HOURLY, startTime, endTime));
+    }
+
+    private DeviceEventAggregation createAggregation(String deviceId, double avgValue, long count) {
+        return new DeviceEventAggregation(deviceId, DeviceType.THERMOSTAT, "zone-1", startTime,
+            startTime.plusSeconds(3600), DeviceEventAggregation.WindowType.HOURLY,
+            avgValue, avgValue, avgValue, avgValue, count);
     }
 
-    private DeviceEventAggregation createAggregation(String deviceId, DeviceType deviceType, String zone,
-                                                      Double avgValue, Double minValue, Double maxValue,
-                                                      Double medianValue, Long count) {
-        DeviceEventAggregation agg = new DeviceEventAggregation();
-        agg.setDeviceId(deviceId);
-        agg.setDeviceType(deviceType);
-        agg.setZone(zone);
-        agg.setTimeWindowStart(startTime);
-        agg.setTimeWindowEnd(startTime.plusSeconds(3600));
-        agg.setWindowType(DeviceEventAggregation.WindowType.HOURLY);
-        agg.setAvgValue(avgValue);
-        agg.setMinValue(minValue);
-        agg.setMaxValue(maxValue);
-        agg.setMedianValue(medianValue);
-        agg.setCount(count);
-        return agg;
+    private AggregationSummary createSummary(String deviceId, DeviceType deviceType, String zone,
+                                             double avgValue, double minValue, double maxValue,
+                                             double medianValue, long count) {
+        return new AggregationSummary(1L, deviceId, zone, deviceType, zone, deviceType,
+            avgValue * count, count, minValue, maxValue, new double[]{medianValue}, new long[]{count});
     }
 }
@@ -0,0 +1,113 @@
+package com.supermetrics.relay.api.service;
+
+import com.supermetrics.relay.api.config.ApiProperties;
+import com.supermetrics.relay.api.repository.AggregationNotification;
+import com.supermetrics.relay.api.repository.Dimension;
+import com.supermetrics.relay.common.domain.DeviceType;
+import com.supermetrics.relay.common.entity.DeviceEventAggregation;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AggregationUpdateBroadcasterTest {
+
+    private final AggregationUpdateBroadcaster broadcaster = new AggregationUpdateBroadcaster(new ApiProperties(),
+        Runnable::run);
+
+    @Test
+    void sendsEachUpdateToEverySubscriberOfItsTopics() {
+        RecordingEmitter zoneSubscriber = new RecordingEmitter();
+        RecordingEmitter otherZoneSubscriber = new RecordingEmitter();
+        RecordingEmitter typeSubscriber = new RecordingEmitter();
+        broadcaster.subscribe(new AggregationUpdateBroadcaster.Topic(Dimension.ZONE, "zone-1"), zoneSubscriber);
+        broadcaster.subscribe(new AggregationUpdateBroadcaster.Topic(Dimension.ZONE, "zone-2"), otherZoneSubscriber);
+        broadcaster.subscribe(new AggregationUpdateBroadcaster.Topic(Dimension.DEVICE_TYPE, "THERMOSTAT"), typeSubscriber);
+
+        broadcaster.onUpdate(update("device-1", "zone-1"));
+
+        assertThat(zoneSubscriber.sent).hasSize(1);
+        assertThat(typeSubscriber.sent).hasSize(1);
+        assertThat(otherZoneSubscriber.sent).isEmpty();
+    }
+
+    @Test
+    void dropsSubscribersThatCannotBeWritten() {
+        AggregationUpdateBroadcaster.Topic topic = new AggregationUpdateBroadcaster.Topic(Dimension.DEVICE_ID, "device-1");
+        RecordingEmitter broken = new RecordingEmitter();
+        broken.failing = true;
+        RecordingEmitter healthy = new RecordingEmitter();
+        broadcaster.subscribe(topic, broken);
+        broadcaster.subscribe(topic, healthy);
+
+        broadcaster.onUpdate(update("device-1", "zone-1"));
+
+        assertThat(broadcaster.subscriberCount(topic)).isEqualTo(1);
+        assertThat(healthy.sent).hasSize(1);
+    }
+
+    @Test
+    void disconnectsSubscribersThatFallBehindWithoutStallingOthers() throws Exception {
+        ApiProperties properties = new ApiProperties();
+        properties.getSubscriptions().setQueueSize(2);
+        AggregationUpdateBroadcaster.Topic topic = new AggregationUpdateBroadcaster.Topic(Dimension.ZONE, "zone-1");
+        CountDownLatch unblock = new CountDownLatch(1);
+        RecordingEmitter stuck = new RecordingEmitter();
+        stuck.blockedBy = unblock;
+        RecordingEmitter healthy = new RecordingEmitter();
+        try (AggregationUpdateBroadcaster threaded = new AggregationUpdateBroadcaster(properties,
+                Executors.newCachedThreadPool())) {
+            threaded.subscribe(topic, stuck);
+            threaded.subscribe(topic, healthy);
+
+            // The stuck client holds one update in its blocked write and two in its queue
+            for (int i = 1; i <= 4; i++) {
+                threaded.onUpdate(update("device-" + i, "zone-1"));
+                assertThat(healthy.delivered.tryAcquire(5, TimeUnit.SECONDS)).isTrue();
+            }
+
+            assertThat(threaded.subscriberCount(topic)).isEqualTo(1);
+            assertThat(healthy.sent).hasSize(4);
+            unblock.countDown();
+        }
+    }
+
+    private static AggregationNotification update(String deviceId, String zone) {
+        Instant hour = Instant.parse("2024-01-01T10:00:00Z");
+        return new AggregationNotification(deviceId, zone, DeviceType.THERMOSTAT,
+            DeviceEventAggregation.WindowType.HOURLY, hour, hour.plusSeconds(3600), 20.0, 10.0, 30.0, 20.0, 5L);
+    }
+
+    private static class RecordingEmitter extends SseEmitter {
+        final List<SseEventBuilder> sent = new CopyOnWriteArrayList<>();
+        final Semaphore delivered = new Semaphore(0);
+        boolean failing;
+        CountDownLatch blockedBy;
+
+        @Override
+        public void send(SseEventBuilder builder) throws IOException {
+            if (failing) {
+                throw new IOException("broken pipe");
+            }
+            if (blockedBy != null) {
+                try {
+                    blockedBy.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted", e);
+                }
+            }
+            sent.add(builder);
+            delivered.release();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.supermetrics.relay.api.service;
+
+import com.supermetrics.relay.api.config.ApiProperties;
+import com.supermetrics.relay.api.repository.AggregationFeedReconnected;
+import com.supermetrics.relay.api.repository.AggregationNotification;
+import com.supermetrics.relay.api.repository.AggregationSummaryRepository;
+import com.supermetrics.relay.api.repository.Dimension;
+import com.supermetrics.relay.common.domain.DeviceType;
+import com.supermetrics.relay.common.entity.DeviceEventAggregation;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.dao.QueryTimeoutException;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class KnownKeysTest {
+
+    private static final Instant NOW = Instant.parse("2024-01-01T12:00:00Z");
+
+    @Mock
+    private AggregationSummaryRepository repository;
+
+    private KnownKeys knownKeys;
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        knownKeys = new KnownKeys(repository, new ApiProperties(), meterRegistry, Clock.fixed(NOW, ZoneOffset.UTC));
+    }
+
+    @Test
+    void everythingMayExistUntilTheFirstLoad() {
+        assertThat(knownKeys.mayContainDevice("device-1")).isTrue();
+        assertThat(knownKeys.mayContainZone("zone-1")).isTrue();
+    }
+
+    @Test
+    void unknownValuesAreRejectedOnceLoaded() {
+        when(repository.distinctValues(Dimension.DEVICE_ID, null)).thenReturn(List.of("device-1"));
+        when(repository.distinctValues(Dimension.ZONE, null)).thenReturn(List.of("zone-1"));
+
+        knownKeys.refresh();
+
+        assertThat(knownKeys.mayContainDevice("device-1")).isTrue();
+        assertThat(knownKeys.mayContainDevice("device-2")).isFalse();
+        assertThat(knownKeys.mayContainZone("zone-2")).isFalse();
+        assertThat(knownKeys.mayContain(Dimension.DEVICE_TYPE, DeviceType.THERMOSTAT.name())).isTrue();
+        assertThat(meterRegistry.get("relay.api.known-keys.rejected").tag("dimension", "device_id").counter().count())
+            .isEqualTo(1.0);
+    }
+
+    @Test
+    void laterRefreshesOnlyReadRecentWindows() {
+        when(repository.distinctValues(Dimension.DEVICE_ID, null)).thenReturn(List.of("device-1"));
+        when(repository.distinctValues(Dimension.ZONE, null)).thenReturn(List.of("zone-1"));
+        Instant since = NOW.minus(KnownKeys.DELTA_OVERLAP);
+        when(repository.distinctValues(Dimension.DEVICE_ID, since)).thenReturn(List.of("device-2"));
+        when(repository.distinctValues(Dimension.ZONE, since)).thenReturn(List.of());
+
+        knownKeys.refresh();
+        knownKeys.refresh();
+
+        assertThat(knownKeys.mayContainDevice("device-1")).isTrue();
+        assertThat(knownKeys.mayContainDevice("device-2")).isTrue();
+    }
+
+    @Test
+    void notificationsAddValuesBetweenRefreshes() {
+        when(repository.distinctValues(Dimension.DEVICE_ID, null)).thenReturn(List.of());
+        when(repository.distinctValues(Dimension.ZONE, null)).thenReturn(List.of());
+        knownKeys.refresh();
+
+        knownKeys.onUpdate(new AggregationNotification("device-9", "zone-9", DeviceType.THERMOSTAT,
+            DeviceEventAggregation.WindowType.MINUTE, NOW, NOW.plusSeconds(60), 1.0, 1.0, 1.0, 1.0, 1L));
+
+        assertThat(knownKeys.mayContainDevice("device-9")).isTrue();
+        assertThat(knownKeys.mayContainZone("zone-9")).isTrue();
+    }
+
+    @Test
+    void reconnectReloadsValuesOnlyWrittenToOldWindows() {
+        when(repository.distinctValues(Dimension.DEVICE_ID, null))
+            .thenReturn(List.of("device-1"), List.of("device-1", "device-2"));
+        when(repository.distinctValues(Dimension.ZONE, null)).thenReturn(List.of("zone-1"));
+        knownKeys.refresh();
+        assertThat(knownKeys.mayContainDevice("device-2")).isFalse();
+
+        // device-2's replayed rows start days before the last refresh, out of the delta's reach,
+        // and their notification was sent while the listener was disconnected
+        knownKeys.onReconnect(new AggregationFeedReconnected());
+        knownKeys.refresh();
+
+        assertThat(knownKeys.mayContainDevice("device-2")).isTrue();
+    }
+
+    @Test
+    void everyValueIsReloadedOnceTheReloadIntervalHasPassed() {
+        ApiProperties properties = new ApiProperties();
+        properties.getKnownKeys().setReloadInterval(Duration.ZERO);
+        knownKeys = new KnownKeys(repository, properties, meterRegistry, Clock.fixed(NOW, ZoneOffset.UTC));
+        when(repository.distinctValues(Dimension.DEVICE_ID, null))
+            .thenReturn(List.of("device-1"), List.of("device-1", "device-2"));
+        when(repository.distinctValues(Dimension.ZONE, null)).thenReturn(List.of("zone-1"));
+
+        knownKeys.refresh();
+        knownKeys.refresh();
+
+        assertThat(knownKeys.mayContainDevice("device-2")).isTrue();
+    }
+
+    @Test
+    void failedReloadIsRetriedInFull() {
+        when(repository.distinctValues(Dimension.DEVICE_ID, null))
+            .thenReturn(List.of("device-1"))
+            .thenThrow(new QueryTimeoutException("timeout"))
+            .thenReturn(List.of("device-1", "device-2"));
+        when(repository.distinctValues(Dimension.ZONE, null)).thenReturn(List.of("zone-1"));
+        knownKeys.refresh();
+        knownKeys.onReconnect(new AggregationFeedReconnected());
+
+        knownKeys.refresh();
+        knownKeys.refresh();
+
+        assertThat(knownKeys.mayContainDevice("device-2")).isTrue();
+    }
+
+    @Test
+    void failedLoadKeepsEveryValuePossible() {
+        when(repository.distinctValues(Dimension.DEVICE_ID, null)).thenThrow(new QueryTimeoutException("timeout"));
+
+        knownKeys.refresh();
+
+        assertThat(knownKeys.mayContainDevice("device-1")).isTrue();
+    }
+}
@@ -0,0 +1,129 @@
+package com.supermetrics.relay.api.service;
+
+import com.supermetrics.relay.api.config.ApiProperties;
+import com.supermetrics.relay.api.repository.AggregationNotification;
+import com.supermetrics.relay.api.repository.AggregationSummaryRepository;
+import com.supermetrics.relay.common.domain.DeviceType;
+import com.supermetrics.relay.common.entity.DeviceEventAggregation;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.dao.QueryTimeoutException;
+
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class RollupProgressTest {
+
+    private static final Instant HOUR_END = Instant.parse("2024-01-01T12:00:00Z");
+
+    @Mock
+    private AggregationSummaryRepository repository;
+
+    private RollupProgress progress;
+
+    @BeforeEach
+    void setUp() {
+        progress = new RollupProgress(repository, new ApiProperties());
+    }
+
+    @Test
+    void nothingIsClosedBeforeTheFirstRead() {
+        assertThat(progress.isClosed(Instant.EPOCH)).isFalse();
+    }
+
+    @Test
+    void windowsCloseOnceTheProcessorIsPastBothGracePeriods() {
+        when(repository.latestWindowStart(DeviceEventAggregation.WindowType.MINUTE, null))
+            .thenReturn(Instant.parse("2024-01-01T12:10:00Z"));
+
+        progress.refresh();
+
+        // Two 5m grace periods plus the 1m margin
+        assertThat(progress.isClosed(HOUR_END)).isFalse();
+        assertThat(progress.isClosed(HOUR_END.minusSeconds(60))).isTrue();
+    }
+
+    @Test
+    void closedUntilIsTheEndOfTheLastClosedHour() {
+        assertThat(progress.closedUntil()).isNull();
+        when(repository.latestWindowStart(DeviceEventAggregation.WindowType.MINUTE, null))
+            .thenReturn(Instant.parse("2024-01-01T13:10:00Z"));
+
+        progress.refresh();
+
+        // 13:10 less 11m is 12:59, so the 12:00 hour is still open
+        assertThat(progress.closedUntil()).isEqualTo(HOUR_END);
+        assertThat(progress.isClosed(progress.closedUntil())).isTrue();
+        assertThat(progress.isClosed(HOUR_END.plusSeconds(3600))).isFalse();
+    }
+
+    @Test
+    void laterReadsOnlyLookPastTheCurrentProgress() {
+        Instant first = Instant.parse("2024-01-01T12:00:00Z");
+        when(repository.latestWindowStart(DeviceEventAggregation.WindowType.MINUTE, null)).thenReturn(first);
+        when(repository.latestWindowStart(DeviceEventAggregation.WindowType.MINUTE, first))
+            .thenReturn(Instant.parse("2024-01-01T12:11:00Z"));
+
+        progress.refresh();
+        progress.refresh();
+
+        assertThat(progress.isClosed(HOUR_END)).isTrue();
+    }
+
+    @Test
+    void hourlyNotificationsAdvanceProgressBetweenReads() {
+        when(repository.latestWindowStart(DeviceEventAggregation.WindowType.MINUTE, null)).thenReturn(HOUR_END);
+        progress.refresh();
+
+        progress.onUpdate(notification(DeviceEventAggregation.WindowType.HOURLY, Instant.parse("2024-01-01T13:00:00Z")));
+
+        assertThat(progress.eventTime()).isEqualTo(Instant.parse("2024-01-01T13:00:00Z"));
+        assertThat(progress.isClosed(HOUR_END)).isTrue();
+    }
+
+    @Test
+    void progressNeverMovesBackwards() {
+        when(repository.latestWindowStart(DeviceEventAggregation.WindowType.MINUTE, null)).thenReturn(HOUR_END);
+        progress.refresh();
+
+        progress.onUpdate(notification(DeviceEventAggregation.WindowType.HOURLY, HOUR_END.minusSeconds(7200)));
+
+        assertThat(progress.eventTime()).isEqualTo(HOUR_END);
+    }
+
+    @Test
+    void rewritesOfClosedHoursBumpTheRevision() {
+        when(repository.latestWindowStart(DeviceEventAggregation.WindowType.MINUTE, null))
+            .thenReturn(Instant.parse("2024-01-01T12:15:00Z"));
+        progress.refresh();
+
+        progress.onUpdate(notification(DeviceEventAggregation.WindowType.HOURLY, HOUR_END));
+        assertThat(progress.revision()).isZero();
+
+        progress.onUpdate(notification(DeviceEventAggregation.WindowType.HOURLY, HOUR_END.minusSeconds(3600)));
+        assertThat(progress.revision()).isEqualTo(1L);
+    }
+
+    @Test
+    void failedReadKeepsTheLastProgress() {
+        when(repository.latestWindowStart(DeviceEventAggregation.WindowType.MINUTE, null)).thenReturn(HOUR_END);
+        when(repository.latestWindowStart(DeviceEventAggregation.WindowType.MINUTE, HOUR_END))
+            .thenThrow(new QueryTimeoutException("timeout"));
+
+        progress.refresh();
+        progress.refresh();
+
+        assertThat(progress.eventTime()).isEqualTo(HOUR_END);
+    }
+
+    private static AggregationNotification notification(DeviceEventAggregation.WindowType windowType, Instant start) {
+        return new AggregationNotification("device-1", "zone-1", DeviceType.THERMOSTAT, windowType, start,
+            start.plus(windowType.getSize()), 1.0, 1.0, 1.0, 1.0, 1L);
+    }
+}
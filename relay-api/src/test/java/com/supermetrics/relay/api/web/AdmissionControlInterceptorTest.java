@@ -0,0 +1,117 @@
+package com.supermetrics.relay.api.web;
+
+import com.supermetrics.relay.api.config.ApiProperties;
+import com.supermetrics.relay.api.service.QueryCostEstimator;
+import com.supermetrics.relay.common.domain.DeviceType;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.servlet.HandlerMapping;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class AdmissionControlInterceptorTest {
+
+    private static final Instant START = Instant.parse("2023-01-01T00:00:00Z");
+    private static final Instant END = Instant.parse("2024-01-01T00:00:00Z");
+
+    @Mock
+    private QueryCostEstimator costEstimator;
+
+    private ApiProperties properties;
+    private AtomicLong nanoTime;
+    private AdmissionControlInterceptor interceptor;
+
+    @BeforeEach
+    void setUp() {
+        properties = new ApiProperties();
+        properties.getAdmission().setRequestsPerSecond(1.0);
+        properties.getAdmission().setBurst(2);
+        properties.getAdmission().setMaxHeavyQueries(1);
+        properties.getAdmission().setHeavyQueueTimeout(Duration.ZERO);
+        nanoTime = new AtomicLong(1_000_000_000L);
+        interceptor = new AdmissionControlInterceptor(properties, costEstimator, new SimpleMeterRegistry(),
+            nanoTime::get);
+    }
+
+    @Test
+    void tokensBeyondTheBurstAreRejectedUntilRefilled() {
+        assertThat(admit(zoneRequest("token-a"))).isTrue();
+        assertThat(admit(zoneRequest("token-a"))).isTrue();
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertThat(interceptor.preHandle(zoneRequest("token-a"), response, new Object())).isFalse();
+        assertThat(response.getStatus()).isEqualTo(429);
+        assertThat(response.getHeader(HttpHeaders.RETRY_AFTER)).isEqualTo("1");
+
+        assertThat(admit(zoneRequest("token-b"))).isTrue();
+        nanoTime.addAndGet(1_000_000_000L);
+        assertThat(admit(zoneRequest("token-a"))).isTrue();
+    }
+
+    @Test
+    void heavyQueriesShareTheBulkhead() {
+        when(costEstimator.estimateRows(isNull(), eq("zone-1"), isNull(), eq(START), eq(END), eq(false)))
+            .thenReturn(properties.getAdmission().getHeavyRows());
+        MockHttpServletRequest first = zoneRequest("token-a");
+        MockHttpServletRequest second = zoneRequest("token-b");
+
+        assertThat(admit(first)).isTrue();
+        MockHttpServletResponse rejected = new MockHttpServletResponse();
+        assertThat(interceptor.preHandle(second, rejected, new Object())).isFalse();
+        assertThat(rejected.getStatus()).isEqualTo(429);
+
+        interceptor.afterCompletion(first, new MockHttpServletResponse(), new Object(), null);
+        assertThat(admit(zoneRequest("token-b"))).isTrue();
+    }
+
+    @Test
+    void lightQueriesBypassTheBulkhead() {
+        when(costEstimator.estimateRows(any(), any(), any(), any(), any(), anyBoolean()))
+            .thenReturn(properties.getAdmission().getHeavyRows() - 1);
+
+        assertThat(admit(zoneRequest("token-a"))).isTrue();
+        assertThat(admit(zoneRequest("token-b"))).isTrue();
+    }
+
+    @Test
+    void seriesAndExportsAreCostedInHourlyRows() {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/events/type/THERMOSTAT/series");
+        request.setAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE, Map.of("deviceType", "THERMOSTAT"));
+        request.setParameter("startTime", START.toString());
+        request.setParameter("endTime", END.toString());
+        when(costEstimator.estimateRows(null, null, DeviceType.THERMOSTAT, START, END, true)).thenReturn(42L);
+
+        assertThat(interceptor.estimateRows(request)).isEqualTo(42L);
+    }
+
+    private boolean admit(MockHttpServletRequest request) {
+        return interceptor.preHandle(request, new MockHttpServletResponse(), new Object());
+    }
+
+    private static MockHttpServletRequest zoneRequest(String token) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/events/zone/zone-1");
+        request.addHeader(HttpHeaders.AUTHORIZATION, "Bearer " + token);
+        request.setAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE, Map.of("zone", "zone-1"));
+        request.setParameter("startTime", START.toString());
+        request.setParameter("endTime", END.toString());
+        return request;
+    }
+}
@@ -0,0 +1,128 @@
+package com.supermetrics.relay.api.web;
+
+import com.supermetrics.relay.api.config.ApiProperties;
+import com.supermetrics.relay.api.service.RollupProgress;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ClosedRangeCacheFilterTest {
+
+    // End of the last window the processor has closed
+    private static final Instant CLOSED_UNTIL = Instant.parse("2024-01-02T11:00:00Z");
+
+    private ClosedRangeCacheFilter filter;
+    private RollupProgress progress;
+    private AtomicInteger queries;
+
+    @BeforeEach
+    void setUp() {
+        progress = mock(RollupProgress.class);
+        when(progress.isClosed(any())).thenAnswer(invocation ->
+            !invocation.<Instant>getArgument(0).isAfter(CLOSED_UNTIL));
+        filter = new ClosedRangeCacheFilter(new ApiProperties(), progress);
+        queries = new AtomicInteger();
+    }
+
+    @Test
+    void closedRangeGetsValidatorAndPrivateCacheControl() throws Exception {
+        MockHttpServletResponse response = perform(request("2024-01-01T00:00:00Z"), HttpServletResponse.SC_OK);
+
+        assertThat(response.getHeader(HttpHeaders.ETAG)).startsWith("W/\"");
+        assertThat(response.getHeader(HttpHeaders.CACHE_CONTROL)).isEqualTo("max-age=3600, private");
+        assertThat(response.getHeader(HttpHeaders.VARY)).isEqualTo(HttpHeaders.AUTHORIZATION);
+        assertThat(queries).hasValue(1);
+    }
+
+    @Test
+    void matchingIfNoneMatchIsAnsweredWithoutRunningTheQuery() throws Exception {
+        String etag = perform(request("2024-01-01T00:00:00Z"), HttpServletResponse.SC_OK).getHeader(HttpHeaders.ETAG);
+        MockHttpServletRequest conditional = request("2024-01-01T00:00:00Z");
+        conditional.addHeader(HttpHeaders.IF_NONE_MATCH, etag);
+
+        MockHttpServletResponse response = perform(conditional, HttpServletResponse.SC_OK);
+
+        assertThat(response.getStatus()).isEqualTo(HttpServletResponse.SC_NOT_MODIFIED);
+        assertThat(response.getHeader(HttpHeaders.ETAG)).isEqualTo(etag);
+        assertThat(response.getHeader(HttpHeaders.VARY)).isEqualTo(HttpHeaders.AUTHORIZATION);
+        assertThat(queries).hasValue(1);
+    }
+
+    @Test
+    void rewrittenClosedHoursInvalidateEarlierValidators() throws Exception {
+        String etag = perform(request("2024-01-01T00:00:00Z"), HttpServletResponse.SC_OK).getHeader(HttpHeaders.ETAG);
+        when(progress.revision()).thenReturn(1L);
+        MockHttpServletRequest conditional = request("2024-01-01T00:00:00Z");
+        conditional.addHeader(HttpHeaders.IF_NONE_MATCH, etag);
+
+        MockHttpServletResponse response = perform(conditional, HttpServletResponse.SC_OK);
+
+        assertThat(response.getStatus()).isEqualTo(HttpServletResponse.SC_OK);
+        assertThat(response.getHeader(HttpHeaders.ETAG)).isNotEqualTo(etag);
+        assertThat(queries).hasValue(2);
+    }
+
+    @Test
+    void differentRangesHaveDifferentValidators() throws Exception {
+        String first = perform(request("2024-01-01T00:00:00Z"), HttpServletResponse.SC_OK).getHeader(HttpHeaders.ETAG);
+        String second = perform(request("2024-01-01T01:00:00Z"), HttpServletResponse.SC_OK).getHeader(HttpHeaders.ETAG);
+
+        assertThat(first).isNotEqualTo(second);
+    }
+
+    @Test
+    void rangeEndingInAnOpenWindowIsNotCached() throws Exception {
+        // Ends inside 11:00-12:00, which is still open
+        MockHttpServletResponse response = perform(request("2024-01-02T11:30:00Z"), HttpServletResponse.SC_OK);
+
+        assertThat(response.getHeader(HttpHeaders.ETAG)).isNull();
+        assertThat(response.getHeader(HttpHeaders.CACHE_CONTROL)).isNull();
+    }
+
+    @Test
+    void errorResponsesAreNotCached() throws Exception {
+        MockHttpServletResponse response = perform(request("2024-01-01T00:00:00Z"),
+            HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+
+        assertThat(response.getHeader(HttpHeaders.ETAG)).isNull();
+        assertThat(response.getHeader(HttpHeaders.CACHE_CONTROL)).isNull();
+    }
+
+    private static MockHttpServletRequest request(String endTime) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/events/zone/zone-1/series");
+        request.setParameter("bucket", "1h");
+        request.setParameter("startTime", "2023-12-31T00:00:00Z");
+        request.setParameter("endTime", endTime);
+        return request;
+    }
+
+    private MockHttpServletResponse perform(MockHttpServletRequest request, int status) throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, new MockFilterChain(new HttpServlet() {
+            @Override
+            protected void service(HttpServletRequest req, HttpServletResponse res)
+                    throws IOException {
+                queries.incrementAndGet();
+                res.setStatus(status);
+                res.getOutputStream().write("[]".getBytes(StandardCharsets.UTF_8));
+            }
+        }));
+        return response;
+    }
+}
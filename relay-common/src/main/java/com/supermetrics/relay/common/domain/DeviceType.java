@@ -1,6 +1,7 @@
 package com.supermetrics.relay.common.domain;
 
 public enum DeviceType {
+    // Ordinals are persisted by the processor's binary state-store keys: append new types only
     THERMOSTAT("thermostat"),
     HEART_RATE_METER("heart-rate-meter"),
     CAR_FUEL("car-fuel");
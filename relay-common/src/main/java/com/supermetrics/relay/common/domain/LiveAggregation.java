@@ -0,0 +1,21 @@
+package com.supermetrics.relay.common.domain;
+
+import java.time.Instant;
+
+/**
+ * Partial aggregate of a device's still-open windows, served by the processor from its state
+ * store for {@code [timeWindowStart, timeWindowEnd)}.
+ */
+public record LiveAggregation(
+    String deviceId,
+    String zone,
+    DeviceType deviceType,
+    Instant timeWindowStart,
+    Instant timeWindowEnd,
+    double avgValue,
+    double minValue,
+    double maxValue,
+    double medianValue,
+    long count
+) {
+}
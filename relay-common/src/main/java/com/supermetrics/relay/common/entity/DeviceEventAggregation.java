@@ -2,6 +2,7 @@ package com.supermetrics.relay.common.entity;
 
 import com.supermetrics.relay.common.domain.DeviceType;
 import jakarta.persistence.*;
+import java.time.Duration;
 import java.time.Instant;
 
 @Entity
@@ -96,7 +97,19 @@ public class DeviceEventAggregation {
     private Long count;
     
     public enum WindowType {
-        HOURLY
+        MINUTE(Duration.ofMinutes(1)),
+        HOURLY(Duration.ofHours(1)),
+        DAILY(Duration.ofDays(1));
+
+        private final Duration size;
+
+        WindowType(Duration size) {
+            this.size = size;
+        }
+
+        public Duration getSize() {
+            return size;
+        }
     }
     
     public DeviceEventAggregation() {
@@ -0,0 +1,281 @@
+package com.supermetrics.relay.common.sketch;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Mergeable t-digest quantile sketch.
+ *
+ * Raw values are buffered and periodically folded into a bounded set of
+ * centroids using the k1 (arcsine) scale function, which keeps centroids small
+ * near the tails and larger around the median. The number of retained centroids
+ * depends only on the compression factor, not on how many values were added.
+ */
+public class TDigest {
+
+    public static final double DEFAULT_COMPRESSION = 100.0;
+
+    private final double compression;
+    private final int bufferCapacity;
+
+    private double[] means;
+    private long[] weights;
+    private int centroidCount;
+
+    private final double[] buffer;
+    private int bufferSize;
+
+    private long totalWeight;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public TDigest() {
+        this(DEFAULT_COMPRESSION);
+    }
+
+    public TDigest(double compression) {
+        if (compression < 10) {
+            throw new IllegalArgumentException("compression must be at least 10: " + compression);
+        }
+        this.compression = compression;
+        this.bufferCapacity = (int) (5 * compression);
+        int maxCentroids = (int) (2 * Math.ceil(compression)) + 10;
+        this.means = new double[maxCentroids];
+        this.weights = new long[maxCentroids];
+        this.buffer = new double[bufferCapacity];
+    }
+
+    public void add(double value) {
+        if (Double.isNaN(value)) {
+            throw new IllegalArgumentException("Cannot add NaN to a t-digest");
+        }
+        if (bufferSize == bufferCapacity) {
+            compress();
+        }
+        buffer[bufferSize++] = value;
+        totalWeight++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds a centroid of {@code weight} values at {@code mean}, for callers that only know the
+     * mean of the values they stand for.
+     */
+    public void add(double mean, long weight) {
+        if (Double.isNaN(mean)) {
+            throw new IllegalArgumentException("Cannot add NaN to a t-digest");
+        }
+        if (weight <= 0) {
+            throw new IllegalArgumentException("weight must be positive: " + weight);
+        }
+        compress();
+        mergeCentroids(new double[] {mean}, new long[] {weight}, 1);
+        totalWeight += weight;
+        min = Math.min(min, mean);
+        max = Math.max(max, mean);
+    }
+
+    public void merge(TDigest other) {
+        if (other == null || other.totalWeight == 0) {
+            return;
+        }
+        other.compress();
+        compress();
+        mergeCentroids(other.means, other.weights, other.centroidCount);
+        totalWeight += other.totalWeight;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Estimates the value at quantile {@code q} in [0, 1]. Returns NaN when the digest is empty.
+     */
+    public double quantile(double q) {
+        if (q < 0.0 || q > 1.0) {
+            throw new IllegalArgumentException("q must be in [0, 1]: " + q);
+        }
+        compress();
+        if (centroidCount == 0) {
+            return Double.NaN;
+        }
+        if (centroidCount == 1) {
+            return means[0];
+        }
+
+        double index = q * totalWeight;
+        double left = weights[0] / 2.0;
+        if (index <= left) {
+            return interpolate(min, 0.0, means[0], left, index);
+        }
+
+        double cumulative = weights[0];
+        for (int i = 0; i < centroidCount - 1; i++) {
+            double right = cumulative + weights[i + 1] / 2.0;
+            if (index <= right) {
+                return interpolate(means[i], left, means[i + 1], right, index);
+            }
+            cumulative += weights[i + 1];
+            left = right;
+        }
+        return interpolate(means[centroidCount - 1], left, max, totalWeight, index);
+    }
+
+    public long size() {
+        return totalWeight;
+    }
+
+    public int centroidCount() {
+        compress();
+        return centroidCount;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getCompression() {
+        return compression;
+    }
+
+    /**
+     * Number of bytes {@link #writeTo(ByteBuffer)} will produce.
+     */
+    public int byteSize() {
+        compress();
+        return 8 + 8 + 8 + 4 + centroidCount * 16;
+    }
+
+    public void writeTo(ByteBuffer out) {
+        compress();
+        out.putDouble(compression);
+        out.putDouble(min);
+        out.putDouble(max);
+        out.putInt(centroidCount);
+        for (int i = 0; i < centroidCount; i++) {
+            out.putDouble(means[i]);
+            out.putLong(weights[i]);
+        }
+    }
+
+    public static TDigest readFrom(ByteBuffer in) {
+        TDigest digest = new TDigest(in.getDouble());
+        digest.min = in.getDouble();
+        digest.max = in.getDouble();
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining() / 16) {
+            throw new IllegalArgumentException("Invalid t-digest centroid count: " + count);
+        }
+        if (count > digest.means.length) {
+            digest.means = new double[count];
+            digest.weights = new long[count];
+        }
+        for (int i = 0; i < count; i++) {
+            digest.means[i] = in.getDouble();
+            digest.weights[i] = in.getLong();
+            digest.totalWeight += digest.weights[i];
+        }
+        digest.centroidCount = count;
+        return digest;
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer out = ByteBuffer.allocate(byteSize());
+        writeTo(out);
+        return out.array();
+    }
+
+    public static TDigest fromBytes(byte[] bytes) {
+        return readFrom(ByteBuffer.wrap(bytes));
+    }
+
+    private void compress() {
+        if (bufferSize == 0) {
+            return;
+        }
+        Arrays.sort(buffer, 0, bufferSize);
+        long[] unitWeights = new long[bufferSize];
+        Arrays.fill(unitWeights, 1L);
+        double[] sorted = Arrays.copyOf(buffer, bufferSize);
+        bufferSize = 0;
+        mergeCentroids(sorted, unitWeights, sorted.length);
+    }
+
+    /**
+     * Merges a sorted run of centroids into the current (sorted) centroids and
+     * re-clusters the combined run under the scale-function size bound.
+     */
+    private void mergeCentroids(double[] otherMeans, long[] otherWeights, int otherCount) {
+        int total = centroidCount + otherCount;
+        double[] mergedMeans = new double[total];
+        long[] mergedWeights = new long[total];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < centroidCount || j < otherCount) {
+            if (j >= otherCount || (i < centroidCount && means[i] <= otherMeans[j])) {
+                mergedMeans[k] = means[i];
+                mergedWeights[k++] = weights[i++];
+            } else {
+                mergedMeans[k] = otherMeans[j];
+                mergedWeights[k++] = otherWeights[j++];
+            }
+        }
+
+        long weightSum = 0;
+        for (int n = 0; n < total; n++) {
+            weightSum += mergedWeights[n];
+        }
+
+        int out = 0;
+        double currentMean = mergedMeans[0];
+        long currentWeight = mergedWeights[0];
+        long weightSoFar = 0;
+        for (int n = 1; n < total; n++) {
+            long proposed = currentWeight + mergedWeights[n];
+            double q0 = (double) weightSoFar / weightSum;
+            double q2 = (double) (weightSoFar + proposed) / weightSum;
+            if (scale(q2) - scale(q0) <= 1.0) {
+                currentMean += (mergedMeans[n] - currentMean) * mergedWeights[n] / proposed;
+                currentWeight = proposed;
+            } else {
+                out = emit(out, currentMean, currentWeight);
+                weightSoFar += currentWeight;
+                currentMean = mergedMeans[n];
+                currentWeight = mergedWeights[n];
+            }
+        }
+        centroidCount = emit(out, currentMean, currentWeight);
+    }
+
+    private int emit(int index, double mean, long weight) {
+        if (index == means.length) {
+            means = Arrays.copyOf(means, index * 2);
+            weights = Arrays.copyOf(weights, index * 2);
+        }
+        means[index] = mean;
+        weights[index] = weight;
+        return index + 1;
+    }
+
+    private double scale(double q) {
+        return compression / (2 * Math.PI) * Math.asin(2 * q - 1);
+    }
+
+    private static double interpolate(double x0, double w0, double x1, double w1, double at) {
+        if (w1 <= w0) {
+            return x1;
+        }
+        return x0 + (x1 - x0) * (at - w0) / (w1 - w0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TDigest{compression=%.1f, size=%d, centroids=%d}",
+            compression, totalWeight, centroidCount());
+    }
+}
@@ -0,0 +1,112 @@
+package com.supermetrics.relay.common.sketch;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TDigestTest {
+
+    @Test
+    void emptyDigestReturnsNaN() {
+        TDigest digest = new TDigest();
+
+        assertEquals(0L, digest.size());
+        assertTrue(Double.isNaN(digest.quantile(0.5)));
+    }
+
+    @Test
+    void smallInputsAreExact() {
+        TDigest digest = new TDigest();
+        digest.add(30.0);
+        digest.add(10.0);
+        digest.add(20.0);
+
+        assertEquals(10.0, digest.quantile(0.0));
+        assertEquals(20.0, digest.quantile(0.5));
+        assertEquals(30.0, digest.quantile(1.0));
+    }
+
+    @Test
+    void quantilesWithinErrorBound() {
+        Random random = new Random(42);
+        double[] values = new double[100_000];
+        TDigest digest = new TDigest();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextGaussian() * 10 + 50;
+            digest.add(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (double q : new double[] {0.01, 0.1, 0.5, 0.9, 0.99}) {
+            double exact = values[(int) (q * values.length)];
+            assertEquals(exact, digest.quantile(q), 0.5, "q=" + q);
+        }
+    }
+
+    @Test
+    void sizeStaysBounded() {
+        TDigest digest = new TDigest();
+        for (int i = 0; i < 1_000_000; i++) {
+            digest.add(i % 997);
+        }
+
+        assertEquals(1_000_000L, digest.size());
+        assertTrue(digest.centroidCount() <= 2 * digest.getCompression());
+        assertTrue(digest.byteSize() < 4096);
+    }
+
+    @Test
+    void mergeMatchesSingleDigest() {
+        TDigest left = new TDigest();
+        TDigest right = new TDigest();
+        for (int i = 0; i < 10_000; i++) {
+            left.add(i);
+            right.add(10_000 + i);
+        }
+
+        left.merge(right);
+
+        assertEquals(20_000L, left.size());
+        assertEquals(0.0, left.getMin());
+        assertEquals(19_999.0, left.getMax());
+        assertEquals(10_000.0, left.quantile(0.5), 200.0);
+        assertEquals(18_000.0, left.quantile(0.9), 200.0);
+    }
+
+    @Test
+    void binaryRoundTrip() {
+        TDigest digest = new TDigest();
+        for (int i = 0; i < 5_000; i++) {
+            digest.add(i * 0.5);
+        }
+
+        TDigest restored = TDigest.fromBytes(digest.toBytes());
+
+        assertEquals(digest.size(), restored.size());
+        assertEquals(digest.centroidCount(), restored.centroidCount());
+        assertEquals(digest.quantile(0.5), restored.quantile(0.5));
+        assertEquals(digest.quantile(0.99), restored.quantile(0.99));
+    }
+
+    @Test
+    void weightedCentroidCountsAsManyValues() {
+        TDigest digest = new TDigest();
+        digest.add(10.0, 3);
+        digest.add(40.0);
+
+        assertEquals(4L, digest.size());
+        assertEquals(10.0, digest.quantile(0.25));
+        assertThrows(IllegalArgumentException.class, () -> digest.add(1.0, 0));
+    }
+
+    @Test
+    void rejectsInvalidQuantile() {
+        TDigest digest = new TDigest();
+        digest.add(1.0);
+
+        assertThrows(IllegalArgumentException.class, () -> digest.quantile(1.5));
+    }
+}
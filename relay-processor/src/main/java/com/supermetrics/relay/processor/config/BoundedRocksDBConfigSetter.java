@@ -0,0 +1,117 @@
+package com.supermetrics.relay.processor.config;
+
+import org.apache.kafka.streams.state.RocksDBConfigSetter;
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.BloomFilter;
+import org.rocksdb.Cache;
+import org.rocksdb.CompactionStyle;
+import org.rocksdb.CompressionType;
+import org.rocksdb.LRUCache;
+import org.rocksdb.Options;
+import org.rocksdb.WriteBufferManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounds RocksDB memory for every store in the process. Kafka Streams instantiates this class
+ * reflectively per store, so the block cache, write buffer manager and bloom filter are static
+ * and created from the first store's settings. Memtables are charged to the block cache, so
+ * {@code block-cache-size} caps index, filter, data blocks and memtables together.
+ *
+ * Settings arrive as {@value #PREFIX}-prefixed entries in the streams configuration, put there
+ * by {@link KafkaStreamsConfig} from {@link ProcessorProperties.RocksDb}.
+ */
+public class BoundedRocksDBConfigSetter implements RocksDBConfigSetter {
+
+    static final String PREFIX = "relay.rocksdb.";
+    static final String BLOCK_CACHE_SIZE = PREFIX + "block-cache-size";
+    static final String WRITE_BUFFER_RATIO = PREFIX + "write-buffer-ratio";
+    static final String HIGH_PRIORITY_POOL_RATIO = PREFIX + "high-priority-pool-ratio";
+    static final String WRITE_BUFFER_SIZE = PREFIX + "write-buffer-size";
+    static final String MAX_WRITE_BUFFERS = PREFIX + "max-write-buffers";
+    static final String BLOCK_SIZE = PREFIX + "block-size";
+    static final String BLOOM_FILTER_BITS_PER_KEY = PREFIX + "bloom-filter-bits-per-key";
+    static final String COMPRESSION = PREFIX + "compression";
+    static final String BOTTOMMOST_COMPRESSION = PREFIX + "bottommost-compression";
+    static final String UNCOMPRESSED_LEVELS = PREFIX + "uncompressed-levels";
+    static final String COMPACTION_STYLE = PREFIX + "compaction-style";
+
+    private static Cache cache;
+    private static WriteBufferManager writeBufferManager;
+    private static BloomFilter bloomFilter;
+
+    @Override
+    public void setConfig(String storeName, Options options, Map<String, Object> configs) {
+        initShared(configs);
+
+        // Kafka Streams installs its own table config (with a default bloom filter) before calling
+        // us; adjust it rather than replacing it.
+        BlockBasedTableConfig tableConfig = options.tableFormatConfig() instanceof BlockBasedTableConfig existing
+            ? existing
+            : new BlockBasedTableConfig();
+        tableConfig.setBlockCache(cache);
+        tableConfig.setCacheIndexAndFilterBlocks(true);
+        tableConfig.setCacheIndexAndFilterBlocksWithHighPriority(true);
+        tableConfig.setPinTopLevelIndexAndFilter(true);
+        tableConfig.setBlockSize(longValue(configs, BLOCK_SIZE));
+        tableConfig.setFilterPolicy(bloomFilter);
+        options.setTableFormatConfig(tableConfig);
+
+        options.setWriteBufferManager(writeBufferManager);
+        options.setWriteBufferSize(longValue(configs, WRITE_BUFFER_SIZE));
+        options.setMaxWriteBufferNumber((int) longValue(configs, MAX_WRITE_BUFFERS));
+
+        CompressionType compression = CompressionType.valueOf(stringValue(configs, COMPRESSION));
+        int uncompressedLevels = (int) longValue(configs, UNCOMPRESSED_LEVELS);
+        List<CompressionType> perLevel = new ArrayList<>();
+        for (int level = 0; level < options.numLevels(); level++) {
+            perLevel.add(level < uncompressedLevels ? CompressionType.NO_COMPRESSION : compression);
+        }
+        options.setCompressionPerLevel(perLevel);
+        options.setBottommostCompressionType(CompressionType.valueOf(stringValue(configs, BOTTOMMOST_COMPRESSION)));
+
+        // Window segments are written in time order and dropped whole once expired, so they
+        // rarely benefit from leveled compaction's read-side guarantees.
+        options.setCompactionStyle(CompactionStyle.valueOf(stringValue(configs, COMPACTION_STYLE)));
+    }
+
+    @Override
+    public void close(String storeName, Options options) {
+        // The cache, write buffer manager and filter are shared by every store and live as long
+        // as the process.
+    }
+
+    private static synchronized void initShared(Map<String, Object> configs) {
+        if (cache != null) {
+            return;
+        }
+        long cacheSize = longValue(configs, BLOCK_CACHE_SIZE);
+        double highPriorityRatio = Double.parseDouble(stringValue(configs, HIGH_PRIORITY_POOL_RATIO));
+        double writeBufferRatio = Double.parseDouble(stringValue(configs, WRITE_BUFFER_RATIO));
+        cache = new LRUCache(cacheSize, -1, false, highPriorityRatio);
+        writeBufferManager = new WriteBufferManager((long) (cacheSize * writeBufferRatio), cache);
+        bloomFilter = new BloomFilter((int) longValue(configs, BLOOM_FILTER_BITS_PER_KEY), false);
+    }
+
+    static synchronized long blockCacheUsage() {
+        return cache == null ? 0L : cache.getUsage();
+    }
+
+    static synchronized long blockCachePinnedUsage() {
+        return cache == null ? 0L : cache.getPinnedUsage();
+    }
+
+    private static long longValue(Map<String, Object> configs, String key) {
+        return Long.parseLong(stringValue(configs, key));
+    }
+
+    private static String stringValue(Map<String, Object> configs, String key) {
+        Object value = configs.get(key);
+        if (value == null) {
+            throw new IllegalStateException("Missing RocksDB setting " + key);
+        }
+        return value.toString();
+    }
+}
@@ -3,12 +3,22 @@ package com.supermetrics.relay.processor.config;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.apache.kafka.common.serialization.Serde;
 import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.streams.StreamsConfig;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.config.StreamsBuilderFactoryBeanConfigurer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
 
 @Configuration
+@EnableConfigurationProperties(ProcessorProperties.class)
 public class KafkaStreamsConfig {
     
     @Bean
@@ -23,5 +33,51 @@ public class KafkaStreamsConfig {
     public Serde<String> stringSerde() {
         return Serdes.String();
     }
+    
+    /**
+     * Installs {@link BoundedRocksDBConfigSetter} with the externalized RocksDB settings and
+     * publishes the shared block cache usage. Kafka Streams' own RocksDB metrics reach the meter
+     * registry through Spring Boot's Kafka Streams Micrometer listener; statistics-based ones
+     * additionally need {@code relay.processor.rocks-db.statistics=true}.
+     */
+    @Bean
+    public StreamsBuilderFactoryBeanConfigurer rocksDbConfigurer(ProcessorProperties properties,
+                                                                  MeterRegistry meterRegistry) {
+        return factoryBean -> {
+            if (!properties.getRocksDb().isEnabled()) {
+                return;
+            }
+            Properties streamsConfiguration = factoryBean.getStreamsConfiguration();
+            streamsConfiguration.putAll(rocksDbSettings(properties.getRocksDb()));
+            factoryBean.setStreamsConfiguration(streamsConfiguration);
+            Gauge.builder("relay.processor.rocksdb.block-cache.usage", BoundedRocksDBConfigSetter::blockCacheUsage)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+            Gauge.builder("relay.processor.rocksdb.block-cache.pinned-usage",
+                    BoundedRocksDBConfigSetter::blockCachePinnedUsage)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        };
+    }
+    
+    static Map<String, String> rocksDbSettings(ProcessorProperties.RocksDb rocksDb) {
+        Map<String, String> settings = new HashMap<>();
+        settings.put(StreamsConfig.ROCKSDB_CONFIG_SETTER_CLASS_CONFIG, BoundedRocksDBConfigSetter.class.getName());
+        settings.put(BoundedRocksDBConfigSetter.BLOCK_CACHE_SIZE, String.valueOf(rocksDb.getBlockCacheSize().toBytes()));
+        settings.put(BoundedRocksDBConfigSetter.WRITE_BUFFER_RATIO, String.valueOf(rocksDb.getWriteBufferRatio()));
+        settings.put(BoundedRocksDBConfigSetter.HIGH_PRIORITY_POOL_RATIO, String.valueOf(rocksDb.getHighPriorityPoolRatio()));
+        settings.put(BoundedRocksDBConfigSetter.WRITE_BUFFER_SIZE, String.valueOf(rocksDb.getWriteBufferSize().toBytes()));
+        settings.put(BoundedRocksDBConfigSetter.MAX_WRITE_BUFFERS, String.valueOf(rocksDb.getMaxWriteBuffers()));
+        settings.put(BoundedRocksDBConfigSetter.BLOCK_SIZE, String.valueOf(rocksDb.getBlockSize().toBytes()));
+        settings.put(BoundedRocksDBConfigSetter.BLOOM_FILTER_BITS_PER_KEY, String.valueOf(rocksDb.getBloomFilterBitsPerKey()));
+        settings.put(BoundedRocksDBConfigSetter.COMPRESSION, rocksDb.getCompression().name());
+        settings.put(BoundedRocksDBConfigSetter.BOTTOMMOST_COMPRESSION, rocksDb.getBottommostCompression().name());
+        settings.put(BoundedRocksDBConfigSetter.UNCOMPRESSED_LEVELS, String.valueOf(rocksDb.getUncompressedLevels()));
+        settings.put(BoundedRocksDBConfigSetter.COMPACTION_STYLE, rocksDb.getCompactionStyle().name());
+        if (rocksDb.isStatistics()) {
+            settings.put(StreamsConfig.METRICS_RECORDING_LEVEL_CONFIG, "DEBUG");
+        }
+        return settings;
+    }
 }
 
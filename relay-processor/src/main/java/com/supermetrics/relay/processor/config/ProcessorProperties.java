@@ -0,0 +1,272 @@
+package com.supermetrics.relay.processor.config;
+
+import com.supermetrics.relay.processor.stream.AggregationKeySerde;
+import com.supermetrics.relay.processor.stream.DeviceEventStreamProcessor;
+import com.supermetrics.relay.processor.stream.DeviceEventTimestampExtractor;
+import org.rocksdb.CompactionStyle;
+import org.rocksdb.CompressionType;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "relay.processor")
+public class ProcessorProperties {
+
+    private final Serde serde = new Serde();
+    private final Topology topology = new Topology();
+    private final Sink sink = new Sink();
+    private final Emit emit = new Emit();
+    private final Timestamp timestamp = new Timestamp();
+    private final RocksDb rocksDb = new RocksDb();
+
+    public Serde getSerde() {
+        return serde;
+    }
+
+    public Topology getTopology() {
+        return topology;
+    }
+
+    public Sink getSink() {
+        return sink;
+    }
+
+    public Emit getEmit() {
+        return emit;
+    }
+
+    public Timestamp getTimestamp() {
+        return timestamp;
+    }
+
+    public RocksDb getRocksDb() {
+        return rocksDb;
+    }
+
+    public static class Serde {
+        private AggregationKeySerde.KeyFormat keyFormat = AggregationKeySerde.KeyFormat.LEGACY;
+
+        public AggregationKeySerde.KeyFormat getKeyFormat() {
+            return keyFormat;
+        }
+
+        public void setKeyFormat(AggregationKeySerde.KeyFormat keyFormat) {
+            this.keyFormat = keyFormat;
+        }
+    }
+
+    public static class Topology {
+        private DeviceEventStreamProcessor.KeyMode keyMode = DeviceEventStreamProcessor.KeyMode.REPARTITION;
+
+        public DeviceEventStreamProcessor.KeyMode getKeyMode() {
+            return keyMode;
+        }
+
+        public void setKeyMode(DeviceEventStreamProcessor.KeyMode keyMode) {
+            this.keyMode = keyMode;
+        }
+    }
+
+    public static class Sink {
+        public enum Mode {
+            DIRECT,
+            WRITE_BEHIND
+        }
+
+        private Mode mode = Mode.WRITE_BEHIND;
+        private int maxBatchSize = 1000;
+        private Duration flushInterval = Duration.ofSeconds(5);
+
+        public Mode getMode() {
+            return mode;
+        }
+
+        public void setMode(Mode mode) {
+            this.mode = mode;
+        }
+
+        public int getMaxBatchSize() {
+            return maxBatchSize;
+        }
+
+        public void setMaxBatchSize(int maxBatchSize) {
+            this.maxBatchSize = maxBatchSize;
+        }
+
+        public Duration getFlushInterval() {
+            return flushInterval;
+        }
+
+        public void setFlushInterval(Duration flushInterval) {
+            this.flushInterval = flushInterval;
+        }
+    }
+
+    public static class Emit {
+        public enum Mode {
+            UPDATES,
+            FINAL
+        }
+
+        private Mode mode = Mode.UPDATES;
+        private Duration earlyInterval = Duration.ZERO;
+
+        public Mode getMode() {
+            return mode;
+        }
+
+        public void setMode(Mode mode) {
+            this.mode = mode;
+        }
+
+        public Duration getEarlyInterval() {
+            return earlyInterval;
+        }
+
+        public void setEarlyInterval(Duration earlyInterval) {
+            this.earlyInterval = earlyInterval;
+        }
+    }
+
+    public static class Timestamp {
+        private DeviceEventTimestampExtractor.Policy policy = DeviceEventTimestampExtractor.Policy.FALLBACK;
+        private Duration maxSkew = Duration.ofMinutes(5);
+
+        public DeviceEventTimestampExtractor.Policy getPolicy() {
+            return policy;
+        }
+
+        public void setPolicy(DeviceEventTimestampExtractor.Policy policy) {
+            this.policy = policy;
+        }
+
+        public Duration getMaxSkew() {
+            return maxSkew;
+        }
+
+        public void setMaxSkew(Duration maxSkew) {
+            this.maxSkew = maxSkew;
+        }
+    }
+
+    public static class RocksDb {
+        private boolean enabled = true;
+        private DataSize blockCacheSize = DataSize.ofMegabytes(256);
+        private double writeBufferRatio = 0.5;
+        private double highPriorityPoolRatio = 0.1;
+        private DataSize writeBufferSize = DataSize.ofMegabytes(16);
+        private int maxWriteBuffers = 3;
+        private DataSize blockSize = DataSize.ofKilobytes(16);
+        private int bloomFilterBitsPerKey = 10;
+        private CompressionType compression = CompressionType.LZ4_COMPRESSION;
+        private CompressionType bottommostCompression = CompressionType.ZSTD_COMPRESSION;
+        private int uncompressedLevels = 2;
+        private CompactionStyle compactionStyle = CompactionStyle.UNIVERSAL;
+        private boolean statistics = false;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public DataSize getBlockCacheSize() {
+            return blockCacheSize;
+        }
+
+        public void setBlockCacheSize(DataSize blockCacheSize) {
+            this.blockCacheSize = blockCacheSize;
+        }
+
+        public double getWriteBufferRatio() {
+            return writeBufferRatio;
+        }
+
+        public void setWriteBufferRatio(double writeBufferRatio) {
+            this.writeBufferRatio = writeBufferRatio;
+        }
+
+        public double getHighPriorityPoolRatio() {
+            return highPriorityPoolRatio;
+        }
+
+        public void setHighPriorityPoolRatio(double highPriorityPoolRatio) {
+            this.highPriorityPoolRatio = highPriorityPoolRatio;
+        }
+
+        public DataSize getWriteBufferSize() {
+            return writeBufferSize;
+        }
+
+        public void setWriteBufferSize(DataSize writeBufferSize) {
+            this.writeBufferSize = writeBufferSize;
+        }
+
+        public int getMaxWriteBuffers() {
+            return maxWriteBuffers;
+        }
+
+        public void setMaxWriteBuffers(int maxWriteBuffers) {
+            this.maxWriteBuffers = maxWriteBuffers;
+        }
+
+        public DataSize getBlockSize() {
+            return blockSize;
+        }
+
+        public void setBlockSize(DataSize blockSize) {
+            this.blockSize = blockSize;
+        }
+
+        public int getBloomFilterBitsPerKey() {
+            return bloomFilterBitsPerKey;
+        }
+
+        public void setBloomFilterBitsPerKey(int bloomFilterBitsPerKey) {
+            this.bloomFilterBitsPerKey = bloomFilterBitsPerKey;
+        }
+
+        public CompressionType getCompression() {
+            return compression;
+        }
+
+        public void setCompression(CompressionType compression) {
+            this.compression = compression;
+        }
+
+        public CompressionType getBottommostCompression() {
+            return bottommostCompression;
+        }
+
+        public void setBottommostCompression(CompressionType bottommostCompression) {
+            this.bottommostCompression = bottommostCompression;
+        }
+
+        public int getUncompressedLevels() {
+            return uncompressedLevels;
+        }
+
+        public void setUncompressedLevels(int uncompressedLevels) {
+            this.uncompressedLevels = uncompressedLevels;
+        }
+
+        public CompactionStyle getCompactionStyle() {
+            return compactionStyle;
+        }
+
+        public void setCompactionStyle(CompactionStyle compactionStyle) {
+            this.compactionStyle = compactionStyle;
+        }
+
+        public boolean isStatistics() {
+            return statistics;
+        }
+
+        public void setStatistics(boolean statistics) {
+            this.statistics = statistics;
+        }
+    }
+}
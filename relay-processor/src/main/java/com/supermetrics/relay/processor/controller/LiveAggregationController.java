@@ -0,0 +1,61 @@
+package com.supermetrics.relay.processor.controller;
+
+import com.supermetrics.relay.common.domain.DeviceType;
+import com.supermetrics.relay.common.domain.LiveAggregation;
+import com.supermetrics.relay.processor.service.LiveAggregationService;
+import com.supermetrics.relay.processor.stream.AggregationKey;
+import org.apache.kafka.streams.errors.InvalidStateStoreException;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.time.Instant;
+
+/**
+ * Internal endpoints the API uses to read in-progress windows straight from the state stores.
+ */
+@RestController
+@RequestMapping("/internal/live")
+public class LiveAggregationController {
+
+    private final LiveAggregationService liveAggregationService;
+
+    public LiveAggregationController(LiveAggregationService liveAggregationService) {
+        this.liveAggregationService = liveAggregationService;
+    }
+
+    @GetMapping("/devices/{deviceId}")
+    public ResponseEntity<LiveAggregation> getDeviceAggregation(
+            @PathVariable String deviceId,
+            @RequestParam("from") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant from,
+            @RequestParam("to") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant to,
+            @RequestParam(value = "zone", required = false) String zone,
+            @RequestParam(value = "deviceType", required = false) DeviceType deviceType,
+            @RequestParam(value = "forwarded", defaultValue = "false") boolean forwarded) {
+
+        if (!from.isBefore(to)) {
+            return ResponseEntity.badRequest().build();
+        }
+        try {
+            return liveAggregationService.findDeviceAggregation(deviceId, zone, deviceType, from, to, forwarded)
+                .map(ResponseEntity::ok)
+                .orElseGet(() -> ResponseEntity.notFound().build());
+        } catch (IllegalStateException | InvalidStateStoreException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+    }
+
+    @GetMapping("/devices/{deviceId}/key")
+    public ResponseEntity<AggregationKey> getDeviceKey(
+            @PathVariable String deviceId,
+            @RequestParam(value = "forwarded", defaultValue = "false") boolean forwarded) {
+        try {
+            return liveAggregationService.findDeviceKey(deviceId, forwarded)
+                .map(ResponseEntity::ok)
+                .orElseGet(() -> ResponseEntity.notFound().build());
+        } catch (IllegalStateException | InvalidStateStoreException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+    }
+}
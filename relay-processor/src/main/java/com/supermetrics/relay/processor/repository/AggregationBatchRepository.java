@@ -0,0 +1,55 @@
+package com.supermetrics.relay.processor.repository;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Collection;
+
+/**
+ * JDBC batch counterpart of {@link DeviceEventAggregationRepository#upsertAggregation}. With
+ * {@code reWriteBatchedInserts=true} on the connection URL the driver sends each batch as a
+ * multi-row INSERT ... ON CONFLICT statement.
+ */
+@Repository
+public class AggregationBatchRepository {
+
+    static final String UPSERT_SQL = """
+        INSERT INTO device_event_aggregations
+            (device_id, zone, device_type, time_window_start, time_window_end, window_type,
+             avg_value, min_value, max_value, median_value, count, digest)
+        VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+        ON CONFLICT (device_id, zone, device_type, time_window_start, time_window_end, window_type)
+        DO UPDATE SET
+            avg_value = EXCLUDED.avg_value,
+            min_value = EXCLUDED.min_value,
+            max_value = EXCLUDED.max_value,
+            median_value = EXCLUDED.median_value,
+            count = EXCLUDED.count,
+            digest = EXCLUDED.digest
+        """;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public AggregationBatchRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public void upsertAll(Collection<AggregationRow> rows) {
+        jdbcTemplate.batchUpdate(UPSERT_SQL, rows, rows.size(), (ps, row) -> {
+            ps.setString(1, row.deviceId());
+            ps.setString(2, row.zone());
+            ps.setString(3, row.deviceType().name());
+            ps.setObject(4, OffsetDateTime.ofInstant(row.windowStart(), ZoneOffset.UTC));
+            ps.setObject(5, OffsetDateTime.ofInstant(row.windowEnd(), ZoneOffset.UTC));
+            ps.setString(6, row.windowType().name());
+            ps.setDouble(7, row.avgValue());
+            ps.setDouble(8, row.minValue());
+            ps.setDouble(9, row.maxValue());
+            ps.setDouble(10, row.medianValue());
+            ps.setLong(11, row.count());
+            ps.setBytes(12, row.digest());
+        });
+    }
+}
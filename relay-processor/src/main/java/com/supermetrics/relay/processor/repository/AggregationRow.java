@@ -0,0 +1,22 @@
+package com.supermetrics.relay.processor.repository;
+
+import com.supermetrics.relay.common.domain.DeviceType;
+import com.supermetrics.relay.common.entity.DeviceEventAggregation;
+
+import java.time.Instant;
+
+public record AggregationRow(
+    String deviceId,
+    String zone,
+    DeviceType deviceType,
+    Instant windowStart,
+    Instant windowEnd,
+    DeviceEventAggregation.WindowType windowType,
+    double avgValue,
+    double minValue,
+    double maxValue,
+    double medianValue,
+    long count,
+    byte[] digest
+) {
+}
@@ -16,17 +16,18 @@ public interface DeviceEventAggregationRepository extends JpaRepository<DeviceEv
     @Query(value = """
         INSERT INTO device_event_aggregations 
             (device_id, zone, device_type, time_window_start, time_window_end, window_type, 
-             avg_value, min_value, max_value, median_value, count)
+             avg_value, min_value, max_value, median_value, count, digest)
         VALUES 
             (:deviceId, :zone, CAST(:deviceType AS text), :windowStart, :windowEnd, CAST(:windowType AS text),
-             :avgValue, :minValue, :maxValue, :medianValue, :count)
+             :avgValue, :minValue, :maxValue, :medianValue, :count, :digest)
         ON CONFLICT (device_id, zone, device_type, time_window_start, time_window_end, window_type)
         DO UPDATE SET
             avg_value = EXCLUDED.avg_value,
             min_value = EXCLUDED.min_value,
             max_value = EXCLUDED.max_value,
             median_value = EXCLUDED.median_value,
-            count = EXCLUDED.count
+            count = EXCLUDED.count,
+            digest = EXCLUDED.digest
         """, nativeQuery = true)
     void upsertAggregation(
         @Param("deviceId") String deviceId,
@@ -39,6 +40,7 @@ public interface DeviceEventAggregationRepository extends JpaRepository<DeviceEv
         @Param("minValue") double minValue,
         @Param("maxValue") double maxValue,
         @Param("medianValue") double medianValue,
-        @Param("count") long count);
+        @Param("count") long count,
+        @Param("digest") byte[] digest);
 }
 
@@ -0,0 +1,47 @@
+package com.supermetrics.relay.processor.repository;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Postgres-backed mapping of deviceId and zone strings to the int ids used in dictionary-encoded
+ * state-store keys. Ids are assigned by the table's sequence, so every instance and task agrees on
+ * them without coordination.
+ */
+@Repository
+public class KeyDictionaryRepository {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public KeyDictionaryRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public Map<String, Integer> findAll() {
+        Map<String, Integer> entries = new HashMap<>();
+        jdbcTemplate.query("SELECT id, value FROM key_dictionary",
+            rs -> {
+                entries.put(rs.getString("value"), rs.getInt("id"));
+            });
+        return entries;
+    }
+
+    public int getOrCreate(String value) {
+        jdbcTemplate.update("INSERT INTO key_dictionary (value) VALUES (?) ON CONFLICT (value) DO NOTHING", value);
+        Integer id = jdbcTemplate.queryForObject("SELECT id FROM key_dictionary WHERE value = ?", Integer.class, value);
+        if (id == null) {
+            throw new IllegalStateException("No dictionary id assigned for " + value);
+        }
+        return id;
+    }
+
+    public Optional<String> findValue(int id) {
+        return jdbcTemplate.queryForList("SELECT value FROM key_dictionary WHERE id = ?", String.class, id)
+            .stream()
+            .findFirst();
+    }
+}
@@ -1,6 +1,8 @@
 package com.supermetrics.relay.processor.service;
 
 import com.supermetrics.relay.common.entity.DeviceEventAggregation;
+import com.supermetrics.relay.processor.repository.AggregationBatchRepository;
+import com.supermetrics.relay.processor.repository.AggregationRow;
 import com.supermetrics.relay.processor.repository.DeviceEventAggregationRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -8,15 +10,19 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.time.Instant;
+import java.util.Collection;
 
 @Service
 public class EventProcessingService {
     private static final Logger logger = LoggerFactory.getLogger(EventProcessingService.class);
     
     private final DeviceEventAggregationRepository aggregationRepository;
+    private final AggregationBatchRepository batchRepository;
     
-    public EventProcessingService(DeviceEventAggregationRepository aggregationRepository) {
+    public EventProcessingService(DeviceEventAggregationRepository aggregationRepository,
+                                  AggregationBatchRepository batchRepository) {
         this.aggregationRepository = aggregationRepository;
+        this.batchRepository = batchRepository;
     }
     
     @Transactional
@@ -31,11 +37,12 @@ public class EventProcessingService {
             double minValue,
             double maxValue,
             double medianValue,
-            long count) {
+            long count,
+            byte[] digest) {
         try {
             aggregationRepository.upsertAggregation(
                 deviceId, zone, deviceType.name(), windowStart, windowEnd, 
-                windowType.name(), avgValue, minValue, maxValue, medianValue, count);
+                windowType.name(), avgValue, minValue, maxValue, medianValue, count, digest);
             
             logger.debug("Upserted aggregation: deviceId={}, window={}, count={}", 
                 deviceId, windowType, count);
@@ -44,5 +51,17 @@ public class EventProcessingService {
                 deviceId, windowType, e);
         }
     }
+    
+    /**
+     * Upserts a coalesced batch in one transaction. Unlike {@link #persistAggregation}, failures
+     * are propagated: the write-behind sink relies on them to keep the batch buffered.
+     */
+    @Transactional
+    public void persistAggregations(Collection<AggregationRow> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        batchRepository.upsertAll(rows);
+        logger.debug("Upserted {} aggregations in one batch", rows.size());
+    }
 }
-
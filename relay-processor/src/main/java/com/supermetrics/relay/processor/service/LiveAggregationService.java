@@ -0,0 +1,206 @@
+package com.supermetrics.relay.processor.service;
+
+import com.supermetrics.relay.common.domain.DeviceType;
+import com.supermetrics.relay.common.domain.LiveAggregation;
+import com.supermetrics.relay.processor.config.ProcessorProperties;
+import com.supermetrics.relay.processor.stream.AggregationKey;
+import com.supermetrics.relay.processor.stream.AggregationKeySerde;
+import com.supermetrics.relay.processor.stream.AggregationValue;
+import com.supermetrics.relay.processor.stream.DeviceEventStreamProcessor;
+import com.supermetrics.relay.processor.stream.KeyDictionary;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.common.serialization.Serializer;
+import org.apache.kafka.streams.KafkaStreams;
+import org.apache.kafka.streams.KeyQueryMetadata;
+import org.apache.kafka.streams.StoreQueryParameters;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.state.HostInfo;
+import org.apache.kafka.streams.state.QueryableStoreTypes;
+import org.apache.kafka.streams.state.ReadOnlyKeyValueStore;
+import org.apache.kafka.streams.state.ReadOnlyWindowStore;
+import org.apache.kafka.streams.state.WindowStoreIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.kafka.config.StreamsBuilderFactoryBean;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestClient;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.net.URI;
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * Answers "current partial aggregate for a device" from the minute window store. The key is
+ * routed with {@link KafkaStreams#queryMetadataForKey}; when another instance owns the partition
+ * the request is forwarded to it once, using the {@code application.server} it advertises. In
+ * REPARTITION key mode a request without zone or device type first looks the device's key up in
+ * {@link DeviceEventStreamProcessor#DEVICE_KEY_STORE}, which is routed the same way.
+ */
+@Service
+public class LiveAggregationService {
+    private static final Logger logger = LoggerFactory.getLogger(LiveAggregationService.class);
+
+    static final String PATH = "/internal/live/devices/{deviceId}";
+    static final String KEY_PATH = PATH + "/key";
+
+    private final StreamsBuilderFactoryBean streamsBuilderFactoryBean;
+    private final DeviceEventStreamProcessor.KeyMode keyMode;
+    private final AggregationKeySerde keySerde;
+    private final RestClient restClient;
+
+    public LiveAggregationService(StreamsBuilderFactoryBean streamsBuilderFactoryBean,
+                                  ProcessorProperties properties,
+                                  KeyDictionary keyDictionary,
+                                  RestClient.Builder restClientBuilder) {
+        this.streamsBuilderFactoryBean = streamsBuilderFactoryBean;
+        this.keyMode = properties.getTopology().getKeyMode();
+        this.keySerde = new AggregationKeySerde(properties.getSerde().getKeyFormat(), keyDictionary);
+        this.restClient = restClientBuilder.build();
+    }
+
+    /**
+     * @throws IllegalStateException while the streams instance cannot serve queries
+     */
+    public Optional<LiveAggregation> findDeviceAggregation(String deviceId, String zone, DeviceType deviceType,
+                                                           Instant from, Instant to, boolean forwarded) {
+        if (keyMode == DeviceEventStreamProcessor.KeyMode.SOURCE) {
+            return query(deviceId, Serdes.String().serializer(), deviceId, zone, deviceType, from, to, forwarded);
+        }
+        if (zone == null || deviceType == null) {
+            return findDeviceKey(deviceId, forwarded)
+                .flatMap(key -> query(key, keySerde.serializer(), deviceId, key.zone(), key.deviceType(),
+                    from, to, forwarded));
+        }
+        AggregationKey key = new AggregationKey(deviceId, zone, deviceType);
+        return query(key, keySerde.serializer(), deviceId, zone, deviceType, from, to, forwarded);
+    }
+
+    /**
+     * The device's latest (deviceId, zone, deviceType) key, empty in SOURCE key mode, where there
+     * is no index, or when the device has sent nothing yet.
+     *
+     * @throws IllegalStateException while the streams instance cannot serve queries
+     */
+    public Optional<AggregationKey> findDeviceKey(String deviceId, boolean forwarded) {
+        if (keyMode == DeviceEventStreamProcessor.KeyMode.SOURCE) {
+            return Optional.empty();
+        }
+        KafkaStreams streams = runningStreams();
+        KeyQueryMetadata metadata = streams.queryMetadataForKey(
+            DeviceEventStreamProcessor.DEVICE_KEY_STORE, deviceId, Serdes.String().serializer());
+        HostInfo owner = metadata.activeHost();
+        if (!forwarded && isRemote(owner)) {
+            return forwardKeyLookup(owner, deviceId);
+        }
+        StoreQueryParameters<ReadOnlyKeyValueStore<String, AggregationKey>> parameters = StoreQueryParameters
+            .fromNameAndType(DeviceEventStreamProcessor.DEVICE_KEY_STORE,
+                QueryableStoreTypes.<String, AggregationKey>keyValueStore());
+        if (metadata.partition() >= 0) {
+            parameters = parameters.withPartition(metadata.partition());
+        }
+        return Optional.ofNullable(streams.store(parameters).get(deviceId));
+    }
+
+    private KafkaStreams runningStreams() {
+        KafkaStreams streams = streamsBuilderFactoryBean.getKafkaStreams();
+        if (streams == null || !streams.state().isRunningOrRebalancing()) {
+            throw new IllegalStateException("Kafka Streams is not running");
+        }
+        return streams;
+    }
+
+    private <K> Optional<LiveAggregation> query(K key, Serializer<K> serializer, String deviceId, String zone,
+                                                DeviceType deviceType, Instant from, Instant to, boolean forwarded) {
+        KafkaStreams streams = runningStreams();
+        KeyQueryMetadata metadata = streams.queryMetadataForKey(
+            DeviceEventStreamProcessor.MINUTE_STORE, key, serializer);
+        HostInfo owner = metadata.activeHost();
+        if (!forwarded && isRemote(owner)) {
+            return forward(owner, deviceId, zone, deviceType, from, to);
+        }
+        StoreQueryParameters<ReadOnlyWindowStore<K, AggregationValue>> parameters = StoreQueryParameters
+            .fromNameAndType(DeviceEventStreamProcessor.MINUTE_STORE, QueryableStoreTypes.<K, AggregationValue>windowStore());
+        if (metadata.partition() >= 0) {
+            parameters = parameters.withPartition(metadata.partition());
+        }
+        return aggregate(streams.store(parameters), key, deviceId, zone, deviceType, from, to);
+    }
+
+    /**
+     * Merges every minute window of {@code key} starting in {@code [from, to)}.
+     */
+    static <K> Optional<LiveAggregation> aggregate(ReadOnlyWindowStore<K, AggregationValue> store, K key,
+                                                   String deviceId, String zone, DeviceType deviceType,
+                                                   Instant from, Instant to) {
+        AggregationValue total = new AggregationValue();
+        try (WindowStoreIterator<AggregationValue> windows = store.fetch(key, from, to.minusMillis(1))) {
+            while (windows.hasNext()) {
+                total.merge(windows.next().value);
+            }
+        }
+        if (total.getCount() == 0) {
+            return Optional.empty();
+        }
+        return Optional.of(new LiveAggregation(
+            deviceId,
+            total.getZone() != null ? total.getZone() : zone,
+            total.getDeviceType() != null ? total.getDeviceType() : deviceType,
+            from, to,
+            total.getAverage(), total.getMin(), total.getMax(), total.getMedian(), total.getCount()));
+    }
+
+    private boolean isRemote(HostInfo owner) {
+        if (owner == null || HostInfo.unavailable().equals(owner)) {
+            return false;
+        }
+        HostInfo self = selfHostInfo();
+        return self != null && !self.equals(owner);
+    }
+
+    private HostInfo selfHostInfo() {
+        if (streamsBuilderFactoryBean.getStreamsConfiguration() == null) {
+            return null;
+        }
+        String endpoint = streamsBuilderFactoryBean.getStreamsConfiguration()
+            .getProperty(StreamsConfig.APPLICATION_SERVER_CONFIG);
+        return endpoint == null || endpoint.isBlank() ? null : HostInfo.buildFromEndpoint(endpoint);
+    }
+
+    private Optional<LiveAggregation> forward(HostInfo owner, String deviceId, String zone, DeviceType deviceType,
+                                              Instant from, Instant to) {
+        URI uri = UriComponentsBuilder.newInstance()
+            .scheme("http").host(owner.host()).port(owner.port())
+            .path(PATH)
+            .queryParam("from", from)
+            .queryParam("to", to)
+            .queryParamIfPresent("zone", Optional.ofNullable(zone))
+            .queryParamIfPresent("deviceType", Optional.ofNullable(deviceType))
+            .queryParam("forwarded", true)
+            .buildAndExpand(deviceId)
+            .encode()
+            .toUri();
+        logger.debug("Forwarding live query for device {} to {}", deviceId, owner);
+        return restClient.get()
+            .uri(uri)
+            .exchange((request, response) -> response.getStatusCode().value() == 404
+                ? Optional.empty()
+                : Optional.ofNullable(response.bodyTo(LiveAggregation.class)));
+    }
+
+    private Optional<AggregationKey> forwardKeyLookup(HostInfo owner, String deviceId) {
+        URI uri = UriComponentsBuilder.newInstance()
+            .scheme("http").host(owner.host()).port(owner.port())
+            .path(KEY_PATH)
+            .queryParam("forwarded", true)
+            .buildAndExpand(deviceId)
+            .encode()
+            .toUri();
+        logger.debug("Forwarding key lookup for device {} to {}", deviceId, owner);
+        return restClient.get()
+            .uri(uri)
+            .exchange((request, response) -> response.getStatusCode().value() == 404
+                ? Optional.empty()
+                : Optional.ofNullable(response.bodyTo(AggregationKey.class)));
+    }
+}
@@ -1,13 +1,58 @@
 package com.supermetrics.relay.processor.stream;
 
+import com.supermetrics.relay.common.domain.DeviceType;
 import org.apache.kafka.common.serialization.Deserializer;
 import org.apache.kafka.common.serialization.Serde;
 import org.apache.kafka.common.serialization.Serializer;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
+/**
+ * Binary layout (version 1):
+ * <pre>
+ * [0x01][varint len][deviceId utf-8][varint len][zone utf-8][deviceType ordinal]
+ * </pre>
+ * Dictionary layout (version 2), fixed at 10 bytes, with ids from {@link KeyDictionary}:
+ * <pre>
+ * [0x02][int deviceId id][int zone id][deviceType ordinal]
+ * </pre>
+ * Keys written by older releases as {@code deviceId|zone|TYPE} text are still readable.
+ * Because state-store lookups compare raw key bytes, writers can be kept on the
+ * {@link KeyFormat#LEGACY} format until windows opened by older releases have closed; the
+ * same applies when switching between BINARY and DICTIONARY.
+ */
 public class AggregationKeySerde implements Serde<AggregationKey> {
-    
+
+    public enum KeyFormat {
+        LEGACY,
+        BINARY,
+        DICTIONARY
+    }
+
+    static final int DICTIONARY_KEY_SIZE = 10;
+
+    private static final DeviceType[] DEVICE_TYPES = DeviceType.values();
+
+    private final KeyFormat writeFormat;
+    private final KeyDictionary dictionary;
+
+    public AggregationKeySerde() {
+        this(KeyFormat.BINARY);
+    }
+
+    public AggregationKeySerde(KeyFormat writeFormat) {
+        this(writeFormat, null);
+    }
+
+    public AggregationKeySerde(KeyFormat writeFormat, KeyDictionary dictionary) {
+        if (writeFormat == KeyFormat.DICTIONARY && dictionary == null) {
+            throw new IllegalArgumentException("DICTIONARY key format requires a key dictionary");
+        }
+        this.writeFormat = writeFormat;
+        this.dictionary = dictionary;
+    }
+
     @Override
     public Serializer<AggregationKey> serializer() {
         return new Serializer<AggregationKey>() {
@@ -16,11 +61,15 @@ public class AggregationKeySerde implements Serde<AggregationKey> {
                 if (data == null) {
                     return null;
                 }
-                return data.toKafkaKey().getBytes(StandardCharsets.UTF_8);
+                return switch (writeFormat) {
+                    case LEGACY -> data.toKafkaKey().getBytes(StandardCharsets.UTF_8);
+                    case BINARY -> toBytes(data);
+                    case DICTIONARY -> toDictionaryBytes(data, dictionary);
+                };
             }
         };
     }
-    
+
     @Override
     public Deserializer<AggregationKey> deserializer() {
         return new Deserializer<AggregationKey>() {
@@ -29,10 +78,60 @@ public class AggregationKeySerde implements Serde<AggregationKey> {
                 if (data == null) {
                     return null;
                 }
+                if (data.length > 0 && data[0] == BinaryFormat.VERSION_1) {
+                    return fromBytes(data);
+                }
+                if (data.length == DICTIONARY_KEY_SIZE && data[0] == BinaryFormat.VERSION_2) {
+                    if (dictionary == null) {
+                        throw new IllegalStateException("Dictionary-encoded key read without a key dictionary");
+                    }
+                    return fromDictionaryBytes(data, dictionary);
+                }
                 String key = new String(data, StandardCharsets.UTF_8);
                 return AggregationKey.fromKafkaKey(key);
             }
         };
     }
-}
 
+    static byte[] toBytes(AggregationKey key) {
+        byte[] deviceId = key.deviceId().getBytes(StandardCharsets.UTF_8);
+        byte[] zone = key.zone().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer out = ByteBuffer.allocate(
+            1 + BinaryFormat.stringSize(deviceId) + BinaryFormat.stringSize(zone) + 1);
+        out.put(BinaryFormat.VERSION_1);
+        BinaryFormat.writeString(out, deviceId);
+        BinaryFormat.writeString(out, zone);
+        out.put((byte) key.deviceType().ordinal());
+        return out.array();
+    }
+
+    static AggregationKey fromBytes(byte[] data) {
+        ByteBuffer in = ByteBuffer.wrap(data, 1, data.length - 1);
+        String deviceId = BinaryFormat.readString(in);
+        String zone = BinaryFormat.readString(in);
+        return new AggregationKey(deviceId, zone, deviceType(in.get()));
+    }
+
+    static byte[] toDictionaryBytes(AggregationKey key, KeyDictionary dictionary) {
+        return ByteBuffer.allocate(DICTIONARY_KEY_SIZE)
+            .put(BinaryFormat.VERSION_2)
+            .putInt(dictionary.idOf(key.deviceId()))
+            .putInt(dictionary.idOf(key.zone()))
+            .put((byte) key.deviceType().ordinal())
+            .array();
+    }
+
+    static AggregationKey fromDictionaryBytes(byte[] data, KeyDictionary dictionary) {
+        ByteBuffer in = ByteBuffer.wrap(data, 1, data.length - 1);
+        String deviceId = dictionary.valueOf(in.getInt());
+        String zone = dictionary.valueOf(in.getInt());
+        return new AggregationKey(deviceId, zone, deviceType(in.get()));
+    }
+
+    private static DeviceType deviceType(int ordinal) {
+        if (ordinal < 0 || ordinal >= DEVICE_TYPES.length) {
+            throw new IllegalArgumentException("Unknown device type ordinal: " + ordinal);
+        }
+        return DEVICE_TYPES[ordinal];
+    }
+}
@@ -0,0 +1,73 @@
+package com.supermetrics.relay.processor.stream;
+
+import com.supermetrics.relay.common.entity.DeviceEventAggregation;
+import com.supermetrics.relay.processor.repository.AggregationRow;
+import org.apache.kafka.streams.kstream.Windowed;
+import org.apache.kafka.streams.processor.PunctuationType;
+import org.apache.kafka.streams.processor.api.Processor;
+import org.apache.kafka.streams.processor.api.ProcessorContext;
+import org.apache.kafka.streams.processor.api.Record;
+import org.apache.kafka.streams.state.KeyValueStore;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+/**
+ * Terminal processor that coalesces windowed aggregate updates in an {@link AggregationWriteBuffer}
+ * backed by the task's {@code bufferName} store. The buffer is drained into {@code sink} when it
+ * reaches {@code maxBatchSize} rows and on a wall-clock {@code flushInterval}.
+ */
+public class AggregationSinkProcessor<K> implements Processor<Windowed<K>, AggregationValue, Void, Void> {
+
+    private final String bufferName;
+    private final DeviceEventAggregation.WindowType windowType;
+    private final BiFunction<K, AggregationValue, AggregationKey> keyResolver;
+    private final Consumer<Collection<AggregationRow>> sink;
+    private final int maxBatchSize;
+    private final Duration flushInterval;
+    private AggregationWriteBuffer<K> buffer;
+
+    public AggregationSinkProcessor(String bufferName, DeviceEventAggregation.WindowType windowType,
+                                    BiFunction<K, AggregationValue, AggregationKey> keyResolver,
+                                    Consumer<Collection<AggregationRow>> sink,
+                                    int maxBatchSize, Duration flushInterval) {
+        this.bufferName = bufferName;
+        this.windowType = windowType;
+        this.keyResolver = keyResolver;
+        this.sink = sink;
+        this.maxBatchSize = maxBatchSize;
+        this.flushInterval = flushInterval;
+    }
+
+    @Override
+    public void init(ProcessorContext<Void, Void> context) {
+        KeyValueStore<Windowed<K>, AggregationValue> store = context.getStateStore(bufferName);
+        buffer = new AggregationWriteBuffer<>(store, this::toRow, sink);
+        context.schedule(flushInterval, PunctuationType.WALL_CLOCK_TIME, timestamp -> buffer.drain());
+    }
+
+    @Override
+    public void process(Record<Windowed<K>, AggregationValue> record) {
+        if (record.value() == null) {
+            return;
+        }
+        buffer.put(record.key(), record.value());
+        if (buffer.size() >= maxBatchSize) {
+            buffer.drain();
+        }
+    }
+
+    private AggregationRow toRow(Windowed<K> windowedKey, AggregationValue aggregation) {
+        AggregationKey key = keyResolver.apply(windowedKey.key(), aggregation);
+        return new AggregationRow(
+            key.deviceId(), key.zone(), key.deviceType(),
+            Instant.ofEpochMilli(windowedKey.window().start()),
+            Instant.ofEpochMilli(windowedKey.window().end()),
+            windowType,
+            aggregation.getAverage(), aggregation.getMin(), aggregation.getMax(),
+            aggregation.getMedian(), aggregation.getCount(), aggregation.getPersistedDigest());
+    }
+}
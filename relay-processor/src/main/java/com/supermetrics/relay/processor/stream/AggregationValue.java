@@ -2,33 +2,50 @@ package com.supermetrics.relay.processor.stream;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
-import java.util.ArrayList;
-import java.util.Collections;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.supermetrics.relay.common.domain.DeviceType;
+import com.supermetrics.relay.common.sketch.TDigest;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class AggregationValue {
+    /**
+     * Compression of the sketch persisted with each row: at most about 110 centroids (1.8 KB),
+     * half the size of the in-store digest, with tail accuracy that still suits p99.
+     */
+    public static final double PERSISTED_COMPRESSION = 50.0;
+
     private double sum;
     private double min;
     private double max;
     private long count;
-    private List<Double> values;
+    private TDigest digest;
+    private String zone;
+    private DeviceType deviceType;
     
     public AggregationValue() {
         this.sum = 0.0;
         this.min = Double.MAX_VALUE;
         this.max = Double.MIN_VALUE;
         this.count = 0;
-        this.values = new ArrayList<>();
+        this.digest = new TDigest();
     }
     
+    /**
+     * Without the values themselves the digest is seeded with one centroid at the mean carrying
+     * all {@code count} of them, so quantiles and merges stay consistent with the count.
+     */
     public AggregationValue(double sum, double min, double max, long count) {
         this.sum = sum;
         this.min = min;
         this.max = max;
         this.count = count;
-        this.values = new ArrayList<>();
+        this.digest = new TDigest();
+        if (count > 0) {
+            this.digest.add(sum / count, count);
+        }
     }
     
     public void add(double value) {
@@ -36,7 +53,17 @@ public class AggregationValue {
         this.min = Math.min(this.min, value);
         this.max = Math.max(this.max, value);
         this.count++;
-        this.values.add(value);
+        this.digest.add(value);
+    }
+
+    /**
+     * Records the event's zone and type on the value. Used when the window key is the
+     * bare deviceId, so the dimensions travel with the aggregate instead of the key.
+     */
+    public void addEvent(String zone, DeviceType deviceType, double value) {
+        this.zone = zone;
+        this.deviceType = deviceType;
+        add(value);
     }
     
     public void merge(AggregationValue other) {
@@ -44,7 +71,11 @@ public class AggregationValue {
         this.min = Math.min(this.min, other.min);
         this.max = Math.max(this.max, other.max);
         this.count += other.count;
-        this.values.addAll(other.values);
+        this.digest.merge(other.digest);
+        if (other.zone != null) {
+            this.zone = other.zone;
+            this.deviceType = other.deviceType;
+        }
     }
     
     public double getSum() {
@@ -79,6 +110,22 @@ public class AggregationValue {
         this.count = count;
     }
     
+    public String getZone() {
+        return zone;
+    }
+
+    public void setZone(String zone) {
+        this.zone = zone;
+    }
+
+    public DeviceType getDeviceType() {
+        return deviceType;
+    }
+
+    public void setDeviceType(DeviceType deviceType) {
+        this.deviceType = deviceType;
+    }
+
     @JsonIgnore
     public double getAverage() {
         return count > 0 ? sum / count : 0.0;
@@ -86,24 +133,70 @@ public class AggregationValue {
     
     @JsonIgnore
     public double getMedian() {
-        if (values == null || values.isEmpty()) {
+        return getQuantile(0.5);
+    }
+
+    @JsonIgnore
+    public double getQuantile(double q) {
+        if (digest.size() == 0) {
             return 0.0;
         }
-        List<Double> sortedValues = new ArrayList<>(values);
-        Collections.sort(sortedValues);
-        int size = sortedValues.size();
-        if (size % 2 == 0) {
-            return (sortedValues.get(size / 2 - 1) + sortedValues.get(size / 2)) / 2.0;
-        }
-        return sortedValues.get(size / 2);
+        return digest.quantile(q);
     }
     
-    public List<Double> getValues() {
-        return values != null ? new ArrayList<>(values) : new ArrayList<>();
+    /**
+     * The digest re-clustered at {@link #PERSISTED_COMPRESSION} and serialized for the
+     * {@code digest} column.
+     */
+    @JsonIgnore
+    public byte[] getPersistedDigest() {
+        TDigest persisted = new TDigest(PERSISTED_COMPRESSION);
+        persisted.merge(digest);
+        return persisted.toBytes();
     }
     
+    @JsonIgnore
+    public TDigest getDigest() {
+        return digest;
+    }
+
+    void setDigest(TDigest digest) {
+        this.digest = digest;
+    }
+
+    double getRawMin() {
+        return min;
+    }
+
+    double getRawMax() {
+        return max;
+    }
+
+    @JsonProperty("digest")
+    public byte[] getDigestBytes() {
+        return digest.toBytes();
+    }
+
+    @JsonProperty("digest")
+    public void setDigestBytes(byte[] bytes) {
+        this.digest = bytes != null ? TDigest.fromBytes(bytes) : new TDigest();
+    }
+
+    /**
+     * Reads window state written before the sketch was introduced, when every raw
+     * reading was kept in a "values" list. The readings are replayed into the digest
+     * so in-flight windows keep their median after an upgrade.
+     */
+    @JsonProperty(value = "values", access = JsonProperty.Access.WRITE_ONLY)
     public void setValues(List<Double> values) {
-        this.values = values != null ? new ArrayList<>(values) : new ArrayList<>();
+        if (values == null) {
+            return;
+        }
+        for (Double value : values) {
+            if (value != null) {
+                digest.add(value);
+            }
+        }
     }
     
     @Override
@@ -115,12 +208,14 @@ public class AggregationValue {
                Double.compare(that.min, min) == 0 &&
                Double.compare(that.max, max) == 0 &&
                count == that.count &&
-               Objects.equals(values, that.values);
+               Objects.equals(zone, that.zone) &&
+               deviceType == that.deviceType &&
+               Arrays.equals(getDigestBytes(), that.getDigestBytes());
     }
     
     @Override
     public int hashCode() {
-        return Objects.hash(sum, min, max, count, values);
+        return Objects.hash(sum, min, max, count);
     }
     
     @Override
@@ -1,20 +1,37 @@
 package com.supermetrics.relay.processor.stream;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.supermetrics.relay.common.domain.DeviceType;
+import com.supermetrics.relay.common.sketch.TDigest;
 import org.apache.kafka.common.serialization.Deserializer;
 import org.apache.kafka.common.serialization.Serde;
 import org.apache.kafka.common.serialization.Serializer;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
+/**
+ * Binary layouts:
+ * <pre>
+ * v1: [0x01][varint count][sum f64][min f64][max f64][t-digest]
+ * v2: [0x02][varint len][zone utf-8][deviceType ordinal] followed by the v1 body
+ * </pre>
+ * v2 is written only when the value carries its zone and device type (source-keyed topology).
+ * JSON entries written by older releases start with '{' and are read through Jackson,
+ * so existing window stores and changelogs stay readable during a rolling upgrade.
+ */
 public class AggregationValueSerde implements Serde<AggregationValue> {
-    
+
+    private static final byte JSON_START = '{';
+    private static final DeviceType[] DEVICE_TYPES = DeviceType.values();
+
     private final ObjectMapper objectMapper;
-    
+
     public AggregationValueSerde(ObjectMapper objectMapper) {
         this.objectMapper = objectMapper;
     }
-    
+
     @Override
     public Serializer<AggregationValue> serializer() {
         return new Serializer<AggregationValue>() {
@@ -23,15 +40,11 @@ public class AggregationValueSerde implements Serde<AggregationValue> {
                 if (data == null) {
                     return null;
                 }
-                try {
-                    return objectMapper.writeValueAsBytes(data);
-                } catch (Exception e) {
-                    throw new RuntimeException("Error serializing AggregationValue", e);
-                }
+                return toBytes(data);
             }
         };
     }
-    
+
     @Override
     public Deserializer<AggregationValue> deserializer() {
         return new Deserializer<AggregationValue>() {
@@ -40,13 +53,65 @@ public class AggregationValueSerde implements Serde<AggregationValue> {
                 if (data == null) {
                     return null;
                 }
-                try {
-                    return objectMapper.readValue(data, AggregationValue.class);
-                } catch (IOException e) {
-                    throw new RuntimeException("Error deserializing AggregationValue", e);
+                if (data.length > 0 && (data[0] == BinaryFormat.VERSION_1 || data[0] == BinaryFormat.VERSION_2)) {
+                    return fromBytes(data);
+                }
+                if (data.length > 0 && data[0] == JSON_START) {
+                    try {
+                        return objectMapper.readValue(data, AggregationValue.class);
+                    } catch (IOException e) {
+                        throw new RuntimeException("Error deserializing AggregationValue", e);
+                    }
                 }
+                throw new IllegalArgumentException("Unknown AggregationValue format: " + data[0]);
             }
         };
     }
-}
 
+    static byte[] toBytes(AggregationValue value) {
+        TDigest digest = value.getDigest();
+        boolean withDimensions = value.getZone() != null && value.getDeviceType() != null;
+        byte[] zone = withDimensions ? value.getZone().getBytes(StandardCharsets.UTF_8) : null;
+        int size = 1 + BinaryFormat.varIntSize(value.getCount()) + 3 * Double.BYTES + digest.byteSize();
+        if (withDimensions) {
+            size += BinaryFormat.stringSize(zone) + 1;
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        if (withDimensions) {
+            out.put(BinaryFormat.VERSION_2);
+            BinaryFormat.writeString(out, zone);
+            out.put((byte) value.getDeviceType().ordinal());
+        } else {
+            out.put(BinaryFormat.VERSION_1);
+        }
+        BinaryFormat.writeVarInt(out, value.getCount());
+        out.putDouble(value.getSum());
+        out.putDouble(value.getRawMin());
+        out.putDouble(value.getRawMax());
+        digest.writeTo(out);
+        return out.array();
+    }
+
+    static AggregationValue fromBytes(byte[] data) {
+        ByteBuffer in = ByteBuffer.wrap(data, 1, data.length - 1);
+        String zone = null;
+        DeviceType deviceType = null;
+        if (data[0] == BinaryFormat.VERSION_2) {
+            zone = BinaryFormat.readString(in);
+            int ordinal = in.get();
+            if (ordinal < 0 || ordinal >= DEVICE_TYPES.length) {
+                throw new IllegalArgumentException("Unknown device type ordinal: " + ordinal);
+            }
+            deviceType = DEVICE_TYPES[ordinal];
+        }
+        long count = BinaryFormat.readVarInt(in);
+        double sum = in.getDouble();
+        double min = in.getDouble();
+        double max = in.getDouble();
+        AggregationValue value = new AggregationValue(sum, min, max, count);
+        value.setDigest(TDigest.readFrom(in));
+        value.setZone(zone);
+        value.setDeviceType(deviceType);
+        return value;
+    }
+}
@@ -0,0 +1,81 @@
+package com.supermetrics.relay.processor.stream;
+
+import com.supermetrics.relay.processor.repository.AggregationRow;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.kstream.Windowed;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.KeyValueStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+/**
+ * Write-behind buffer that keeps only the latest aggregate per windowed key and hands the
+ * coalesced rows to a sink in one batch.
+ *
+ * Pending aggregates live in a changelogged task key-value store, so they are committed together
+ * with the input offsets that produced them. After a crash they are restored with the store and
+ * written by the next drain, which keeps the sink at-least-once without hooking into the commit
+ * itself. Rows stay in the store if the sink throws.
+ */
+public class AggregationWriteBuffer<K> {
+    private static final Logger logger = LoggerFactory.getLogger(AggregationWriteBuffer.class);
+
+    private final KeyValueStore<Windowed<K>, AggregationValue> store;
+    private final BiFunction<Windowed<K>, AggregationValue, AggregationRow> toRow;
+    private final Consumer<Collection<AggregationRow>> sink;
+    private final Set<Windowed<K>> pending = new HashSet<>();
+
+    /**
+     * Aggregates already in {@code store}, e.g. restored from its changelog, are pending too.
+     */
+    public AggregationWriteBuffer(KeyValueStore<Windowed<K>, AggregationValue> store,
+                                  BiFunction<Windowed<K>, AggregationValue, AggregationRow> toRow,
+                                  Consumer<Collection<AggregationRow>> sink) {
+        this.store = store;
+        this.toRow = toRow;
+        this.sink = sink;
+        try (KeyValueIterator<Windowed<K>, AggregationValue> restored = store.all()) {
+            restored.forEachRemaining(entry -> pending.add(entry.key));
+        }
+    }
+
+    public void put(Windowed<K> key, AggregationValue aggregation) {
+        store.put(key, aggregation);
+        pending.add(key);
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * Writes all pending rows to the sink, then removes them from the store.
+     */
+    public void drain() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<AggregationRow> batch = new ArrayList<>(pending.size());
+        try (KeyValueIterator<Windowed<K>, AggregationValue> entries = store.all()) {
+            while (entries.hasNext()) {
+                KeyValue<Windowed<K>, AggregationValue> entry = entries.next();
+                batch.add(toRow.apply(entry.key, entry.value));
+            }
+        }
+        sink.accept(Collections.unmodifiableList(batch));
+        for (Windowed<K> key : pending) {
+            store.put(key, null);
+        }
+        pending.clear();
+        logger.debug("Flushed {} coalesced aggregations from {}", batch.size(), store.name());
+    }
+}
@@ -0,0 +1,68 @@
+package com.supermetrics.relay.processor.stream;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Primitives shared by the binary state-store serdes: unsigned LEB128 varints and
+ * varint-length-prefixed UTF-8 strings. Every encoded record starts with a format
+ * version byte so readers can tell binary entries from older JSON/text entries.
+ */
+final class BinaryFormat {
+
+    static final byte VERSION_1 = 0x01;
+    static final byte VERSION_2 = 0x02;
+
+    private BinaryFormat() {
+    }
+
+    static int varIntSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void writeVarInt(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static long readVarInt(ByteBuffer in) {
+        long result = 0;
+        int shift = 0;
+        while (shift < 64) {
+            byte b = in.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+            shift += 7;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static int stringSize(byte[] utf8) {
+        return varIntSize(utf8.length) + utf8.length;
+    }
+
+    static void writeString(ByteBuffer out, byte[] utf8) {
+        writeVarInt(out, utf8.length);
+        out.put(utf8);
+    }
+
+    static String readString(ByteBuffer in) {
+        int length = (int) readVarInt(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Invalid string length: " + length);
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+}
@@ -3,9 +3,16 @@ package com.supermetrics.relay.processor.stream;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.supermetrics.relay.common.domain.DeviceEvent;
 import com.supermetrics.relay.common.entity.DeviceEventAggregation;
+import com.supermetrics.relay.processor.config.ProcessorProperties;
 import com.supermetrics.relay.processor.service.EventProcessingService;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.utils.Bytes;
 import org.apache.kafka.streams.StreamsBuilder;
 import org.apache.kafka.streams.kstream.*;
+import org.apache.kafka.streams.state.KeyValueStore;
+import org.apache.kafka.streams.state.Stores;
+import org.apache.kafka.streams.state.WindowStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -16,6 +23,8 @@ import org.springframework.kafka.annotation.EnableKafkaStreams;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Locale;
+import java.util.function.BiFunction;
 
 import static org.apache.kafka.common.serialization.Serdes.String;
 
@@ -23,39 +32,71 @@ import static org.apache.kafka.common.serialization.Serdes.String;
 @EnableKafkaStreams
 public class DeviceEventStreamProcessor {
     private static final Logger logger = LoggerFactory.getLogger(DeviceEventStreamProcessor.class);
-    
+
+    /**
+     * REPARTITION regroups every event by (deviceId, zone, deviceType), which goes through a
+     * repartition topic. SOURCE aggregates on the record key as produced (the deviceId) with
+     * groupByKey, and carries zone and device type in the aggregate value instead.
+     */
+    public enum KeyMode {
+        REPARTITION,
+        SOURCE
+    }
+
     private final EventProcessingService eventProcessingService;
     private final ObjectMapper objectMapper;
     private final String inputTopic;
+    private final KeyMode keyMode;
+    private final ProcessorProperties.Sink sinkProperties;
+    private final ProcessorProperties.Emit emitProperties;
     private final AggregationKeySerde keySerde;
     private final AggregationValueSerde valueSerde;
     private final DeviceEventSerde deviceEventSerde;
-    
-    private static final Duration HOURLY_WINDOW = Duration.ofHours(1);
-    
+    private final DeviceEventTimestampExtractor timestampExtractor;
+
+    private static final Duration GRACE_PERIOD = Duration.ofMinutes(5);
+    /**
+     * Minute windows are kept well past their grace period so that interactive queries can
+     * rebuild any hour whose rollup has not reached Postgres yet.
+     */
+    private static final Duration MINUTE_RETENTION = Duration.ofHours(2);
+    public static final String MINUTE_STORE = "minute-aggregations";
+    public static final String HOURLY_STORE = "hourly-aggregations";
+    public static final String DAILY_STORE = "daily-aggregations";
+    public static final String DEVICE_KEY_STORE = "device-keys";
+
     @Autowired
     public DeviceEventStreamProcessor(
             EventProcessingService eventProcessingService,
             ObjectMapper objectMapper,
-            @Value("${spring.kafka.topics.input}") String inputTopic) {
+            @Value("${spring.kafka.topics.input}") String inputTopic,
+            ProcessorProperties properties,
+            MeterRegistry meterRegistry,
+            KeyDictionary keyDictionary) {
         this.eventProcessingService = eventProcessingService;
         this.objectMapper = objectMapper;
         this.inputTopic = inputTopic;
-        this.keySerde = new AggregationKeySerde();
+        this.keyMode = properties.getTopology().getKeyMode();
+        this.sinkProperties = properties.getSink();
+        this.emitProperties = properties.getEmit();
+        this.keySerde = new AggregationKeySerde(properties.getSerde().getKeyFormat(), keyDictionary);
         this.valueSerde = new AggregationValueSerde(objectMapper);
         this.deviceEventSerde = new DeviceEventSerde(objectMapper);
-        logger.info("DeviceEventStreamProcessor initialized with topic: {}", inputTopic);
+        this.timestampExtractor = new DeviceEventTimestampExtractor(
+            properties.getTimestamp().getPolicy(), properties.getTimestamp().getMaxSkew(), meterRegistry);
+        logger.info("DeviceEventStreamProcessor initialized with topic: {}, key mode: {}, sink mode: {}, emit mode: {}",
+            inputTopic, keyMode, sinkProperties.getMode(), emitProperties.getMode());
     }
-    
+
     @Bean
     public KStream<String, String> kStream(StreamsBuilder streamsBuilder) {
         logger.info("Building Kafka Streams topology with windowed aggregations for topic: {}", inputTopic);
-        
+
         KStream<String, String> eventStream = streamsBuilder.stream(
             inputTopic,
-            Consumed.with(String(), String())
+            Consumed.with(String(), String()).withTimestampExtractor(timestampExtractor)
         );
-        
+
         KStream<String, DeviceEvent> parsedStream = eventStream
             .mapValues((key, jsonValue) -> {
                 try {
@@ -66,52 +107,234 @@ public class DeviceEventStreamProcessor {
                 }
             })
             .filter((key, event) -> event != null);
-        
-        Grouped<AggregationKey, DeviceEvent> grouped = Grouped.with(keySerde, deviceEventSerde);
-        KGroupedStream<AggregationKey, DeviceEvent> groupedStream = parsedStream.groupBy(
-            (key, event) -> new AggregationKey(
-                event.deviceId(),
-                event.zone(),
-                event.deviceType()
-            ),
-            grouped
-        );
-        
-        TimeWindows hourlyWindows = TimeWindows.ofSizeAndGrace(HOURLY_WINDOW, Duration.ofMinutes(5));
-        KTable<Windowed<AggregationKey>, AggregationValue> hourlyAggregations = groupedStream
-            .windowedBy(hourlyWindows)
+
+        if (keyMode == KeyMode.SOURCE) {
+            KGroupedStream<String, DeviceEvent> groupedStream = parsedStream
+                .filter(this::keyMatchesDevice)
+                .groupByKey(Grouped.with(String(), deviceEventSerde));
+            aggregateWindows(streamsBuilder, groupedStream, String(),
+                (deviceId, aggregation) -> new AggregationKey(deviceId, aggregation.getZone(), aggregation.getDeviceType()));
+        } else {
+            indexDeviceKeys(parsedStream);
+            Grouped<AggregationKey, DeviceEvent> grouped = Grouped.with(keySerde, deviceEventSerde);
+            KGroupedStream<AggregationKey, DeviceEvent> groupedStream = parsedStream.groupBy(
+                (key, event) -> new AggregationKey(
+                    event.deviceId(),
+                    event.zone(),
+                    event.deviceType()
+                ),
+                grouped
+            );
+            aggregateWindows(streamsBuilder, groupedStream, keySerde, (key, aggregation) -> key);
+        }
+
+        logger.info("Kafka Streams topology built successfully with windowed aggregations");
+        return eventStream;
+    }
+
+    /**
+     * Windows keyed by (deviceId, zone, deviceType) are partitioned by the whole key, so live
+     * queries that only know the deviceId look up its current key in this table first. It is fed
+     * through {@link DeviceKeyChanges}, so its repartition topic carries key changes, not events.
+     */
+    private void indexDeviceKeys(KStream<String, DeviceEvent> events) {
+        events
+            .processValues(DeviceKeyChanges::new, Named.as(DEVICE_KEY_STORE + "-changes"))
+            .selectKey((key, aggregationKey) -> aggregationKey.deviceId())
+            .toTable(Named.as(DEVICE_KEY_STORE),
+                Materialized.<String, AggregationKey, KeyValueStore<Bytes, byte[]>>as(DEVICE_KEY_STORE)
+                    .withKeySerde(String())
+                    .withValueSerde(keySerde));
+    }
+
+    /**
+     * Source-keyed aggregation is only correct while every event for a device arrives on the
+     * device's own key; anything else would be aggregated on the wrong task, so it is dropped.
+     */
+    boolean keyMatchesDevice(String key, DeviceEvent event) {
+        if (key != null && key.equals(event.deviceId())) {
+            return true;
+        }
+        logger.warn("Rejecting event whose record key does not match its deviceId: key={}, deviceId={}",
+            key, event.deviceId());
+        return false;
+    }
+
+    /**
+     * With REPARTITION keys, raw events are only aggregated into minute windows. Hourly windows
+     * are built by merging closed minute windows and daily windows by merging closed hourly
+     * windows, so each coarser resolution consumes one partial aggregate per key and finer window
+     * instead of every event. A closed window carries the timestamp of its newest event, which
+     * falls inside the coarser window it is merged into.
+     *
+     * Source-keyed events are already grouped by deviceId without a repartition topic, and
+     * unwrapping a windowed key for a rollup would add one per resolution, so with SOURCE keys
+     * every resolution aggregates the grouped events directly.
+     */
+    private <K> void aggregateWindows(StreamsBuilder streamsBuilder, KGroupedStream<K, DeviceEvent> groupedStream,
+                                      Serde<K> groupKeySerde,
+                                      BiFunction<K, AggregationValue, AggregationKey> keyResolver) {
+        boolean cascade = keyMode == KeyMode.REPARTITION;
+        KTable<Windowed<K>, AggregationValue> minuteAggregations = aggregateEvents(groupedStream,
+            DeviceEventAggregation.WindowType.MINUTE,
+            materialized(MINUTE_STORE, groupKeySerde).withRetention(MINUTE_RETENTION));
+        KStream<Windowed<K>, AggregationValue> closedMinutes =
+            cascade ? closedWindows(minuteAggregations, DeviceEventAggregation.WindowType.MINUTE) : null;
+        persist(streamsBuilder, emittedUpdates(minuteAggregations, closedMinutes, DeviceEventAggregation.WindowType.MINUTE),
+            DeviceEventAggregation.WindowType.MINUTE, groupKeySerde, keyResolver);
+
+        KTable<Windowed<K>, AggregationValue> hourlyAggregations = cascade
+            ? rollUp(closedMinutes, groupKeySerde, DeviceEventAggregation.WindowType.HOURLY, HOURLY_STORE)
+            : aggregateEvents(groupedStream, DeviceEventAggregation.WindowType.HOURLY,
+                materialized(HOURLY_STORE, groupKeySerde));
+        KStream<Windowed<K>, AggregationValue> closedHours =
+            cascade ? closedWindows(hourlyAggregations, DeviceEventAggregation.WindowType.HOURLY) : null;
+        persist(streamsBuilder, emittedUpdates(hourlyAggregations, closedHours, DeviceEventAggregation.WindowType.HOURLY),
+            DeviceEventAggregation.WindowType.HOURLY, groupKeySerde, keyResolver);
+
+        KTable<Windowed<K>, AggregationValue> dailyAggregations = cascade
+            ? rollUp(closedHours, groupKeySerde, DeviceEventAggregation.WindowType.DAILY, DAILY_STORE)
+            : aggregateEvents(groupedStream, DeviceEventAggregation.WindowType.DAILY,
+                materialized(DAILY_STORE, groupKeySerde));
+        persist(streamsBuilder, emittedUpdates(dailyAggregations, null, DeviceEventAggregation.WindowType.DAILY),
+            DeviceEventAggregation.WindowType.DAILY, groupKeySerde, keyResolver);
+    }
+
+    private <K> KTable<Windowed<K>, AggregationValue> aggregateEvents(
+            KGroupedStream<K, DeviceEvent> groupedStream, DeviceEventAggregation.WindowType windowType,
+            Materialized<K, AggregationValue, WindowStore<Bytes, byte[]>> materialized) {
+        boolean carryDimensions = keyMode == KeyMode.SOURCE;
+        return groupedStream
+            .windowedBy(windows(windowType))
             .aggregate(
                 AggregationValue::new,
                 (key, event, aggregate) -> {
-                    aggregate.add(event.value());
+                    if (carryDimensions) {
+                        aggregate.addEvent(event.zone(), event.deviceType(), event.value());
+                    } else {
+                        aggregate.add(event.value());
+                    }
                     return aggregate;
                 },
-                Materialized.with(keySerde, valueSerde)
+                materialized
             );
-        
-        hourlyAggregations
-            .toStream()
+    }
+
+    /**
+     * Unwrapping the window changes the key type, so the DSL inserts a repartition topic here even
+     * though the partitioning key is unchanged. Only one record per key and closed finer window
+     * goes through it.
+     */
+    private <K> KTable<Windowed<K>, AggregationValue> rollUp(KStream<Windowed<K>, AggregationValue> finerWindows,
+                                                            Serde<K> groupKeySerde,
+                                                            DeviceEventAggregation.WindowType windowType,
+                                                            String storeName) {
+        return finerWindows
+            .selectKey((windowedKey, aggregation) -> windowedKey.key())
+            .groupByKey(Grouped.with(resolution(windowType) + "-rollup", groupKeySerde, valueSerde))
+            .windowedBy(windows(windowType))
+            .aggregate(
+                AggregationValue::new,
+                (key, partial, aggregate) -> {
+                    aggregate.merge(partial);
+                    return aggregate;
+                },
+                materialized(storeName, groupKeySerde)
+            );
+    }
+
+    private static TimeWindows windows(DeviceEventAggregation.WindowType windowType) {
+        return TimeWindows.ofSizeAndGrace(windowType.getSize(), GRACE_PERIOD);
+    }
+
+    private <K> Materialized<K, AggregationValue, WindowStore<Bytes, byte[]>> materialized(String storeName,
+                                                                                         Serde<K> groupKeySerde) {
+        return Materialized.<K, AggregationValue, WindowStore<Bytes, byte[]>>as(storeName)
+            .withKeySerde(groupKeySerde)
+            .withValueSerde(valueSerde);
+    }
+
+    private <K> KStream<Windowed<K>, AggregationValue> closedWindows(KTable<Windowed<K>, AggregationValue> aggregations,
+                                                                     DeviceEventAggregation.WindowType windowType) {
+        return aggregations
+            .suppress(Suppressed.untilWindowCloses(Suppressed.BufferConfig.unbounded())
+                .withName(resolution(windowType) + "-final-results"))
+            .toStream();
+    }
+
+    private <K> void persist(StreamsBuilder streamsBuilder, KStream<Windowed<K>, AggregationValue> updates,
+                             DeviceEventAggregation.WindowType windowType, Serde<K> groupKeySerde,
+                             BiFunction<K, AggregationValue, AggregationKey> keyResolver) {
+        if (sinkProperties.getMode() == ProcessorProperties.Sink.Mode.WRITE_BEHIND) {
+            String bufferName = sinkBufferName(windowType);
+            // Logged, so pending rows are committed with the offsets that produced them; the cache
+            // coalesces changelog writes between commits the same way the buffer coalesces rows
+            streamsBuilder.addStateStore(Stores.keyValueStoreBuilder(
+                    Stores.inMemoryKeyValueStore(bufferName),
+                    new WindowedSerdes.TimeWindowedSerde<>(groupKeySerde, windowType.getSize().toMillis()),
+                    valueSerde)
+                .withCachingEnabled());
+            updates
+                .process(() -> new AggregationSinkProcessor<>(
+                    bufferName, windowType, keyResolver, eventProcessingService::persistAggregations,
+                    sinkProperties.getMaxBatchSize(), sinkProperties.getFlushInterval()),
+                    bufferName);
+            return;
+        }
+
+        updates
             .foreach((windowedKey, aggregation) -> {
                 try {
-                    AggregationKey key = windowedKey.key();
+                    AggregationKey key = keyResolver.apply(windowedKey.key(), aggregation);
                     Instant windowStart = Instant.ofEpochMilli(windowedKey.window().start());
                     Instant windowEnd = Instant.ofEpochMilli(windowedKey.window().end());
-                    
+
                     eventProcessingService.persistAggregation(
                         key.deviceId(), key.zone(), key.deviceType(),
-                        windowStart, windowEnd, DeviceEventAggregation.WindowType.HOURLY,
-                        aggregation.getAverage(), aggregation.getMin(), aggregation.getMax(), 
-                        aggregation.getMedian(), aggregation.getCount()
+                        windowStart, windowEnd, windowType,
+                        aggregation.getAverage(), aggregation.getMin(), aggregation.getMax(),
+                        aggregation.getMedian(), aggregation.getCount(), aggregation.getPersistedDigest()
                     );
-                    
-                    logger.debug("Persisted hourly aggregation: key={}, count={}", key, aggregation.getCount());
+
+                    logger.debug("Persisted {} aggregation: key={}, count={}", resolution(windowType), key,
+                        aggregation.getCount());
                 } catch (Exception e) {
-                    logger.error("Error persisting hourly aggregation", e);
+                    logger.error("Error persisting {} aggregation", resolution(windowType), e);
                 }
             });
-        
-        logger.info("Kafka Streams topology built successfully with windowed aggregations");
-        return eventStream;
     }
-}
 
+    static String sinkBufferName(DeviceEventAggregation.WindowType windowType) {
+        return resolution(windowType) + "-aggregation-write-buffer";
+    }
+
+    private static String resolution(DeviceEventAggregation.WindowType windowType) {
+        return windowType.name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * In FINAL mode each window is forwarded once, after its end plus grace has passed in stream
+     * time. A positive early interval adds a rate-limited branch that forwards the latest partial
+     * value at most once per interval while the window is open; both branches carry the newest
+     * value, so the sink never regresses a row. {@code closed} is reused when the same
+     * suppression already feeds a coarser rollup and may be null otherwise.
+     */
+    private <K> KStream<Windowed<K>, AggregationValue> emittedUpdates(
+            KTable<Windowed<K>, AggregationValue> aggregations, KStream<Windowed<K>, AggregationValue> closed,
+            DeviceEventAggregation.WindowType windowType) {
+        if (emitProperties.getMode() == ProcessorProperties.Emit.Mode.UPDATES) {
+            return aggregations.toStream();
+        }
+        KStream<Windowed<K>, AggregationValue> finalResults =
+            closed != null ? closed : closedWindows(aggregations, windowType);
+        Duration earlyInterval = emitProperties.getEarlyInterval();
+        if (earlyInterval == null || earlyInterval.isZero() || earlyInterval.isNegative()) {
+            return finalResults;
+        }
+        KStream<Windowed<K>, AggregationValue> earlyResults = aggregations
+            .suppress(Suppressed.untilTimeLimit(earlyInterval, Suppressed.BufferConfig.unbounded())
+                .withName(resolution(windowType) + "-early-results"))
+            .toStream();
+        return finalResults.merge(earlyResults);
+    }
+}
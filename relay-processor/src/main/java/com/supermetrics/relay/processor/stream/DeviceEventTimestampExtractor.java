@@ -0,0 +1,156 @@
+package com.supermetrics.relay.processor.stream;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.streams.processor.TimestampExtractor;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Windows events on {@code DeviceEvent.timestamp} instead of the Kafka record time, so replayed
+ * backlogs and producer retries land in the hour the reading was taken.
+ *
+ * The timestamp is located by scanning the raw JSON for the {@code "timestamp"} field rather than
+ * parsing the whole event a second time. Both encodings Jackson produces for an {@link Instant}
+ * are understood: decimal epoch seconds (the default) and ISO-8601 strings. Events without a
+ * usable timestamp, or with one more than {@code maxSkew} ahead of the record time, are handled
+ * according to the {@link Policy}.
+ */
+public class DeviceEventTimestampExtractor implements TimestampExtractor {
+
+    public enum Policy {
+        /** Use the record timestamp. */
+        FALLBACK,
+        /** Use the record timestamp when missing; cap future timestamps at record time plus max skew. */
+        CLAMP,
+        /** Skip the event; Kafka Streams drops records with a negative timestamp. */
+        DROP
+    }
+
+    static final String METRIC_NAME = "relay.processor.event.timestamps";
+    private static final String FIELD = "\"timestamp\"";
+    private static final long MISSING = Long.MIN_VALUE;
+
+    private final Policy policy;
+    private final long maxSkewMillis;
+    private final Counter eventTime;
+    private final Counter fallback;
+    private final Counter clamped;
+    private final Counter dropped;
+
+    public DeviceEventTimestampExtractor(Policy policy, Duration maxSkew, MeterRegistry meterRegistry) {
+        this.policy = policy;
+        this.maxSkewMillis = maxSkew.toMillis();
+        this.eventTime = counter(meterRegistry, "event-time");
+        this.fallback = counter(meterRegistry, "fallback");
+        this.clamped = counter(meterRegistry, "clamped");
+        this.dropped = counter(meterRegistry, "dropped");
+    }
+
+    private static Counter counter(MeterRegistry meterRegistry, String path) {
+        return Counter.builder(METRIC_NAME)
+            .description("Events by the source of the timestamp used for windowing")
+            .tag("path", path)
+            .register(meterRegistry);
+    }
+
+    @Override
+    public long extract(ConsumerRecord<Object, Object> record, long partitionTime) {
+        long recordTime = record.timestamp() >= 0 ? record.timestamp() : partitionTime;
+        long timestamp = record.value() instanceof String json ? parseTimestamp(json) : MISSING;
+
+        boolean present = timestamp >= 0;
+        if (present && timestamp - recordTime <= maxSkewMillis) {
+            eventTime.increment();
+            return timestamp;
+        }
+        return switch (policy) {
+            case DROP -> {
+                dropped.increment();
+                yield -1L;
+            }
+            case CLAMP -> {
+                if (present) {
+                    clamped.increment();
+                    yield recordTime + maxSkewMillis;
+                }
+                fallback.increment();
+                yield recordTime;
+            }
+            case FALLBACK -> {
+                fallback.increment();
+                yield recordTime;
+            }
+        };
+    }
+
+    /**
+     * Returns the epoch millis of the {@code timestamp} field, or a negative value when it is
+     * absent, null or malformed.
+     */
+    static long parseTimestamp(String json) {
+        int field = json.indexOf(FIELD);
+        while (field >= 0) {
+            int position = skipWhitespace(json, field + FIELD.length());
+            if (position < json.length() && json.charAt(position) == ':') {
+                return parseValue(json, skipWhitespace(json, position + 1));
+            }
+            field = json.indexOf(FIELD, field + 1);
+        }
+        return MISSING;
+    }
+
+    private static long parseValue(String json, int position) {
+        if (position >= json.length()) {
+            return MISSING;
+        }
+        char first = json.charAt(position);
+        if (first == '"') {
+            int end = json.indexOf('"', position + 1);
+            if (end < 0) {
+                return MISSING;
+            }
+            try {
+                return Instant.parse(json.substring(position + 1, end)).toEpochMilli();
+            } catch (DateTimeParseException | ArithmeticException e) {
+                return MISSING;
+            }
+        }
+        return parseEpochSeconds(json, position);
+    }
+
+    private static long parseEpochSeconds(String json, int position) {
+        boolean negative = position < json.length() && json.charAt(position) == '-';
+        int i = negative ? position + 1 : position;
+        long seconds = 0;
+        int digits = 0;
+        while (i < json.length() && Character.isDigit(json.charAt(i))) {
+            if (++digits > 12) {
+                return MISSING;
+            }
+            seconds = seconds * 10 + (json.charAt(i++) - '0');
+        }
+        if (digits == 0) {
+            return MISSING;
+        }
+        long millis = 0;
+        if (i < json.length() && json.charAt(i) == '.') {
+            i++;
+            for (int scale = 100; scale > 0 && i < json.length() && Character.isDigit(json.charAt(i)); scale /= 10) {
+                millis += (json.charAt(i++) - '0') * scale;
+            }
+        }
+        long epochMillis = seconds * 1000 + millis;
+        return negative ? -epochMillis : epochMillis;
+    }
+
+    private static int skipWhitespace(String json, int position) {
+        while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+}
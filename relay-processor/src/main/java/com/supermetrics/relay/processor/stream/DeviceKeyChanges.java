@@ -0,0 +1,52 @@
+package com.supermetrics.relay.processor.stream;
+
+import com.supermetrics.relay.common.domain.DeviceEvent;
+import org.apache.kafka.streams.processor.api.FixedKeyProcessor;
+import org.apache.kafka.streams.processor.api.FixedKeyProcessorContext;
+import org.apache.kafka.streams.processor.api.FixedKeyRecord;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Forwards an event's {@link AggregationKey} only when it differs from the last key this task
+ * forwarded for the device, or {@link #REFRESH_INTERVAL} of event time after it, so the
+ * device-key table is fed key changes rather than every event. The refresh lets the table settle
+ * on the latest key when one device's events arrive on several input partitions. The memory is a
+ * bounded LRU per task; a device that falls out of it, or any device after a restart, is
+ * forwarded once more, which the table absorbs as an unchanged update.
+ */
+class DeviceKeyChanges<K> implements FixedKeyProcessor<K, DeviceEvent, AggregationKey> {
+
+    static final int MAX_DEVICES = 100_000;
+    static final Duration REFRESH_INTERVAL = Duration.ofMinutes(1);
+
+    private record Forwarded(AggregationKey key, long timestamp) {
+    }
+
+    private final Map<String, Forwarded> forwarded = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Forwarded> eldest) {
+            return size() > MAX_DEVICES;
+        }
+    };
+    private FixedKeyProcessorContext<K, AggregationKey> context;
+
+    @Override
+    public void init(FixedKeyProcessorContext<K, AggregationKey> context) {
+        this.context = context;
+    }
+
+    @Override
+    public void process(FixedKeyRecord<K, DeviceEvent> record) {
+        DeviceEvent event = record.value();
+        AggregationKey key = new AggregationKey(event.deviceId(), event.zone(), event.deviceType());
+        Forwarded last = forwarded.get(event.deviceId());
+        if (last == null || !last.key().equals(key)
+                || record.timestamp() - last.timestamp() >= REFRESH_INTERVAL.toMillis()) {
+            forwarded.put(event.deviceId(), new Forwarded(key, record.timestamp()));
+            context.forward(record.withValue(key));
+        }
+    }
+}
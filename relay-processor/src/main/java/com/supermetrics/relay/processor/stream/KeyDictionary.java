@@ -0,0 +1,129 @@
+package com.supermetrics.relay.processor.stream;
+
+import com.supermetrics.relay.processor.repository.KeyDictionaryRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.dao.DataAccessException;
+import org.springframework.kafka.config.StreamsBuilderFactoryBean;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide cache over {@link KeyDictionaryRepository}, shared by every stream task. The whole
+ * dictionary is loaded at startup, before Kafka Streams starts, so the serializers on the stream
+ * threads only reach the database for strings never seen before or ids assigned by another
+ * instance since.
+ *
+ * Those lookups run outside the maps' locks, so a slow insert only blocks the thread that needs
+ * the new id, and are retried with backoff so a short database outage delays the stream thread
+ * instead of killing it. Two threads assigning the same string get the same id from the table's
+ * unique constraint.
+ */
+@Component
+public class KeyDictionary implements SmartLifecycle {
+    private static final Logger logger = LoggerFactory.getLogger(KeyDictionary.class);
+
+    static final int MAX_ATTEMPTS = 5;
+    static final Duration INITIAL_BACKOFF = Duration.ofMillis(200);
+
+    private final KeyDictionaryRepository repository;
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final Map<Integer, String> values = new ConcurrentHashMap<>();
+    private final Duration initialBackoff;
+    private volatile boolean running;
+
+    public KeyDictionary(KeyDictionaryRepository repository) {
+        this(repository, INITIAL_BACKOFF);
+    }
+
+    KeyDictionary(KeyDictionaryRepository repository, Duration initialBackoff) {
+        this.repository = repository;
+        this.initialBackoff = initialBackoff;
+    }
+
+    public int idOf(String value) {
+        Integer id = ids.get(value);
+        if (id != null) {
+            return id;
+        }
+        int assigned = withRetries("assign a dictionary id to " + value, () -> repository.getOrCreate(value));
+        values.putIfAbsent(assigned, value);
+        Integer existing = ids.putIfAbsent(value, assigned);
+        return existing != null ? existing : assigned;
+    }
+
+    public String valueOf(int id) {
+        String value = values.get(id);
+        if (value != null) {
+            return value;
+        }
+        String resolved = withRetries("resolve dictionary id " + id, () -> repository.findValue(id))
+            .orElseThrow(() -> new IllegalStateException("Unknown dictionary id: " + id));
+        ids.putIfAbsent(resolved, id);
+        String existing = values.putIfAbsent(id, resolved);
+        return existing != null ? existing : resolved;
+    }
+
+    /**
+     * Loads every entry; a database that stays unavailable fails startup.
+     */
+    void load() {
+        Map<String, Integer> entries = withRetries("load the key dictionary", repository::findAll);
+        entries.forEach((value, id) -> {
+            ids.put(value, id);
+            values.put(id, value);
+        });
+        logger.info("Loaded {} key dictionary entries", entries.size());
+    }
+
+    private <T> T withRetries(String action, Supplier<T> call) {
+        Duration backoff = initialBackoff;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return call.get();
+            } catch (DataAccessException e) {
+                if (attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+                logger.warn("Could not {} (attempt {} of {}), retrying in {} ms: {}",
+                    action, attempt, MAX_ATTEMPTS, backoff.toMillis(), e.getMessage());
+                try {
+                    Thread.sleep(backoff.toMillis());
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                backoff = backoff.multipliedBy(2);
+            }
+        }
+    }
+
+    @Override
+    public void start() {
+        load();
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Before the streams factory bean, so no serializer runs against an empty dictionary.
+     */
+    @Override
+    public int getPhase() {
+        return StreamsBuilderFactoryBean.DEFAULT_PHASE - 1;
+    }
+}
@@ -0,0 +1,16 @@
+-- Every API query filters on one dimension (or zone and device type), a window type and a
+-- time_window_start range; lead with those columns so each chunk answers with one index range
+-- instead of a BitmapAnd across single-column indexes
+CREATE INDEX IF NOT EXISTS idx_agg_device_window_start
+    ON device_event_aggregations (device_id, window_type, time_window_start);
+CREATE INDEX IF NOT EXISTS idx_agg_zone_type_window_start
+    ON device_event_aggregations (zone, device_type, window_type, time_window_start);
+CREATE INDEX IF NOT EXISTS idx_agg_type_window_start
+    ON device_event_aggregations (device_type, window_type, time_window_start);
+
+-- Superseded by the indexes above (and by idx_agg_unique_window for device_id); each one was
+-- still maintained on every processor upsert
+DROP INDEX IF EXISTS idx_agg_device_id;
+DROP INDEX IF EXISTS idx_agg_zone_type;
+-- Time ranges are answered by chunk exclusion plus the trailing time_window_start columns
+DROP INDEX IF EXISTS idx_agg_time_window;
@@ -0,0 +1,5 @@
+-- Serialized t-digest of each window's readings (see relay-common TDigest), so the API can merge
+-- them into percentiles over any range. Bounded by the sketch compression, not by the event count.
+-- Rows written before this column existed keep NULL and contribute to no percentile.
+ALTER TABLE device_event_aggregations
+ADD COLUMN IF NOT EXISTS digest BYTEA;
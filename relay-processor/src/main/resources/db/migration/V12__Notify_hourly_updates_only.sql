@@ -0,0 +1,11 @@
+-- Notify only for HOURLY rows. Every NOTIFY takes a database-wide lock at commit, and MINUTE rows
+-- (and every event in DIRECT sink mode) made that lock part of nearly every processor write.
+-- Subscribers and the API's key cache only need hourly granularity; the WHEN clause is checked
+-- before the function runs, so other rows skip it entirely
+DROP TRIGGER IF EXISTS trg_notify_aggregation_update ON device_event_aggregations;
+
+CREATE TRIGGER trg_notify_aggregation_update
+    AFTER INSERT OR UPDATE ON device_event_aggregations
+    FOR EACH ROW
+    WHEN (NEW.window_type = 'HOURLY')
+    EXECUTE FUNCTION notify_aggregation_update();
@@ -0,0 +1,27 @@
+-- Backfill DAILY windows from existing HOURLY rows
+-- The API now answers day-aligned ranges from DAILY rows, which the processor only produces
+-- for data it aggregates from now on. Medians cannot be derived from hourly medians and are
+-- left NULL; MINUTE windows cannot be reconstructed from hourly rows.
+-- Only days that ended before this migration are backfilled. The processor rolls the current
+-- day up from empty state and its upsert would replace a partial backfill with the hours after
+-- the deploy, so that day's DAILY row is incomplete either way; the API reads it from HOURLY
+-- rows instead (relay.api.rollups.since).
+INSERT INTO device_event_aggregations
+    (device_id, zone, device_type, time_window_start, time_window_end, window_type,
+     avg_value, min_value, max_value, median_value, count)
+SELECT device_id,
+       zone,
+       device_type,
+       time_bucket(INTERVAL '1 day', time_window_start),
+       time_bucket(INTERVAL '1 day', time_window_start) + INTERVAL '1 day',
+       'DAILY',
+       SUM(avg_value * count) / SUM(count),
+       MIN(min_value),
+       MAX(max_value),
+       NULL,
+       SUM(count)
+FROM device_event_aggregations
+WHERE window_type = 'HOURLY' AND count > 0
+  AND time_window_start < time_bucket(INTERVAL '1 day', now())
+GROUP BY device_id, zone, device_type, time_bucket(INTERVAL '1 day', time_window_start)
+ON CONFLICT (device_id, zone, device_type, time_window_start, time_window_end, window_type) DO NOTHING;
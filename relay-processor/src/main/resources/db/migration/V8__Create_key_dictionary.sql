@@ -0,0 +1,8 @@
+-- Dictionary of deviceId and zone strings used by dictionary-encoded state-store keys
+-- Ids are never reused or reassigned: changelog and repartition records refer to them
+CREATE TABLE IF NOT EXISTS key_dictionary (
+    id SERIAL PRIMARY KEY,
+    value VARCHAR(255) NOT NULL
+);
+
+CREATE UNIQUE INDEX IF NOT EXISTS idx_key_dictionary_value ON key_dictionary (value);
@@ -0,0 +1,27 @@
+-- Publish every aggregation insert or update on the aggregation_updates channel so the API can
+-- push changes to subscribers from a single LISTEN connection
+-- Timestamps are epoch milliseconds to keep the payload independent of the session time zone
+CREATE OR REPLACE FUNCTION notify_aggregation_update() RETURNS trigger AS $$
+BEGIN
+    PERFORM pg_notify('aggregation_updates', json_build_object(
+        'deviceId', NEW.device_id,
+        'zone', NEW.zone,
+        'deviceType', NEW.device_type,
+        'windowType', NEW.window_type,
+        'timeWindowStart', (EXTRACT(EPOCH FROM NEW.time_window_start) * 1000)::BIGINT,
+        'timeWindowEnd', (EXTRACT(EPOCH FROM NEW.time_window_end) * 1000)::BIGINT,
+        'avgValue', NEW.avg_value,
+        'minValue', NEW.min_value,
+        'maxValue', NEW.max_value,
+        'medianValue', NEW.median_value,
+        'count', NEW.count
+    )::TEXT);
+    RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS trg_notify_aggregation_update ON device_event_aggregations;
+
+CREATE TRIGGER trg_notify_aggregation_update
+    AFTER INSERT OR UPDATE ON device_event_aggregations
+    FOR EACH ROW EXECUTE FUNCTION notify_aggregation_update();
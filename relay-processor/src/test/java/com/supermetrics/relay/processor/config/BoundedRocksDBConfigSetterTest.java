@@ -0,0 +1,57 @@
+package com.supermetrics.relay.processor.config;
+
+import org.apache.kafka.streams.StreamsConfig;
+import org.junit.jupiter.api.Test;
+import org.rocksdb.CompactionStyle;
+import org.rocksdb.CompressionType;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BoundedRocksDBConfigSetterTest {
+
+    static {
+        RocksDB.loadLibrary();
+    }
+
+    @Test
+    void appliesExternalizedSettingsToEveryStore() {
+        Map<String, Object> configs = new HashMap<>(
+            KafkaStreamsConfig.rocksDbSettings(new ProcessorProperties().getRocksDb()));
+        BoundedRocksDBConfigSetter setter = new BoundedRocksDBConfigSetter();
+
+        try (Options first = new Options(); Options second = new Options()) {
+            setter.setConfig("minute-aggregations", first, configs);
+            setter.setConfig("hourly-aggregations", second, configs);
+
+            for (Options options : new Options[]{first, second}) {
+                assertEquals(CompactionStyle.UNIVERSAL, options.compactionStyle());
+                assertEquals(16L * 1024 * 1024, options.writeBufferSize());
+                assertEquals(3, options.maxWriteBufferNumber());
+                assertEquals(CompressionType.NO_COMPRESSION, options.compressionPerLevel().get(0));
+                assertEquals(CompressionType.LZ4_COMPRESSION, options.compressionPerLevel().get(2));
+                assertEquals(CompressionType.ZSTD_COMPRESSION, options.bottommostCompressionType());
+            }
+            setter.close("minute-aggregations", first);
+            setter.close("hourly-aggregations", second);
+        }
+        assertTrue(BoundedRocksDBConfigSetter.blockCacheUsage() >= 0);
+    }
+
+    @Test
+    void statisticsRaiseMetricsRecordingLevel() {
+        ProcessorProperties.RocksDb rocksDb = new ProcessorProperties().getRocksDb();
+        assertFalse(KafkaStreamsConfig.rocksDbSettings(rocksDb).containsKey(StreamsConfig.METRICS_RECORDING_LEVEL_CONFIG));
+
+        rocksDb.setStatistics(true);
+
+        Map<String, String> settings = KafkaStreamsConfig.rocksDbSettings(rocksDb);
+        assertEquals("DEBUG", settings.get(StreamsConfig.METRICS_RECORDING_LEVEL_CONFIG));
+        assertEquals(BoundedRocksDBConfigSetter.class.getName(),
+            settings.get(StreamsConfig.ROCKSDB_CONFIG_SETTER_CLASS_CONFIG));
+    }
+}
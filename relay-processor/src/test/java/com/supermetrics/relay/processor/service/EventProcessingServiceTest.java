@@ -2,6 +2,8 @@ package com.supermetrics.relay.processor.service;
 
 import com.supermetrics.relay.common.domain.DeviceType;
 import com.supermetrics.relay.common.entity.DeviceEventAggregation;
+import com.supermetrics.relay.processor.repository.AggregationBatchRepository;
+import com.supermetrics.relay.processor.repository.AggregationRow;
 import com.supermetrics.relay.processor.repository.DeviceEventAggregationRepository;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -11,7 +13,9 @@ import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.time.Instant;
+import java.util.List;
 
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.*;
 
@@ -21,9 +25,14 @@ class EventProcessingServiceTest {
     @Mock
     private DeviceEventAggregationRepository aggregationRepository;
 
+    @Mock
+    private AggregationBatchRepository batchRepository;
+
     @InjectMocks
     private EventProcessingService eventProcessingService;
 
+    private static final byte[] DIGEST = {1, 2, 3};
+
     private Instant windowStart;
     private Instant windowEnd;
 
@@ -38,7 +47,7 @@ class EventProcessingServiceTest {
         eventProcessingService.persistAggregation(
             "device-123", "zone-1", DeviceType.THERMOSTAT, windowStart, windowEnd,
             DeviceEventAggregation.WindowType.HOURLY,
-            25.5, 20.0, 30.0, 25.0, 100L
+            25.5, 20.0, 30.0, 25.0, 100L, DIGEST
         );
 
         verify(aggregationRepository, times(1)).upsertAggregation(
@@ -52,7 +61,8 @@ class EventProcessingServiceTest {
             eq(20.0),
             eq(30.0),
             eq(25.0),
-            eq(100L)
+            eq(100L),
+            eq(DIGEST)
         );
     }
 
@@ -61,18 +71,42 @@ class EventProcessingServiceTest {
         doThrow(new RuntimeException("Database error"))
             .when(aggregationRepository).upsertAggregation(
                 anyString(), anyString(), anyString(), any(), any(), anyString(),
-                anyDouble(), anyDouble(), anyDouble(), anyDouble(), anyLong()
+                anyDouble(), anyDouble(), anyDouble(), anyDouble(), anyLong(), any()
             );
 
         eventProcessingService.persistAggregation(
             "device-123", "zone-1", DeviceType.THERMOSTAT, windowStart, windowEnd,
             DeviceEventAggregation.WindowType.HOURLY,
-            10.0, 5.0, 15.0, 10.0, 50L
+            10.0, 5.0, 15.0, 10.0, 50L, DIGEST
         );
 
         verify(aggregationRepository, times(1)).upsertAggregation(
             anyString(), anyString(), anyString(), any(), any(), anyString(),
-            anyDouble(), anyDouble(), anyDouble(), anyDouble(), anyLong()
+            anyDouble(), anyDouble(), anyDouble(), anyDouble(), anyLong(), any()
         );
     }
+
+    @Test
+    void persistAggregationsWritesOneBatch() {
+        List<AggregationRow> rows = List.of(
+            new AggregationRow("device-1", "zone-1", DeviceType.THERMOSTAT, windowStart, windowEnd,
+                DeviceEventAggregation.WindowType.HOURLY, 20.0, 10.0, 30.0, 20.0, 3L, DIGEST),
+            new AggregationRow("device-2", "zone-1", DeviceType.THERMOSTAT, windowStart, windowEnd,
+                DeviceEventAggregation.WindowType.HOURLY, 25.0, 20.0, 30.0, 25.0, 2L, DIGEST));
+
+        eventProcessingService.persistAggregations(rows);
+
+        verify(batchRepository, times(1)).upsertAll(rows);
+        verifyNoInteractions(aggregationRepository);
+    }
+
+    @Test
+    void persistAggregationsPropagatesErrors() {
+        List<AggregationRow> rows = List.of(
+            new AggregationRow("device-1", "zone-1", DeviceType.THERMOSTAT, windowStart, windowEnd,
+                DeviceEventAggregation.WindowType.HOURLY, 20.0, 10.0, 30.0, 20.0, 3L, DIGEST));
+        doThrow(new RuntimeException("Database error")).when(batchRepository).upsertAll(rows);
+
+        assertThrows(RuntimeException.class, () -> eventProcessingService.persistAggregations(rows));
+    }
 }
@@ -0,0 +1,104 @@
+package com.supermetrics.relay.processor.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.supermetrics.relay.common.domain.DeviceEvent;
+import com.supermetrics.relay.common.domain.DeviceType;
+import com.supermetrics.relay.common.domain.LiveAggregation;
+import com.supermetrics.relay.processor.config.KafkaStreamsConfig;
+import com.supermetrics.relay.processor.config.ProcessorProperties;
+import com.supermetrics.relay.processor.repository.KeyDictionaryRepository;
+import com.supermetrics.relay.processor.stream.AggregationValue;
+import com.supermetrics.relay.processor.stream.DeviceEventStreamProcessor;
+import com.supermetrics.relay.processor.stream.KeyDictionary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.streams.StreamsBuilder;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.TestInputTopic;
+import org.apache.kafka.streams.TopologyTestDriver;
+import org.apache.kafka.streams.state.WindowStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.Instant;
+import java.util.Optional;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@ExtendWith(MockitoExtension.class)
+class LiveAggregationServiceTest {
+
+    private static final String TOPIC = "iot-events";
+    private static final Instant HOUR = Instant.parse("2024-01-01T10:00:00Z");
+
+    @Mock
+    private EventProcessingService eventProcessingService;
+
+    @Mock
+    private KeyDictionaryRepository keyDictionaryRepository;
+
+    private final ObjectMapper objectMapper = new KafkaStreamsConfig().objectMapper();
+    private TopologyTestDriver driver;
+    private TestInputTopic<String, String> input;
+
+    @BeforeEach
+    void setUp() {
+        ProcessorProperties properties = new ProcessorProperties();
+        properties.getTopology().setKeyMode(DeviceEventStreamProcessor.KeyMode.SOURCE);
+        properties.getSink().setMode(ProcessorProperties.Sink.Mode.DIRECT);
+        StreamsBuilder builder = new StreamsBuilder();
+        new DeviceEventStreamProcessor(eventProcessingService, objectMapper, TOPIC, properties,
+            new SimpleMeterRegistry(), new KeyDictionary(keyDictionaryRepository)).kStream(builder);
+
+        Properties props = new Properties();
+        props.put(StreamsConfig.APPLICATION_ID_CONFIG, "relay-processor-test");
+        props.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, "dummy:9092");
+        props.put(StreamsConfig.STATESTORE_CACHE_MAX_BYTES_CONFIG, 0);
+        driver = new TopologyTestDriver(builder.build(), props);
+        input = driver.createInputTopic(TOPIC, new StringSerializer(), new StringSerializer());
+    }
+
+    @AfterEach
+    void tearDown() {
+        driver.close();
+    }
+
+    @Test
+    void mergesOpenMinutesOfTheRequestedHour() throws Exception {
+        send(new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 10.0, HOUR.plusSeconds(60)));
+        send(new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 30.0, HOUR.plusSeconds(30 * 60)));
+        send(new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 99.0, HOUR.plusSeconds(61 * 60)));
+
+        Optional<LiveAggregation> live = LiveAggregationService.aggregate(
+            minuteStore(), "device-1", "device-1", null, null, HOUR, HOUR.plusSeconds(3600));
+
+        assertTrue(live.isPresent());
+        assertEquals("zone-1", live.get().zone());
+        assertEquals(DeviceType.THERMOSTAT, live.get().deviceType());
+        assertEquals(2L, live.get().count());
+        assertEquals(20.0, live.get().avgValue());
+        assertEquals(10.0, live.get().minValue());
+        assertEquals(30.0, live.get().maxValue());
+    }
+
+    @Test
+    void emptyWhenDeviceHasNoOpenWindows() throws Exception {
+        send(new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 10.0, HOUR.plusSeconds(60)));
+
+        assertTrue(LiveAggregationService.aggregate(
+            minuteStore(), "device-2", "device-2", null, null, HOUR, HOUR.plusSeconds(3600)).isEmpty());
+    }
+
+    private WindowStore<String, AggregationValue> minuteStore() {
+        return driver.getWindowStore(DeviceEventStreamProcessor.MINUTE_STORE);
+    }
+
+    private void send(DeviceEvent event) throws Exception {
+        input.pipeInput(event.deviceId(), objectMapper.writeValueAsString(event), event.timestamp());
+    }
+}
@@ -0,0 +1,175 @@
+package com.supermetrics.relay.processor.stream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.supermetrics.relay.common.domain.DeviceType;
+import com.supermetrics.relay.processor.repository.KeyDictionaryRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.CannotGetJdbcConnectionException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.*;
+
+class AggregationSerdeTest {
+
+    private final AggregationKeySerde keySerde = new AggregationKeySerde();
+    private final AggregationValueSerde valueSerde = new AggregationValueSerde(new ObjectMapper());
+
+    @Test
+    void keyBinaryRoundTrip() {
+        AggregationKey key = new AggregationKey("device-ü-123", "zone|1", DeviceType.HEART_RATE_METER);
+
+        byte[] bytes = keySerde.serializer().serialize("topic", key);
+        AggregationKey restored = keySerde.deserializer().deserialize("topic", bytes);
+
+        assertEquals(BinaryFormat.VERSION_1, bytes[0]);
+        assertEquals(key, restored);
+    }
+
+    @Test
+    void keyBinaryIsSmallerThanText() {
+        AggregationKey key = new AggregationKey("device-123", "zone-1", DeviceType.THERMOSTAT);
+
+        byte[] bytes = keySerde.serializer().serialize("topic", key);
+
+        assertTrue(bytes.length < key.toKafkaKey().length());
+    }
+
+    @Test
+    void readsLegacyTextKey() {
+        byte[] legacy = "device-123|zone-1|THERMOSTAT".getBytes(StandardCharsets.UTF_8);
+
+        AggregationKey restored = keySerde.deserializer().deserialize("topic", legacy);
+
+        assertEquals(new AggregationKey("device-123", "zone-1", DeviceType.THERMOSTAT), restored);
+    }
+
+    @Test
+    void legacyWriteFormat() {
+        AggregationKeySerde legacySerde = new AggregationKeySerde(AggregationKeySerde.KeyFormat.LEGACY);
+        AggregationKey key = new AggregationKey("device-123", "zone-1", DeviceType.CAR_FUEL);
+
+        byte[] bytes = legacySerde.serializer().serialize("topic", key);
+
+        assertEquals("device-123|zone-1|CAR_FUEL", new String(bytes, StandardCharsets.UTF_8));
+        assertEquals(key, keySerde.deserializer().deserialize("topic", bytes));
+    }
+
+    @Test
+    void dictionaryKeysAreFixedWidth() {
+        KeyDictionaryRepository repository = mock(KeyDictionaryRepository.class);
+        when(repository.findAll()).thenReturn(Map.of("device-123", 7));
+        when(repository.getOrCreate("a-rather-long-zone-name")).thenReturn(8);
+        KeyDictionary dictionary = new KeyDictionary(repository);
+        dictionary.start();
+        AggregationKeySerde dictionarySerde = new AggregationKeySerde(
+            AggregationKeySerde.KeyFormat.DICTIONARY, dictionary);
+        AggregationKey key = new AggregationKey("device-123", "a-rather-long-zone-name", DeviceType.CAR_FUEL);
+
+        byte[] bytes = dictionarySerde.serializer().serialize("topic", key);
+        AggregationKey restored = dictionarySerde.deserializer().deserialize("topic", bytes);
+
+        assertEquals(AggregationKeySerde.DICTIONARY_KEY_SIZE, bytes.length);
+        assertEquals(key, restored);
+        assertEquals(key, dictionarySerde.deserializer().deserialize("topic", keySerde.serializer().serialize("topic", key)));
+        verify(repository, times(1)).getOrCreate(any());
+    }
+
+    @Test
+    void dictionaryResolvesIdsAssignedElsewhere() {
+        KeyDictionaryRepository repository = mock(KeyDictionaryRepository.class);
+        when(repository.findAll()).thenReturn(Map.of());
+        when(repository.findValue(3)).thenReturn(Optional.of("device-9"));
+        when(repository.findValue(4)).thenReturn(Optional.of("zone-9"));
+        KeyDictionary dictionary = new KeyDictionary(repository);
+        dictionary.start();
+        AggregationKeySerde dictionarySerde = new AggregationKeySerde(
+            AggregationKeySerde.KeyFormat.DICTIONARY, dictionary);
+        byte[] bytes = ByteBuffer.allocate(AggregationKeySerde.DICTIONARY_KEY_SIZE)
+            .put(BinaryFormat.VERSION_2).putInt(3).putInt(4).put((byte) DeviceType.THERMOSTAT.ordinal())
+            .array();
+
+        assertEquals(new AggregationKey("device-9", "zone-9", DeviceType.THERMOSTAT),
+            dictionarySerde.deserializer().deserialize("topic", bytes));
+        assertThrows(IllegalStateException.class, () -> keySerde.deserializer().deserialize("topic", bytes));
+    }
+
+    @Test
+    void dictionaryRetriesAssignmentsThroughDatabaseBlips() {
+        KeyDictionaryRepository repository = mock(KeyDictionaryRepository.class);
+        when(repository.getOrCreate("device-1"))
+            .thenThrow(new CannotGetJdbcConnectionException("connection refused"))
+            .thenReturn(5);
+        KeyDictionary dictionary = new KeyDictionary(repository, Duration.ZERO);
+
+        assertEquals(5, dictionary.idOf("device-1"));
+        assertEquals("device-1", dictionary.valueOf(5));
+        verify(repository, times(2)).getOrCreate("device-1");
+        verify(repository, never()).findValue(anyInt());
+    }
+
+    @Test
+    void dictionaryGivesUpAfterRepeatedFailures() {
+        KeyDictionaryRepository repository = mock(KeyDictionaryRepository.class);
+        when(repository.getOrCreate("device-1")).thenThrow(new CannotGetJdbcConnectionException("connection refused"));
+        KeyDictionary dictionary = new KeyDictionary(repository, Duration.ZERO);
+
+        assertThrows(CannotGetJdbcConnectionException.class, () -> dictionary.idOf("device-1"));
+        verify(repository, times(KeyDictionary.MAX_ATTEMPTS)).getOrCreate("device-1");
+    }
+
+    @Test
+    void valueBinaryRoundTrip() {
+        AggregationValue value = new AggregationValue();
+        for (int i = 0; i < 10_000; i++) {
+            value.add(i * 0.25);
+        }
+
+        byte[] bytes = valueSerde.serializer().serialize("topic", value);
+        AggregationValue restored = valueSerde.deserializer().deserialize("topic", bytes);
+
+        assertEquals(BinaryFormat.VERSION_1, bytes[0]);
+        assertEquals(value, restored);
+        assertEquals(value.getMedian(), restored.getMedian());
+    }
+
+    @Test
+    void valueWithDimensionsRoundTrip() {
+        AggregationValue value = new AggregationValue();
+        value.addEvent("zone-1", DeviceType.CAR_FUEL, 42.0);
+
+        byte[] bytes = valueSerde.serializer().serialize("topic", value);
+        AggregationValue restored = valueSerde.deserializer().deserialize("topic", bytes);
+
+        assertEquals(BinaryFormat.VERSION_2, bytes[0]);
+        assertEquals("zone-1", restored.getZone());
+        assertEquals(DeviceType.CAR_FUEL, restored.getDeviceType());
+        assertEquals(value, restored);
+    }
+
+    @Test
+    void readsLegacyJsonValue() {
+        byte[] legacy = "{\"sum\":60.0,\"min\":10.0,\"max\":30.0,\"count\":3,\"values\":[10.0,20.0,30.0]}"
+            .getBytes(StandardCharsets.UTF_8);
+
+        AggregationValue restored = valueSerde.deserializer().deserialize("topic", legacy);
+
+        assertEquals(3L, restored.getCount());
+        assertEquals(10.0, restored.getMin());
+        assertEquals(30.0, restored.getMax());
+        assertEquals(20.0, restored.getMedian());
+    }
+
+    @Test
+    void nullsPassThrough() {
+        assertNull(keySerde.serializer().serialize("topic", null));
+        assertNull(valueSerde.deserializer().deserialize("topic", null));
+    }
+}
@@ -1,5 +1,6 @@
 package com.supermetrics.relay.processor.stream;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -60,4 +61,76 @@ class AggregationValueTest {
         assertEquals(40.0, aggregationValue.getMax());
         assertEquals(4L, aggregationValue.getCount());
     }
+
+    @Test
+    void calculateMedianOfEvenCount() {
+        aggregationValue.add(10.0);
+        aggregationValue.add(20.0);
+
+        assertEquals(15.0, aggregationValue.getMedian());
+    }
+
+    @Test
+    void estimatesPercentilesOverLargeWindow() {
+        for (int i = 1; i <= 360_000; i++) {
+            aggregationValue.add(i);
+        }
+
+        assertEquals(180_000.0, aggregationValue.getMedian(), 360_000 * 0.01);
+        assertEquals(324_000.0, aggregationValue.getQuantile(0.9), 360_000 * 0.01);
+        assertEquals(356_400.0, aggregationValue.getQuantile(0.99), 360_000 * 0.005);
+        assertTrue(aggregationValue.getDigest().centroidCount() < 250);
+    }
+
+    @Test
+    void mergeKeepsMedian() {
+        aggregationValue.add(10.0);
+        aggregationValue.add(20.0);
+
+        AggregationValue other = new AggregationValue();
+        other.add(30.0);
+        other.add(40.0);
+        other.add(50.0);
+
+        aggregationValue.merge(other);
+
+        assertEquals(30.0, aggregationValue.getMedian());
+    }
+
+    @Test
+    void summaryConstructorSeedsTheDigestWithItsCount() {
+        AggregationValue summary = new AggregationValue(60.0, 10.0, 30.0, 3L);
+        aggregationValue.add(40.0);
+
+        aggregationValue.merge(summary);
+
+        assertEquals(4L, aggregationValue.getDigest().size());
+        assertEquals(20.0, summary.getMedian());
+    }
+
+    @Test
+    void jsonRoundTrip() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        aggregationValue.add(10.0);
+        aggregationValue.add(20.0);
+        aggregationValue.add(30.0);
+
+        byte[] json = objectMapper.writeValueAsBytes(aggregationValue);
+        AggregationValue restored = objectMapper.readValue(json, AggregationValue.class);
+
+        assertEquals(aggregationValue, restored);
+        assertEquals(20.0, restored.getMedian());
+    }
+
+    @Test
+    void readsLegacyValuesList() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        String legacyJson = "{\"sum\":60.0,\"min\":10.0,\"max\":30.0,\"count\":3,\"values\":[10.0,30.0,20.0]}";
+
+        AggregationValue restored = objectMapper.readValue(legacyJson, AggregationValue.class);
+
+        assertEquals(3L, restored.getCount());
+        assertEquals(20.0, restored.getAverage());
+        assertEquals(20.0, restored.getMedian());
+    }
 }
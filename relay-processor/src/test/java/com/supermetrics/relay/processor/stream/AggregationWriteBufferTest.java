@@ -0,0 +1,135 @@
+package com.supermetrics.relay.processor.stream;
+
+import com.supermetrics.relay.common.domain.DeviceType;
+import com.supermetrics.relay.common.entity.DeviceEventAggregation;
+import com.supermetrics.relay.processor.repository.AggregationRow;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.streams.kstream.Window;
+import org.apache.kafka.streams.kstream.Windowed;
+import org.apache.kafka.streams.kstream.WindowedSerdes;
+import org.apache.kafka.streams.processor.api.MockProcessorContext;
+import org.apache.kafka.streams.state.KeyValueStore;
+import org.apache.kafka.streams.state.Stores;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AggregationWriteBufferTest {
+
+    private static final Instant WINDOW_START = Instant.parse("2024-01-01T00:00:00Z");
+    private static final long HOUR = 3600_000L;
+
+    private final List<List<AggregationRow>> batches = new ArrayList<>();
+    private KeyValueStore<Windowed<String>, AggregationValue> store;
+
+    @BeforeEach
+    void setUp() {
+        store = Stores.keyValueStoreBuilder(
+                Stores.inMemoryKeyValueStore("buffer"),
+                new WindowedSerdes.TimeWindowedSerde<>(Serdes.String(), HOUR),
+                new AggregationValueSerde(null))
+            .withLoggingDisabled()
+            .build();
+        store.init(new MockProcessorContext<>().getStateStoreContext(), store);
+    }
+
+    @Test
+    void coalescesUpdatesPerWindow() {
+        AggregationWriteBuffer<String> buffer = buffer(rows -> batches.add(List.copyOf(rows)));
+
+        buffer.put(key("device-1", WINDOW_START), value(1L));
+        buffer.put(key("device-1", WINDOW_START), value(2L));
+        buffer.put(key("device-2", WINDOW_START), value(1L));
+        buffer.put(key("device-1", WINDOW_START.plusSeconds(3600)), value(1L));
+        buffer.put(key("device-1", WINDOW_START), value(3L));
+
+        assertEquals(3, buffer.size());
+        buffer.drain();
+
+        assertEquals(1, batches.size());
+        assertEquals(3, batches.get(0).size());
+        assertEquals(3L, batches.get(0).stream()
+            .filter(row -> row.deviceId().equals("device-1") && row.windowStart().equals(WINDOW_START))
+            .findFirst().orElseThrow().count());
+        assertEquals(0, buffer.size());
+        assertEquals(0L, store.approximateNumEntries());
+    }
+
+    @Test
+    void emptyBufferSkipsSink() {
+        AggregationWriteBuffer<String> buffer = buffer(rows -> batches.add(List.copyOf(rows)));
+
+        buffer.drain();
+
+        assertTrue(batches.isEmpty());
+    }
+
+    @Test
+    void keepsRowsWhenSinkFails() {
+        List<Collection<AggregationRow>> attempts = new ArrayList<>();
+        AggregationWriteBuffer<String> buffer = buffer(rows -> {
+            attempts.add(rows);
+            if (attempts.size() == 1) {
+                throw new IllegalStateException("database unavailable");
+            }
+        });
+        buffer.put(key("device-1", WINDOW_START), value(1L));
+
+        assertThrows(IllegalStateException.class, buffer::drain);
+        assertEquals(1, buffer.size());
+
+        buffer.drain();
+        assertEquals(2, attempts.size());
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    void rowsAlreadyInTheStoreArePending() {
+        store.put(key("device-1", WINDOW_START), value(4L));
+
+        AggregationWriteBuffer<String> buffer = buffer(rows -> batches.add(List.copyOf(rows)));
+        assertEquals(1, buffer.size());
+        buffer.drain();
+
+        assertEquals(4L, batches.get(0).get(0).count());
+        assertEquals(WINDOW_START.plusSeconds(3600), batches.get(0).get(0).windowEnd());
+    }
+
+    private AggregationWriteBuffer<String> buffer(Consumer<Collection<AggregationRow>> sink) {
+        return new AggregationWriteBuffer<>(store, (windowedKey, aggregation) -> new AggregationRow(
+            windowedKey.key(), "zone-1", DeviceType.THERMOSTAT,
+            Instant.ofEpochMilli(windowedKey.window().start()), Instant.ofEpochMilli(windowedKey.window().end()),
+            DeviceEventAggregation.WindowType.HOURLY, aggregation.getAverage(), aggregation.getMin(),
+            aggregation.getMax(), aggregation.getMedian(), aggregation.getCount(), null), sink);
+    }
+
+    private static Windowed<String> key(String deviceId, Instant windowStart) {
+        return new Windowed<>(deviceId, new HourWindow(windowStart.toEpochMilli()));
+    }
+
+    private static AggregationValue value(long count) {
+        AggregationValue value = new AggregationValue();
+        for (long i = 0; i < count; i++) {
+            value.add(10.0);
+        }
+        return value;
+    }
+
+    private static final class HourWindow extends Window {
+        HourWindow(long startMs) {
+            super(startMs, startMs + HOUR);
+        }
+
+        @Override
+        public boolean overlap(Window other) {
+            return start() < other.end() && other.start() < end();
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package com.supermetrics.relay.processor.stream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.supermetrics.relay.common.domain.DeviceEvent;
+import com.supermetrics.relay.common.domain.DeviceType;
+import com.supermetrics.relay.common.entity.DeviceEventAggregation;
+import com.supermetrics.relay.common.sketch.TDigest;
+import com.supermetrics.relay.processor.config.KafkaStreamsConfig;
+import com.supermetrics.relay.processor.config.ProcessorProperties;
+import com.supermetrics.relay.processor.repository.AggregationRow;
+import com.supermetrics.relay.processor.repository.KeyDictionaryRepository;
+import com.supermetrics.relay.processor.service.EventProcessingService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.streams.StreamsBuilder;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.TestInputTopic;
+import org.apache.kafka.streams.Topology;
+import org.apache.kafka.streams.TopologyDescription;
+import org.apache.kafka.streams.TopologyTestDriver;
+import org.apache.kafka.streams.state.KeyValueStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class DeviceEventStreamProcessorTest {
+
+    private static final String TOPIC = "iot-events";
+
+    @Mock
+    private EventProcessingService eventProcessingService;
+
+    @Mock
+    private KeyDictionaryRepository keyDictionaryRepository;
+
+    private final ObjectMapper objectMapper = new KafkaStreamsConfig().objectMapper();
+    private TopologyTestDriver driver;
+    private TestInputTopic<String, String> input;
+
+    @AfterEach
+    void tearDown() {
+        if (driver != null) {
+            driver.close();
+        }
+    }
+
+    @Test
+    void sourceModeAggregatesEventsWithoutRepartition() {
+        Topology topology = buildTopology(
+            properties(DeviceEventStreamProcessor.KeyMode.SOURCE, ProcessorProperties.Sink.Mode.WRITE_BEHIND));
+
+        assertTrue(storesReadingInputTopic(topology).contains(DeviceEventStreamProcessor.MINUTE_STORE));
+    }
+
+    @Test
+    void sourceModeAggregatesEveryResolutionWithoutRepartitionTopics() {
+        Topology topology = buildTopology(
+            properties(DeviceEventStreamProcessor.KeyMode.SOURCE, ProcessorProperties.Sink.Mode.WRITE_BEHIND));
+
+        assertEquals(1, topology.describe().subtopologies().size());
+        assertEquals(Set.of(DeviceEventStreamProcessor.MINUTE_STORE, DeviceEventStreamProcessor.HOURLY_STORE,
+                DeviceEventStreamProcessor.DAILY_STORE),
+            storesReadingInputTopic(topology).stream()
+                .filter(store -> store.endsWith("-aggregations"))
+                .collect(Collectors.toSet()));
+    }
+
+    @Test
+    void repartitionModeRegroupsEvents() {
+        Topology topology = buildTopology(
+            properties(DeviceEventStreamProcessor.KeyMode.REPARTITION, ProcessorProperties.Sink.Mode.WRITE_BEHIND));
+
+        assertFalse(storesReadingInputTopic(topology).contains(DeviceEventStreamProcessor.MINUTE_STORE));
+    }
+
+    @Test
+    void repartitionModeIndexesEachDevicesLatestKey() throws Exception {
+        start(properties(DeviceEventStreamProcessor.KeyMode.REPARTITION, ProcessorProperties.Sink.Mode.WRITE_BEHIND));
+        Instant time = Instant.parse("2024-01-01T10:15:00Z");
+
+        send("device-1", new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 10.0, time));
+        send("device-2", new DeviceEvent("device-2", DeviceType.CAR_FUEL, "zone-2", 10.0, time));
+        send("device-1", new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-3", 10.0, time.plusSeconds(1)));
+
+        KeyValueStore<String, AggregationKey> keys = driver.getKeyValueStore(DeviceEventStreamProcessor.DEVICE_KEY_STORE);
+        assertEquals(new AggregationKey("device-1", "zone-3", DeviceType.THERMOSTAT), keys.get("device-1"));
+        assertEquals(new AggregationKey("device-2", "zone-2", DeviceType.CAR_FUEL), keys.get("device-2"));
+        assertNull(keys.get("device-3"));
+    }
+
+    @Test
+    void sourceModeAggregatesWithDimensionsFromValue() throws Exception {
+        start(properties(DeviceEventStreamProcessor.KeyMode.SOURCE, ProcessorProperties.Sink.Mode.DIRECT));
+        Instant time = Instant.parse("2024-01-01T10:15:00Z");
+
+        send("device-1", new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 10.0, time));
+        send("device-1", new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 30.0, time.plusSeconds(1)));
+
+        verify(eventProcessingService).persistAggregation(
+            eq("device-1"), eq("zone-1"), eq(DeviceType.THERMOSTAT),
+            eq(Instant.parse("2024-01-01T10:15:00Z")), eq(Instant.parse("2024-01-01T10:16:00Z")),
+            eq(DeviceEventAggregation.WindowType.MINUTE),
+            eq(20.0), eq(10.0), eq(30.0), eq(20.0), eq(2L), any());
+    }
+
+    @Test
+    void coarserWindowsMergeClosedFinerWindows() throws Exception {
+        start(properties(DeviceEventStreamProcessor.KeyMode.REPARTITION, ProcessorProperties.Sink.Mode.DIRECT));
+
+        send("device-1", new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 10.0,
+            Instant.parse("2024-01-01T10:15:00Z")));
+        send("device-1", new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 30.0,
+            Instant.parse("2024-01-01T10:16:00Z")));
+        verify(eventProcessingService, never()).persistAggregation(any(), any(), any(), any(), any(),
+            eq(DeviceEventAggregation.WindowType.HOURLY), anyDouble(), anyDouble(), anyDouble(), anyDouble(), anyLong(), any());
+
+        send("device-1", new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 50.0,
+            Instant.parse("2024-01-01T11:05:00Z")));
+        send("device-1", new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 50.0,
+            Instant.parse("2024-01-01T11:11:00Z")));
+
+        verify(eventProcessingService).persistAggregation(
+            eq("device-1"), eq("zone-1"), eq(DeviceType.THERMOSTAT),
+            eq(Instant.parse("2024-01-01T10:00:00Z")), eq(Instant.parse("2024-01-01T11:00:00Z")),
+            eq(DeviceEventAggregation.WindowType.HOURLY),
+            eq(20.0), eq(10.0), eq(30.0), eq(20.0), eq(2L), any());
+        verify(eventProcessingService).persistAggregation(
+            eq("device-1"), eq("zone-1"), eq(DeviceType.THERMOSTAT),
+            eq(Instant.parse("2024-01-01T00:00:00Z")), eq(Instant.parse("2024-01-02T00:00:00Z")),
+            eq(DeviceEventAggregation.WindowType.DAILY),
+            eq(20.0), eq(10.0), eq(30.0), eq(20.0), eq(2L), any());
+    }
+
+    @Test
+    void sourceModeClosesHoursFromTheirOwnEvents() throws Exception {
+        ProcessorProperties properties = properties(DeviceEventStreamProcessor.KeyMode.SOURCE,
+            ProcessorProperties.Sink.Mode.DIRECT);
+        properties.getEmit().setMode(ProcessorProperties.Emit.Mode.FINAL);
+        start(properties);
+
+        send("device-1", new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 10.0,
+            Instant.parse("2024-01-01T10:15:00Z")));
+        send("device-1", new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 30.0,
+            Instant.parse("2024-01-01T10:59:00Z")));
+        verifyNoHourlyWrites();
+
+        send("device-1", new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 50.0,
+            Instant.parse("2024-01-01T11:05:00Z")));
+
+        verify(eventProcessingService).persistAggregation(
+            eq("device-1"), eq("zone-1"), eq(DeviceType.THERMOSTAT),
+            eq(Instant.parse("2024-01-01T10:00:00Z")), eq(Instant.parse("2024-01-01T11:00:00Z")),
+            eq(DeviceEventAggregation.WindowType.HOURLY),
+            eq(20.0), eq(10.0), eq(30.0), eq(20.0), eq(2L), any());
+    }
+
+    @Test
+    void windowsOnEventTimestampRatherThanRecordTime() throws Exception {
+        start(properties(DeviceEventStreamProcessor.KeyMode.SOURCE, ProcessorProperties.Sink.Mode.DIRECT));
+        DeviceEvent event = new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 10.0,
+            Instant.parse("2024-01-01T10:15:00Z"));
+
+        input.pipeInput("device-1", objectMapper.writeValueAsString(event), Instant.parse("2024-01-01T12:00:00Z"));
+
+        verify(eventProcessingService).persistAggregation(
+            eq("device-1"), eq("zone-1"), eq(DeviceType.THERMOSTAT),
+            eq(Instant.parse("2024-01-01T10:15:00Z")), eq(Instant.parse("2024-01-01T10:16:00Z")),
+            eq(DeviceEventAggregation.WindowType.MINUTE),
+            eq(10.0), eq(10.0), eq(10.0), eq(10.0), eq(1L), any());
+    }
+
+    @Test
+    void sourceModeRejectsMismatchedKey() throws Exception {
+        start(properties(DeviceEventStreamProcessor.KeyMode.SOURCE, ProcessorProperties.Sink.Mode.WRITE_BEHIND));
+        Instant time = Instant.parse("2024-01-01T10:15:00Z");
+
+        send("device-2", new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 10.0, time));
+        send(null, new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 10.0, time));
+
+        verifyNoInteractions(eventProcessingService);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void writeBehindFlushesLatestRowOnFlushInterval() throws Exception {
+        ProcessorProperties properties =
+            properties(DeviceEventStreamProcessor.KeyMode.REPARTITION, ProcessorProperties.Sink.Mode.WRITE_BEHIND);
+        start(properties);
+        Instant time = Instant.parse("2024-01-01T10:15:00Z");
+
+        send("device-1", new DeviceEvent("device-1", DeviceType.CAR_FUEL, "zone-2", 40.0, time));
+        send("device-1", new DeviceEvent("device-1", DeviceType.CAR_FUEL, "zone-2", 60.0, time.plusSeconds(1)));
+        driver.advanceWallClockTime(properties.getSink().getFlushInterval());
+
+        ArgumentCaptor<Collection<AggregationRow>> batches = ArgumentCaptor.forClass(Collection.class);
+        verify(eventProcessingService, atLeastOnce()).persistAggregations(batches.capture());
+        List<AggregationRow> lastBatch = List.copyOf(batches.getValue());
+        assertEquals(1, lastBatch.size());
+        AggregationRow row = lastBatch.get(0);
+        assertEquals("device-1", row.deviceId());
+        assertEquals("zone-2", row.zone());
+        assertEquals(DeviceEventAggregation.WindowType.MINUTE, row.windowType());
+        assertEquals(50.0, row.avgValue());
+        assertEquals(2L, row.count());
+        TDigest digest = TDigest.fromBytes(row.digest());
+        assertEquals(2L, digest.size());
+        assertEquals(AggregationValue.PERSISTED_COMPRESSION, digest.getCompression());
+        verify(eventProcessingService, never()).persistAggregation(
+            any(), any(), any(), any(), any(), any(), anyDouble(), anyDouble(), anyDouble(), anyDouble(), anyLong(), any());
+    }
+
+    @Test
+    void writeBehindKeepsPendingRowsInALoggedStoreUntilTheFlushInterval() throws Exception {
+        ProcessorProperties properties =
+            properties(DeviceEventStreamProcessor.KeyMode.SOURCE, ProcessorProperties.Sink.Mode.WRITE_BEHIND);
+        start(properties);
+
+        send("device-1", new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 10.0,
+            Instant.parse("2024-01-01T10:15:00Z")));
+
+        verify(eventProcessingService, never()).persistAggregations(any());
+        String bufferName = DeviceEventStreamProcessor.sinkBufferName(DeviceEventAggregation.WindowType.MINUTE);
+        assertEquals(1L, driver.getKeyValueStore(bufferName).approximateNumEntries());
+        assertTrue(driver.producedTopicNames().contains("relay-processor-test-" + bufferName + "-changelog"));
+
+        driver.advanceWallClockTime(properties.getSink().getFlushInterval());
+
+        verify(eventProcessingService).persistAggregations(argThat(rows -> rows.size() == 1
+            && rows.iterator().next().windowType() == DeviceEventAggregation.WindowType.MINUTE));
+        assertEquals(0L, driver.getKeyValueStore(bufferName).approximateNumEntries());
+    }
+
+    @Test
+    void finalModeWritesEachWindowOnceAfterGrace() throws Exception {
+        ProcessorProperties properties = properties(DeviceEventStreamProcessor.KeyMode.REPARTITION,
+            ProcessorProperties.Sink.Mode.DIRECT);
+        properties.getEmit().setMode(ProcessorProperties.Emit.Mode.FINAL);
+        start(properties);
+
+        send("device-1", new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 10.0,
+            Instant.parse("2024-01-01T10:15:00Z")));
+        send("device-1", new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 30.0,
+            Instant.parse("2024-01-01T10:16:00Z")));
+        send("device-1", new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 50.0,
+            Instant.parse("2024-01-01T11:04:00Z")));
+        send("device-1", new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 50.0,
+            Instant.parse("2024-01-01T11:06:00Z")));
+        verify(eventProcessingService, times(1)).persistAggregation(any(), any(), any(),
+            eq(Instant.parse("2024-01-01T10:15:00Z")), any(), eq(DeviceEventAggregation.WindowType.MINUTE),
+            anyDouble(), anyDouble(), anyDouble(), anyDouble(), anyLong(), any());
+        verifyNoHourlyWrites();
+
+        send("device-1", new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 50.0,
+            Instant.parse("2024-01-01T11:12:00Z")));
+
+        verify(eventProcessingService, times(1)).persistAggregation(any(), any(), any(), any(), any(),
+            eq(DeviceEventAggregation.WindowType.HOURLY), anyDouble(), anyDouble(), anyDouble(), anyDouble(), anyLong(), any());
+        verify(eventProcessingService).persistAggregation(
+            eq("device-1"), eq("zone-1"), eq(DeviceType.THERMOSTAT),
+            eq(Instant.parse("2024-01-01T10:00:00Z")), eq(Instant.parse("2024-01-01T11:00:00Z")),
+            eq(DeviceEventAggregation.WindowType.HOURLY),
+            eq(20.0), eq(10.0), eq(30.0), eq(20.0), eq(2L), any());
+    }
+
+    @Test
+    void finalModeWithEarlyIntervalWritesPartialResults() throws Exception {
+        ProcessorProperties properties = properties(DeviceEventStreamProcessor.KeyMode.REPARTITION,
+            ProcessorProperties.Sink.Mode.DIRECT);
+        properties.getEmit().setMode(ProcessorProperties.Emit.Mode.FINAL);
+        properties.getEmit().setEarlyInterval(java.time.Duration.ofMinutes(10));
+        start(properties);
+
+        send("device-1", new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 10.0,
+            Instant.parse("2024-01-01T10:15:00Z")));
+        send("device-1", new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 30.0,
+            Instant.parse("2024-01-01T10:16:00Z")));
+        send("device-1", new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 20.0,
+            Instant.parse("2024-01-01T10:26:00Z")));
+        verifyNoHourlyWrites();
+
+        send("device-1", new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 20.0,
+            Instant.parse("2024-01-01T10:32:00Z")));
+
+        verify(eventProcessingService, atLeastOnce()).persistAggregation(
+            eq("device-1"), eq("zone-1"), eq(DeviceType.THERMOSTAT),
+            eq(Instant.parse("2024-01-01T10:00:00Z")), eq(Instant.parse("2024-01-01T11:00:00Z")),
+            eq(DeviceEventAggregation.WindowType.HOURLY),
+            eq(20.0), eq(10.0), eq(30.0), eq(20.0), eq(3L), any());
+    }
+
+    private void verifyNoHourlyWrites() {
+        verify(eventProcessingService, never()).persistAggregation(any(), any(), any(), any(), any(),
+            eq(DeviceEventAggregation.WindowType.HOURLY), anyDouble(), anyDouble(), anyDouble(), anyDouble(), anyLong(), any());
+    }
+
+    private Set<String> storesReadingInputTopic(Topology topology) {
+        for (TopologyDescription.Subtopology subtopology : topology.describe().subtopologies()) {
+            boolean readsInput = subtopology.nodes().stream()
+                .anyMatch(node -> node instanceof TopologyDescription.Source source
+                    && source.topicSet() != null && source.topicSet().contains(TOPIC));
+            if (readsInput) {
+                return subtopology.nodes().stream()
+                    .filter(node -> node instanceof TopologyDescription.Processor)
+                    .flatMap(node -> ((TopologyDescription.Processor) node).stores().stream())
+                    .collect(Collectors.toSet());
+            }
+        }
+        return Set.of();
+    }
+
+    private ProcessorProperties properties(DeviceEventStreamProcessor.KeyMode keyMode,
+                                           ProcessorProperties.Sink.Mode sinkMode) {
+        ProcessorProperties properties = new ProcessorProperties();
+        properties.getTopology().setKeyMode(keyMode);
+        properties.getSink().setMode(sinkMode);
+        return properties;
+    }
+
+    private Topology buildTopology(ProcessorProperties properties) {
+        DeviceEventStreamProcessor processor = new DeviceEventStreamProcessor(
+            eventProcessingService, objectMapper, TOPIC, properties, new SimpleMeterRegistry(),
+            new KeyDictionary(keyDictionaryRepository));
+        StreamsBuilder builder = new StreamsBuilder();
+        processor.kStream(builder);
+        return builder.build();
+    }
+
+    private void start(ProcessorProperties properties) {
+        Properties props = new Properties();
+        props.put(StreamsConfig.APPLICATION_ID_CONFIG, "relay-processor-test");
+        props.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, "dummy:9092");
+        props.put(StreamsConfig.STATESTORE_CACHE_MAX_BYTES_CONFIG, 0);
+        driver = new TopologyTestDriver(buildTopology(properties), props);
+        input = driver.createInputTopic(TOPIC, new StringSerializer(), new StringSerializer());
+    }
+
+    private void send(String key, DeviceEvent event) throws Exception {
+        input.pipeInput(key, objectMapper.writeValueAsString(event), event.timestamp());
+    }
+}
@@ -0,0 +1,84 @@
+package com.supermetrics.relay.processor.stream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.supermetrics.relay.common.domain.DeviceEvent;
+import com.supermetrics.relay.common.domain.DeviceType;
+import com.supermetrics.relay.processor.config.KafkaStreamsConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeviceEventTimestampExtractorTest {
+
+    private static final Instant EVENT_TIME = Instant.parse("2024-01-01T10:15:30.250Z");
+    private static final long RECORD_TIME = Instant.parse("2024-01-01T12:00:00Z").toEpochMilli();
+
+    private final ObjectMapper objectMapper = new KafkaStreamsConfig().objectMapper();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void readsEpochSecondsAndIsoTimestamps() throws Exception {
+        String numeric = objectMapper.writeValueAsString(event(EVENT_TIME));
+        String iso = objectMapper.copy().disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+            .writeValueAsString(event(EVENT_TIME));
+
+        assertEquals(EVENT_TIME.toEpochMilli(), DeviceEventTimestampExtractor.parseTimestamp(numeric));
+        assertEquals(EVENT_TIME.toEpochMilli(), DeviceEventTimestampExtractor.parseTimestamp(iso));
+        assertTrue(DeviceEventTimestampExtractor.parseTimestamp("{\"timestamp\": null}") < 0);
+        assertTrue(DeviceEventTimestampExtractor.parseTimestamp("{\"deviceId\":\"d\"}") < 0);
+    }
+
+    @Test
+    void usesEventTimeForBacklogs() throws Exception {
+        DeviceEventTimestampExtractor extractor = extractor(DeviceEventTimestampExtractor.Policy.DROP);
+
+        assertEquals(EVENT_TIME.toEpochMilli(), extractor.extract(record(event(EVENT_TIME)), 0L));
+        assertEquals(1.0, count("event-time"));
+    }
+
+    @Test
+    void appliesPolicyToMissingAndSkewedTimestamps() throws Exception {
+        Instant future = Instant.ofEpochMilli(RECORD_TIME).plus(Duration.ofHours(1));
+
+        DeviceEventTimestampExtractor fallback = extractor(DeviceEventTimestampExtractor.Policy.FALLBACK);
+        assertEquals(RECORD_TIME, fallback.extract(record(event(null)), 0L));
+        assertEquals(RECORD_TIME, fallback.extract(record(event(future)), 0L));
+        assertEquals(2.0, count("fallback"));
+
+        DeviceEventTimestampExtractor clamp = extractor(DeviceEventTimestampExtractor.Policy.CLAMP);
+        assertEquals(RECORD_TIME + Duration.ofMinutes(5).toMillis(), clamp.extract(record(event(future)), 0L));
+        assertEquals(1.0, count("clamped"));
+
+        DeviceEventTimestampExtractor drop = extractor(DeviceEventTimestampExtractor.Policy.DROP);
+        assertTrue(drop.extract(record(event(future)), 0L) < 0);
+        assertEquals(1.0, count("dropped"));
+    }
+
+    private DeviceEventTimestampExtractor extractor(DeviceEventTimestampExtractor.Policy policy) {
+        return new DeviceEventTimestampExtractor(policy, Duration.ofMinutes(5), meterRegistry);
+    }
+
+    private DeviceEvent event(Instant timestamp) {
+        return new DeviceEvent("device-1", DeviceType.THERMOSTAT, "zone-1", 10.0, timestamp);
+    }
+
+    private ConsumerRecord<Object, Object> record(DeviceEvent event) throws Exception {
+        return new ConsumerRecord<>("iot-events", 0, 0L, RECORD_TIME,
+            TimestampType.CREATE_TIME, 0, 0,
+            event.deviceId(), objectMapper.writeValueAsString(event),
+            new RecordHeaders(), Optional.empty());
+    }
+
+    private double count(String path) {
+        return meterRegistry.get(DeviceEventTimestampExtractor.METRIC_NAME).tag("path", path).counter().count();
+    }
+}